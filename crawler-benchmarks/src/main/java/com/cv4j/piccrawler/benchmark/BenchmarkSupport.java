@@ -0,0 +1,164 @@
+package com.cv4j.piccrawler.benchmark;
+
+import com.cv4j.piccrawler.download.strategy.FileGenType;
+import com.cv4j.piccrawler.download.strategy.FileStrategy;
+import com.cv4j.piccrawler.download.strategy.NormalStrategy;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.message.BasicHttpResponse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * benchmark共用的工具方法
+ */
+public class BenchmarkSupport {
+
+    /**
+     * @param directory 图片存放的目录
+     * @return 使用随机文件名的FileStrategy
+     */
+    public static FileStrategy fileStrategy(Path directory) {
+
+        return new FileStrategy() {
+
+            @Override
+            public String filePath() {
+                return directory.toString();
+            }
+
+            @Override
+            public String picFormat() {
+                return "png";
+            }
+
+            @Override
+            public FileGenType genType() {
+                return FileGenType.RANDOM;
+            }
+        };
+    }
+
+    /**
+     * 每次都写入同一个文件，避免测量期间生成大量的文件
+     * @param directory 图片存放的目录
+     * @param fileName  不包含扩展名的文件名
+     * @return
+     */
+    public static FileStrategy fixedFileStrategy(Path directory,String fileName) {
+
+        return fixedFileStrategy(directory,fileName,0);
+    }
+
+    /**
+     * @param directory  图片存放的目录
+     * @param fileName   不包含扩展名的文件名
+     * @param shardDepth 子目录的层数，见FileStrategy.shardDepth()
+     * @return
+     */
+    public static FileStrategy fixedFileStrategy(Path directory,String fileName,int shardDepth) {
+
+        return new NormalStrategy() {
+
+            @Override
+            public String fileName() {
+                return fileName;
+            }
+
+            @Override
+            public String filePath() {
+                return directory.toString();
+            }
+
+            @Override
+            public String picFormat() {
+                return "png";
+            }
+
+            @Override
+            public int shardDepth() {
+                return shardDepth;
+            }
+        };
+    }
+
+    /**
+     * @param body        响应体，每次getContent()都从头读取
+     * @param contentType
+     * @return 200的响应，可以重复使用，close()不做任何事情
+     */
+    public static CloseableHttpResponse response(byte[] body,String contentType) {
+
+        InMemoryResponse response = new InMemoryResponse();
+        response.setEntity(new ByteArrayEntity(body, ContentType.create(contentType)));
+        return response;
+    }
+
+    /**
+     * 删除目录下的全部文件，保留目录本身
+     * @param directory
+     */
+    public static void cleanDirectory(Path directory) throws IOException {
+
+        if (!Files.exists(directory)) return;
+
+        List<Path> paths;
+        try (Stream<Path> stream = Files.walk(directory)) {
+            paths = stream.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        }
+
+        for (Path path : paths) {
+            if (!path.equals(directory)) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    public static void deleteDirectory(Path directory) throws IOException {
+
+        cleanDirectory(directory);
+        Files.deleteIfExists(directory);
+    }
+
+    /**
+     * 读取当前进程的常驻内存，只支持Linux
+     * @return 例如 "VmRSS: 123456 kB, VmHWM: 234567 kB"
+     */
+    public static String residentMemory() {
+
+        File status = new File("/proc/self/status");
+        if (!status.exists()) return "RSS not available";
+
+        try {
+            return Files.readAllLines(Paths.get(status.getPath())).stream()
+                    .filter(line -> line.startsWith("VmRSS") || line.startsWith("VmHWM"))
+                    .map(line -> line.replaceAll("\\s+", " "))
+                    .collect(Collectors.joining(", "));
+        } catch (IOException e) {
+            return "RSS not available";
+        }
+    }
+
+    private static class InMemoryResponse extends BasicHttpResponse implements CloseableHttpResponse {
+
+        InMemoryResponse() {
+
+            super(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, "OK");
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.cv4j.piccrawler.benchmark;
+
+import com.cv4j.piccrawler.PicCrawlerClient;
+import com.cv4j.piccrawler.store.CrawlJournal;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * checkpoint()在下载路径上的开销
+ * downloadPics通过StubServer下载IMAGES张图片，结果是每张图片的平均耗时，checkpoint为true时记录进度
+ * recordImage只测量CrawlJournal记录一张图片开始和结束的耗时，包括定期写入文件和压缩
+ *
+ * ./gradlew :crawler-benchmarks:jmh -PjmhArgs="CheckpointBenchmark"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CheckpointBenchmark {
+
+    private static final int IMAGES = 1000;
+    private static final int JOURNAL_URLS = 100_000;
+
+    @State(Scope.Benchmark)
+    public static class DownloadState {
+
+        @Param({"false", "true"})
+        public boolean checkpoint;
+
+        private StubServer server;
+        private Path output;
+        private Path journal;
+        private PicCrawlerClient client;
+        private List<String> imageUrls;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+
+            server = new StubServer(16384, 0, 1);
+            imageUrls = server.imageUrls(IMAGES);
+            output = Files.createTempDirectory("piccrawler-checkpoint");
+            journal = Files.createTempDirectory("piccrawler-journal");
+
+            PicCrawlerClient client = PicCrawlerClient.get()
+                    .timeOut(30000)
+                    .fileStrategy(BenchmarkSupport.fixedFileStrategy(output, "image"));
+
+            if (checkpoint) {
+                client.checkpoint(journal.toString());
+            }
+
+            this.client = client.build();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+
+            client.closeCheckpoint();
+            server.close();
+            BenchmarkSupport.deleteDirectory(output);
+            BenchmarkSupport.deleteDirectory(journal);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class JournalState {
+
+        private Path directory;
+        private CrawlJournal journal;
+        private List<String> urls;
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+
+            directory = Files.createTempDirectory("piccrawler-journal");
+            journal = new CrawlJournal(directory.toFile());
+
+            urls = new ArrayList<>(JOURNAL_URLS);
+            for (int i = 0; i < JOURNAL_URLS; i++) {
+                urls.add("http://img.example.com/upload/2017/11/" + i + ".png");
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+
+            journal.close();
+            BenchmarkSupport.deleteDirectory(directory);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(IMAGES)
+    public void downloadPics(DownloadState state) {
+
+        state.client.downloadPics(state.imageUrls);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public void recordImage(JournalState state) throws IOException {
+
+        String url = state.urls.get(state.next++ % JOURNAL_URLS);
+        state.journal.started(url);
+        state.journal.done(url);
+    }
+}
@@ -0,0 +1,129 @@
+package com.cv4j.piccrawler.benchmark;
+
+import com.cv4j.piccrawler.PicCrawlerClient;
+import com.cv4j.piccrawler.http.HttpManager;
+import com.cv4j.piccrawler.http.TransportType;
+import com.cv4j.piccrawler.parser.PicParser;
+import com.cv4j.piccrawler.parser.StreamingPicParser;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.util.EntityUtils;
+import org.jsoup.Jsoup;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 端到端的耗时：通过本地的StubServer下载一张图片，或者抓取并解析一个网页，没有模拟的网络延迟
+ * downloadPic包括请求、写文件和释放连接，fetchAndParsePage与PicCrawlerClient抓取网页的步骤相同
+ * fetchAndStreamPage对应streamingParse()，边读取响应边解析
+ *
+ * ./gradlew :crawler-benchmarks:jmh -PjmhArgs="FetchBenchmark"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FetchBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class ImageState {
+
+        @Param({"BLOCKING", "ASYNC"})
+        public String transport;
+
+        @Param({"16384", "1048576"})
+        public int imageSize;
+
+        private StubServer server;
+        private Path output;
+        private PicCrawlerClient client;
+        private String imageUrl;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+
+            server = new StubServer(imageSize, 0, 1);
+            imageUrl = server.imageUrl(0);
+            output = Files.createTempDirectory("piccrawler-fetch");
+
+            client = PicCrawlerClient.get()
+                    .timeOut(30000)
+                    .transport(TransportType.valueOf(transport))
+                    .fileStrategy(BenchmarkSupport.fixedFileStrategy(output, "image"))
+                    .build();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+
+            server.close();
+            BenchmarkSupport.deleteDirectory(output);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class PageState {
+
+        @Param({"200"})
+        public int pageImages;
+
+        private StubServer server;
+        private PicParser picParser;
+        private StreamingPicParser streamingPicParser;
+        private HttpManager httpManager;
+        private String pageUrl;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+
+            server = new StubServer(16384, 0, 1);
+            server.setPage(PageFixtures.html(pageImages, server.imageHost(), 42));
+            pageUrl = server.pageUrl();
+            picParser = new PicParser();
+            streamingPicParser = new StreamingPicParser();
+            httpManager = new HttpManager();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+
+            server.close();
+        }
+    }
+
+    @Benchmark
+    public void downloadPic(ImageState state) {
+
+        state.client.downloadPic(state.imageUrl);
+    }
+
+    @Benchmark
+    public List<String> fetchAndParsePage(PageState state) throws IOException {
+
+        try (CloseableHttpResponse response = state.httpManager.createHttpWithGet(state.pageUrl)) {
+
+            String html = EntityUtils.toString(response.getEntity());
+            return state.picParser.parse(Jsoup.parse(html, state.pageUrl));
+        }
+    }
+
+    @Benchmark
+    public int fetchAndStreamPage(PageState state, Blackhole blackhole) throws IOException {
+
+        try (CloseableHttpResponse response = state.httpManager.createHttpWithGet(state.pageUrl)) {
+
+            InputStreamReader reader = new InputStreamReader(response.getEntity().getContent(), StandardCharsets.UTF_8);
+            int count = state.streamingPicParser.parse(reader, state.pageUrl, blackhole::consume);
+            EntityUtils.consume(response.getEntity());
+            return count;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.cv4j.piccrawler.benchmark;
+
+import com.cv4j.piccrawler.download.ContentDeduplicator;
+import com.cv4j.piccrawler.download.ImageFileWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 比较原来的写文件方式(byte[] + FileOutputStream，与IOUtils.writeToFile相同)和ImageFileWriter写入大文件的耗时
+ * 数据来自内存，只测量写文件的开销，dedup为true时同时计算SHA-256摘要
+ *
+ * ./gradlew :crawler-benchmarks:jmh -PjmhArgs="FileWriteBenchmark -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileWriteBenchmark {
+
+    private static final int LEGACY_BUFFER_SIZE = 4 * 1024;
+
+    @Param({"1048576", "33554432"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean dedup;
+
+    private byte[] data;
+    private Path output;
+    private File target;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+
+        data = new byte[size];
+        new Random(42).nextBytes(data);
+
+        output = Files.createTempDirectory("piccrawler-write");
+        target = output.resolve("image.png").toFile();
+    }
+
+    @Benchmark
+    public long legacy() throws IOException {
+
+        MessageDigest digest = dedup ? ContentDeduplicator.newDigest() : null;
+        InputStream is = new ByteArrayInputStream(data);
+        if (digest != null) {
+            is = new DigestInputStream(is, digest);
+        }
+
+        long written = 0;
+        try (OutputStream os = new FileOutputStream(target)) {
+
+            byte[] buffer = new byte[LEGACY_BUFFER_SIZE];
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                os.write(buffer, 0, n);
+                written += n;
+            }
+        }
+        return written;
+    }
+
+    @Benchmark
+    public long imageFileWriter() throws IOException {
+
+        MessageDigest digest = dedup ? ContentDeduplicator.newDigest() : null;
+        return ImageFileWriter.write(new ByteArrayInputStream(data), target, size, digest);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+
+        BenchmarkSupport.deleteDirectory(output);
+    }
+}
@@ -0,0 +1,110 @@
+package com.cv4j.piccrawler.benchmark;
+
+import com.cv4j.piccrawler.http.HttpClientCache;
+import org.apache.http.HttpHost;
+import org.apache.http.client.CookieStore;
+import org.apache.http.client.config.CookieSpecs;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.BasicCookieStore;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.cookie.BasicClientCookie;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 使用多个代理时获取CloseableHttpClient的开销：原来每次请求都创建新的客户端，现在从HttpClientCache中取出
+ * 不发送请求，只测量选择代理之后获取客户端的部分，用 -prof gc 查看每次操作分配的内存(gc.alloc.rate.norm)
+ *
+ * ./gradlew :crawler-benchmarks:jmh -PjmhArgs="HttpClientCacheBenchmark -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HttpClientCacheBenchmark {
+
+    private static final int TIME_OUT = 20000;
+
+    @Param({"10"})
+    public int proxies;
+
+    private PoolingHttpClientConnectionManager connManager;
+    private HttpHost[] hosts;
+    private BasicClientCookie cookie;
+    private HttpClientCache cache;
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+
+        connManager = new PoolingHttpClientConnectionManager();
+
+        hosts = new HttpHost[proxies];
+        for (int i = 0; i < proxies; i++) {
+            hosts[i] = new HttpHost("10.0.0." + (i + 1), 8080, "http");
+        }
+
+        cookie = new BasicClientCookie("session", "benchmark");
+        cache = new HttpClientCache(this::createHttpClient);
+    }
+
+    /**
+     * 与HttpManager中创建客户端的方式相同
+     */
+    private CloseableHttpClient createHttpClient(int timeOut,HttpHost proxy,BasicClientCookie cookie) {
+
+        RequestConfig.Builder config = RequestConfig.custom()
+                .setConnectionRequestTimeout(timeOut)
+                .setConnectTimeout(timeOut)
+                .setSocketTimeout(timeOut)
+                .setCookieSpec(CookieSpecs.STANDARD);
+
+        if (proxy != null) {
+            config.setProxy(proxy);
+        }
+
+        HttpClientBuilder builder = HttpClients.custom()
+                .setDefaultRequestConfig(config.build())
+                .setConnectionManager(connManager)
+                .setConnectionManagerShared(true);
+
+        if (cookie != null) {
+            CookieStore cookieStore = new BasicCookieStore();
+            cookieStore.addCookie(cookie);
+            builder.setDefaultCookieStore(cookieStore);
+        }
+
+        return builder.build();
+    }
+
+    private HttpHost nextProxy() {
+
+        HttpHost host = hosts[index];
+        index = (index + 1) % hosts.length;
+        return host;
+    }
+
+    @Benchmark
+    public CloseableHttpClient rebuildPerRequest() {
+
+        return createHttpClient(TIME_OUT, nextProxy(), cookie);
+    }
+
+    @Benchmark
+    public CloseableHttpClient cached() {
+
+        return cache.get(TIME_OUT, nextProxy(), cookie);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+
+        connManager.shutdown();
+    }
+}
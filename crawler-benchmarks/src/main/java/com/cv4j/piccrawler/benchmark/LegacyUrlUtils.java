@@ -0,0 +1,173 @@
+package com.cv4j.piccrawler.benchmark;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 改为UrlNormalizer之前Utils中的实现，只用于UrlNormalizerBenchmark的对比，去掉了异常时的日志
+ */
+public class LegacyUrlUtils {
+
+    public static final String PIC_REGEX = ".*\\.(jpg|jpeg|gif|bmp|png|webp|svg).*";
+
+    public static final String ESCAPE_REGEX = ".*\\.( |\"|#|(|)|\\+|,|:|;|<|>|@|\\||).*";
+
+    private static final Map<String,String> MAP = new HashMap<>();
+
+    static {
+        MAP.put(" ","%20");
+        MAP.put("\"","%22");
+        MAP.put("#","%23");
+        MAP.put("(","%28");
+        MAP.put(")","%29");
+        MAP.put("+","%2B");
+        MAP.put(",","%2C");
+        MAP.put(":","%3A");
+        MAP.put(";","%3B");
+        MAP.put("<","%3C");
+        MAP.put(">","%3E");
+        MAP.put("@","%40");
+        MAP.put("\\","%5C");
+        MAP.put("|","%7C");
+    }
+
+    /**
+     * 尝试根据图片的地址来获取图片的格式
+     * @param url
+     * @return
+     */
+    public static String tryToGetPicFormat(String url) {
+
+        if (url == null) return null;
+
+        if (!url.matches(PIC_REGEX)) return null;
+
+        if (url.indexOf(".jpg")>-1) {
+
+            return "jpg";
+        } else if (url.indexOf(".jpeg")>-1) {
+
+            return "jpeg";
+        } else if (url.indexOf(".gif")>-1) {
+
+            return "gif";
+        } else if (url.indexOf(".bmp")>-1) {
+
+            return "bmp";
+        } else if (url.indexOf(".png")>-1) {
+
+            return "png";
+        } else if (url.indexOf(".webp")>-1) {
+
+            return "webp";
+        } else if (url.indexOf(".svg")>-1) {
+
+            return "svg";
+        }
+
+        return null;
+    }
+
+    public static String tryToEscapeUrl(String url) {
+
+        if (url == null) return null;
+
+        if (!url.matches(ESCAPE_REGEX)) return url;
+
+        if (url.indexOf(" ")>-1) {
+
+            url =  url.replace(" ",MAP.get(" "));
+        }
+
+        if (url.indexOf("\"")>-1) {
+
+            url =  url.replace("\"",MAP.get("\""));
+        }
+
+        if (url.indexOf("#")>-1) {
+
+            url =  url.replace("#",MAP.get("#"));
+        }
+
+        if (url.indexOf("(")>-1) {
+
+            url =  url.replace("(",MAP.get("("));
+        }
+
+        if (url.indexOf(")")>-1) {
+
+            url =  url.replace(")",MAP.get(")"));
+        }
+
+        if (url.indexOf("+")>-1) {
+
+            url =  url.replace("+",MAP.get("+"));
+        }
+
+        if (url.indexOf(",")>-1) {
+
+            url =  url.replace(",",MAP.get(","));
+        }
+
+        if (url.indexOf(":")>-1) {
+
+            url =  url.replace(":",MAP.get(":"));
+        }
+
+        if (url.indexOf(";")>-1) {
+
+            url =  url.replace(";",MAP.get(";"));
+        }
+
+        if (url.indexOf("<")>-1) {
+
+            url =  url.replace("<",MAP.get("<"));
+        }
+
+        if (url.indexOf(">")>-1) {
+
+            url =  url.replace(">",MAP.get(">"));
+        }
+
+        if (url.indexOf("@")>-1) {
+
+            url =  url.replace("@",MAP.get("@"));
+        }
+
+        if (url.indexOf("\\")>-1) {
+
+            url =  url.replace("\\",MAP.get("\\"));
+        }
+
+        if (url.indexOf("|")>-1) {
+
+            url =  url.replace("|",MAP.get("|"));
+        }
+
+        return url;
+    }
+
+    /**
+     * 判断是否合法的url
+     * @param urlString
+     * @return
+     */
+    public static boolean isValidUrl(String urlString) {
+        URI uri = null;
+        try {
+            uri = new URI(urlString);
+        } catch (URISyntaxException e) {
+            return false;
+        }
+
+        if (uri.getHost() == null) {
+            return false;
+        }
+        if (uri.getScheme().equalsIgnoreCase("http") || uri.getScheme().equalsIgnoreCase("https")) {
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,91 @@
+package com.cv4j.piccrawler.benchmark;
+
+import com.cv4j.piccrawler.PicCrawlerClient;
+import com.cv4j.piccrawler.parser.PicParser;
+import com.cv4j.piccrawler.store.SeenUrlStore;
+import org.jsoup.Jsoup;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 下载多个网页的图片时网页的吞吐量，结果的单位是 网页/秒
+ * StubServer提供PAGES个内容相同的网页，网页上图片的地址预先写入SeenUrlStore，测量时不下载图片，只包括网页的抓取和解析
+ * maxPagesInFlight是抓取的并发数，parseParallelism是解析的并发数，latencyMillis模拟网络延迟
+ *
+ * ./gradlew :crawler-benchmarks:jmh -PjmhArgs="PageCrawlBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PageCrawlBenchmark {
+
+    private static final int PAGES = 1000;
+    private static final long EXPECTED_URLS = 100_000L;
+
+    @Param({"1", "4", "16"})
+    public int maxPagesInFlight;
+
+    @Param({"1", "4"})
+    public int parseParallelism;
+
+    @Param({"0", "20"})
+    public long latencyMillis;
+
+    @Param({"100"})
+    public int pageImages;
+
+    private StubServer server;
+    private List<String> pageUrls;
+    private Path seenDirectory;
+    private Path output;
+    private PicCrawlerClient client;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+
+        server = new StubServer(1024, latencyMillis, 1);
+        String html = PageFixtures.html(pageImages, server.imageHost(), 42);
+        server.setPage(html);
+        pageUrls = server.pageUrls(PAGES);
+
+        seenDirectory = Files.createTempDirectory("piccrawler-seen");
+        output = Files.createTempDirectory("piccrawler-pages");
+
+        try (SeenUrlStore store = new SeenUrlStore(seenDirectory.toFile(), EXPECTED_URLS)) {
+            for (String url : new PicParser().parse(Jsoup.parse(html))) {
+                store.add(url);
+            }
+        }
+
+        client = PicCrawlerClient.get()
+                .timeOut(30000)
+                .maxPagesInFlight(maxPagesInFlight)
+                .parseParallelism(parseParallelism)
+                .skipSeenUrls(seenDirectory.toString(), EXPECTED_URLS)
+                .fileStrategy(BenchmarkSupport.fileStrategy(output))
+                .build();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PAGES)
+    public long crawlPages() {
+
+        return client.downloadWebPageImagesToFlowable(pageUrls).count().blockingGet();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+
+        server.close();
+        BenchmarkSupport.deleteDirectory(output);
+        BenchmarkSupport.deleteDirectory(seenDirectory);
+    }
+}
@@ -0,0 +1,131 @@
+package com.cv4j.piccrawler.benchmark;
+
+import java.util.Random;
+
+/**
+ * benchmark使用的合成网页，结构接近真实的图片站：head中有大量的meta/script/style，
+ * 正文是卡片列表，图片地址混合了绝对路径、//开头的地址、相对路径以及需要转义的字符，另外还有懒加载的data-src和srcset
+ */
+public class PageFixtures {
+
+    public static final String BASE_URI = "http://www.example.com/gallery/index.html";
+
+    private static final String[] FORMATS = {"jpg", "jpeg", "png", "gif", "webp"};
+
+    /**
+     * @param images 图片的数量
+     * @param seed   随机数种子，相同的参数生成相同的网页
+     * @return
+     */
+    public static String html(int images,long seed) {
+
+        return html(images, "http://img.example.com", seed);
+    }
+
+    /**
+     * @param images    图片的数量
+     * @param imageHost 图片的绝对地址使用的host，例如StubServer的地址
+     * @param seed      随机数种子，相同的参数生成相同的网页
+     * @return
+     */
+    public static String html(int images,String imageHost,long seed) {
+
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder(images * 600 + 16 * 1024);
+
+        sb.append("<!DOCTYPE html>\n<html lang=\"zh-CN\">\n<head>\n<meta charset=\"utf-8\">\n<title>gallery</title>\n");
+        for (int i = 0; i < 20; i++) {
+            sb.append("<meta name=\"keywords-").append(i).append("\" content=\"图片,壁纸,摄影,gallery,").append(i).append("\">\n");
+        }
+        sb.append("<style>\n");
+        for (int i = 0; i < 200; i++) {
+            sb.append(".card-").append(i).append(" { margin: ").append(i % 17).append("px; background: url(/static/bg-")
+                    .append(i).append(".png) no-repeat; }\n");
+        }
+        sb.append("</style>\n<script>\nvar config = {");
+        for (int i = 0; i < 200; i++) {
+            sb.append("\"k").append(i).append("\": \"<img src='/tracker/").append(i).append(".gif'>\",");
+        }
+        sb.append("};\n</script>\n</head>\n<body>\n<div class=\"nav\">\n");
+        for (int i = 0; i < 30; i++) {
+            sb.append("<a href=\"/category/").append(i).append("\">分类").append(i).append("</a>\n");
+        }
+        sb.append("</div>\n<div class=\"content\">\n");
+
+        for (int i = 0; i < images; i++) {
+
+            String format = FORMATS[random.nextInt(FORMATS.length)];
+            sb.append("<div class=\"card card-").append(i % 200).append("\">\n<a href=\"/photo/").append(i).append(".html\" title=\"photo ")
+                    .append(i).append("\">");
+
+            switch (random.nextInt(6)) {
+                case 0: // 相对路径
+                    sb.append("<img src=\"/upload/2017/11/").append(i).append('.').append(format).append("\" alt=\"photo ").append(i).append("\">");
+                    break;
+                case 1: // //开头的地址
+                    sb.append("<img src=\"//cdn.example.com/thumb/").append(i).append('.').append(format).append("\">");
+                    break;
+                case 2: // 需要转义的字符
+                    sb.append("<img src=\"").append(imageHost).append("/img/").append(i).append(" (copy).").append(format).append("\">");
+                    break;
+                case 3: // 懒加载，src是占位图
+                    sb.append("<img class=\"lazy\" src=\"data:image/gif;base64,R0lGODlhAQABAAAAACw=\" data-src=\"")
+                            .append(imageHost).append("/img/").append(i).append('.').append(format).append("\">");
+                    break;
+                case 4: // srcset
+                    sb.append("<img src=\"").append(imageHost).append("/img/").append(i).append('.').append(format)
+                            .append("\" srcset=\"").append(imageHost).append("/img/").append(i).append("@2x.").append(format).append(" 2x\">");
+                    break;
+                default: // 没有扩展名的地址
+                    sb.append("<img src=\"").append(imageHost).append("/img/").append(i).append("?w=300&h=200\">");
+            }
+
+            sb.append("</a>\n<p class=\"desc\">");
+            for (int j = 0, n = 5 + random.nextInt(20); j < n; j++) {
+                sb.append("描述文字 text ");
+            }
+            sb.append("</p>\n<script src=\"/static/widget-").append(i % 10).append(".js\"></script>\n</div>\n");
+        }
+
+        sb.append("</div>\n<div class=\"footer\">\n");
+        for (int i = 0; i < 50; i++) {
+            sb.append("<a href=\"http://www.example.com/page/").append(i).append("\">").append(i).append("</a>\n");
+        }
+        sb.append("</div>\n</body>\n</html>\n");
+
+        return sb.toString();
+    }
+
+    /**
+     * @param count 地址的数量
+     * @param seed  随机数种子
+     * @return 各种形式的图片地址，用于Utils的benchmark
+     */
+    public static String[] imageUrls(int count,long seed) {
+
+        Random random = new Random(seed);
+        String[] urls = new String[count];
+
+        for (int i = 0; i < count; i++) {
+
+            String format = FORMATS[random.nextInt(FORMATS.length)];
+            switch (random.nextInt(5)) {
+                case 0:
+                    urls[i] = "http://img.example.com/upload/2017/11/" + i + "." + format;
+                    break;
+                case 1:
+                    urls[i] = "https://cdn.example.com/thumb/" + i + "." + format + "?v=" + random.nextInt(1000);
+                    break;
+                case 2:
+                    urls[i] = "img.example.com/img/" + i + " (copy)." + format;
+                    break;
+                case 3:
+                    urls[i] = "http://img.example.com/img/" + i + "?w=300&h=200";
+                    break;
+                default:
+                    urls[i] = "http://img.example.com/a b/" + i + "." + format; // 含空格，不是合法的URI
+            }
+        }
+        return urls;
+    }
+}
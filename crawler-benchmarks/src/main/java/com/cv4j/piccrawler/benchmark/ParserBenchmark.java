@@ -0,0 +1,73 @@
+package com.cv4j.piccrawler.benchmark;
+
+import com.cv4j.piccrawler.parser.PicParser;
+import com.cv4j.piccrawler.parser.StreamingPicParser;
+import com.cv4j.piccrawler.parser.UrlParser;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 解析网页的耗时，网页由PageFixtures生成
+ * picParser/urlParser只测量在已经解析好的Document上提取url，jsoupAndPicParser是每个网页实际的开销(Jsoup.parse + PicParser)
+ * streamingPicParser从同样的字符串开始，不构建Document，结果与jsoupAndPicParser相同
+ *
+ * ./gradlew :crawler-benchmarks:jmh -PjmhArgs="ParserBenchmark -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParserBenchmark {
+
+    @Param({"100", "1000"})
+    public int images;
+
+    private String html;
+    private Document document;
+    private PicParser picParser;
+    private UrlParser urlParser;
+    private StreamingPicParser streamingPicParser;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+
+        html = PageFixtures.html(images, 42);
+        document = Jsoup.parse(html, PageFixtures.BASE_URI);
+        picParser = new PicParser();
+        urlParser = new UrlParser();
+        streamingPicParser = new StreamingPicParser();
+    }
+
+    @Benchmark
+    public List<String> picParser() {
+
+        return picParser.parse(document);
+    }
+
+    @Benchmark
+    public List<String> urlParser() {
+
+        return urlParser.parse(document);
+    }
+
+    @Benchmark
+    public List<String> jsoupAndPicParser() {
+
+        return picParser.parse(Jsoup.parse(html, PageFixtures.BASE_URI));
+    }
+
+    @Benchmark
+    public int streamingPicParser(Blackhole blackhole) throws IOException {
+
+        return streamingPicParser.parse(new StringReader(html), PageFixtures.BASE_URI, blackhole::consume);
+    }
+}
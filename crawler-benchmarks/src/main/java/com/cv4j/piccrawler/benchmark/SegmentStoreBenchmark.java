@@ -0,0 +1,90 @@
+package com.cv4j.piccrawler.benchmark;
+
+import com.cv4j.piccrawler.download.DownloadManager;
+import com.cv4j.piccrawler.store.SegmentStore;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每张图片一个文件和追加到SegmentStore两种保存方式的耗时，结果是每张图片的平均耗时
+ * 每次调用写入IMAGES张图片，调用之间清空目录，文件数量不会随着测量一直增长
+ *
+ * ./gradlew :crawler-benchmarks:jmh -PjmhArgs="SegmentStoreBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SegmentStoreBenchmark {
+
+    private static final int IMAGES = 1000;
+    private static final String URL = "http://img.example.com/upload/2017/11/";
+
+    @Param({"files", "segments"})
+    public String storage;
+
+    @Param({"16384"})
+    public int size;
+
+    private Path output;
+    private CloseableHttpResponse response;
+    private DownloadManager downloadManager;
+    private SegmentStore segmentStore;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+
+        output = Files.createTempDirectory("piccrawler-segments");
+        response = BenchmarkSupport.response(data, "image/png");
+
+        downloadManager = new DownloadManager();
+        downloadManager.setFileStrategy(BenchmarkSupport.fileStrategy(output));
+    }
+
+    @Setup(Level.Invocation)
+    public void open() throws IOException {
+
+        BenchmarkSupport.cleanDirectory(output);
+
+        if ("segments".equals(storage)) {
+            segmentStore = new SegmentStore(output.toFile());
+            downloadManager.setSegmentStore(segmentStore);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(IMAGES)
+    public void writeImages() throws IOException {
+
+        for (int i = 0; i < IMAGES; i++) {
+            downloadManager.writeImageToFile(response, URL + i + ".png");
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void close() {
+
+        if (segmentStore != null) {
+            segmentStore.close();
+            segmentStore = null;
+            downloadManager.setSegmentStore(null);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+
+        BenchmarkSupport.deleteDirectory(output);
+    }
+}
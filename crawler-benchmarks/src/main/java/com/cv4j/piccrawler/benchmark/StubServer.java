@@ -0,0 +1,167 @@
+package com.cv4j.piccrawler.benchmark;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * benchmark使用的本地http服务，返回合成的图片数据和网页，可以模拟网络延迟
+ * 在Linux上127.0.0.0/8都指向本机，图片地址分散到多个127.0.0.x上就相当于多个host
+ */
+public class StubServer implements Closeable {
+
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+
+    static {
+        // HttpServer默认没有设置TCP_NODELAY，响应头和响应体分两次写入时，小的响应会因为delayed ACK多等待40ms
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final byte[] image;
+    private final long latencyMillis;
+    private final int hosts;
+    private volatile byte[] page = new byte[0];
+
+    /**
+     * @param imageSize     每张图片的字节数
+     * @param latencyMillis 每个请求在返回之前等待的时间，用于模拟网络延迟
+     * @param hosts         图片地址分散到的host的数量
+     * @throws IOException
+     */
+    public StubServer(int imageSize,long latencyMillis,int hosts) throws IOException {
+
+        this.image = syntheticImage(imageSize);
+        this.latencyMillis = latencyMillis;
+        this.hosts = Math.max(1, hosts);
+
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "stub-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        server = HttpServer.create(new InetSocketAddress(0), 1024);
+        server.createContext("/img/", this::handleImage);
+        server.createContext("/page/", this::handlePage);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public int getPort() {
+
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @param count 图片的数量
+     * @return 图片的地址
+     */
+    public List<String> imageUrls(int count) {
+
+        List<String> urls = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            urls.add(imageUrl(i));
+        }
+        return urls;
+    }
+
+    public String imageUrl(int i) {
+
+        return "http://127.0.0." + (i % hosts + 1) + ":" + getPort() + "/img/" + i + ".png";
+    }
+
+    /**
+     * @param html /page/下返回的网页
+     */
+    public void setPage(String html) {
+
+        this.page = html.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public String pageUrl() {
+
+        return "http://127.0.0.1:" + getPort() + "/page/index.html";
+    }
+
+    /**
+     * @param count 网页的数量
+     * @return 不同的网页地址，返回的都是setPage()设置的网页
+     */
+    public List<String> pageUrls(int count) {
+
+        List<String> urls = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            urls.add("http://127.0.0.1:" + getPort() + "/page/" + i + ".html");
+        }
+        return urls;
+    }
+
+    /**
+     * @return 网页中图片的绝对地址使用的host
+     */
+    public String imageHost() {
+
+        return "http://127.0.0.1:" + getPort();
+    }
+
+    private void handlePage(HttpExchange exchange) throws IOException {
+
+        delay();
+
+        byte[] body = page;
+        exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    private void handleImage(HttpExchange exchange) throws IOException {
+
+        delay();
+
+        exchange.getResponseHeaders().set("Content-Type", "image/png");
+        exchange.sendResponseHeaders(200, image.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(image);
+        }
+    }
+
+    private void delay() {
+
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static byte[] syntheticImage(int size) {
+
+        byte[] data = new byte[Math.max(size, PNG_SIGNATURE.length)];
+        new Random(42).nextBytes(data);
+        System.arraycopy(PNG_SIGNATURE, 0, data, 0, PNG_SIGNATURE.length);
+        return data;
+    }
+
+    @Override
+    public void close() {
+
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,115 @@
+package com.cv4j.piccrawler.benchmark;
+
+import com.cv4j.piccrawler.utils.UrlNormalizer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 比较原来基于正则和replace的实现(LegacyUrlUtils)和UrlNormalizer，结果是每个地址的平均耗时
+ * imageUrl是PicParser处理相对地址的完整步骤：去掉"//"、转义、加上"http://"再校验
+ *
+ * ./gradlew :crawler-benchmarks:jmh -PjmhArgs="UrlNormalizerBenchmark -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UrlNormalizerBenchmark {
+
+    private static final int URLS = 1024;
+
+    private String[] urls;
+    private String[] srcs;
+    private UrlNormalizer normalizer;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+
+        urls = PageFixtures.imageUrls(URLS, 42);
+
+        // img标签中的相对地址，例如 //img.example.com/1.jpg
+        srcs = new String[URLS];
+        for (int i = 0; i < URLS; i++) {
+            srcs[i] = urls[i].replaceFirst("^https?:", "");
+        }
+
+        normalizer = UrlNormalizer.get();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(URLS)
+    public void escapeLegacy(Blackhole blackhole) {
+
+        for (String url : urls) {
+            blackhole.consume(LegacyUrlUtils.tryToEscapeUrl(url));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(URLS)
+    public void escape(Blackhole blackhole) {
+
+        for (String url : urls) {
+            blackhole.consume(normalizer.escape(url));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(URLS)
+    public void picFormatLegacy(Blackhole blackhole) {
+
+        for (String url : urls) {
+            blackhole.consume(LegacyUrlUtils.tryToGetPicFormat(url));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(URLS)
+    public void picFormat(Blackhole blackhole) {
+
+        for (String url : urls) {
+            blackhole.consume(normalizer.picFormat(url));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(URLS)
+    public void isValidLegacy(Blackhole blackhole) {
+
+        for (String url : urls) {
+            blackhole.consume(LegacyUrlUtils.isValidUrl(url));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(URLS)
+    public void isValid(Blackhole blackhole) {
+
+        for (String url : urls) {
+            blackhole.consume(normalizer.isValid(url));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(URLS)
+    public void imageUrlLegacy(Blackhole blackhole) {
+
+        for (String src : srcs) {
+            String url = "http://" + LegacyUrlUtils.tryToEscapeUrl(src.replace("//", ""));
+            blackhole.consume(LegacyUrlUtils.isValidUrl(url) ? url : null);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(URLS)
+    public void imageUrl(Blackhole blackhole) {
+
+        for (String src : srcs) {
+            blackhole.consume(normalizer.imageUrl(src));
+        }
+    }
+}
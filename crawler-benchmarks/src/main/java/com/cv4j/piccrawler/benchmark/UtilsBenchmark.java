@@ -0,0 +1,58 @@
+package com.cv4j.piccrawler.benchmark;
+
+import com.cv4j.piccrawler.utils.Utils;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每个图片地址都会经过的Utils方法，地址由PageFixtures生成，混合了各种形式，结果是每个地址的平均耗时
+ *
+ * ./gradlew :crawler-benchmarks:jmh -PjmhArgs="UtilsBenchmark -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class UtilsBenchmark {
+
+    private static final int URLS = 1024;
+
+    private String[] urls;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+
+        urls = PageFixtures.imageUrls(URLS, 42);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(URLS)
+    public void tryToEscapeUrl(Blackhole blackhole) {
+
+        for (String url : urls) {
+            blackhole.consume(Utils.tryToEscapeUrl(url));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(URLS)
+    public void tryToGetPicFormat(Blackhole blackhole) {
+
+        for (String url : urls) {
+            blackhole.consume(Utils.tryToGetPicFormat(url));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(URLS)
+    public void isValidUrl(Blackhole blackhole) {
+
+        for (String url : urls) {
+            blackhole.consume(Utils.isValidUrl(url));
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.cv4j.piccrawler.benchmark;
+
+import com.cv4j.piccrawler.PicCrawlerClient;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 比较平台线程和虚拟线程下载多张图片的吞吐量，结果的单位是 图片/秒
+ * 每轮迭代结束时打印进程的RSS，虚拟线程需要在JDK 21以上运行
+ *
+ * ./gradlew :crawler-benchmarks:jmh -PjmhArgs="VirtualThreadBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class VirtualThreadBenchmark {
+
+    private static final int BATCH = 2000;
+
+    @Param({"PLATFORM", "VIRTUAL"})
+    public String threads;
+
+    @Param({"50"})
+    public long latencyMillis;
+
+    @Param({"16384"})
+    public int imageSize;
+
+    private StubServer server;
+    private List<String> urls;
+    private Path output;
+    private PicCrawlerClient client;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+
+        // 分散到10个host上，避免只测到了连接池每个路由的上限
+        server = new StubServer(imageSize, latencyMillis, 10);
+        urls = server.imageUrls(BATCH);
+        output = Files.createTempDirectory("piccrawler-vt");
+
+        client = PicCrawlerClient.get()
+                .timeOut(30000)
+                .fileStrategy(BenchmarkSupport.fileStrategy(output));
+
+        if ("VIRTUAL".equals(threads)) {
+            client.virtualThreads();
+        }
+
+        client.build();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void downloadPics() {
+
+        client.downloadPics(urls);
+    }
+
+    @TearDown(Level.Iteration)
+    public void afterIteration() throws IOException {
+
+        System.out.println("[" + threads + "] " + BenchmarkSupport.residentMemory());
+        BenchmarkSupport.cleanDirectory(output);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+
+        server.close();
+        BenchmarkSupport.deleteDirectory(output);
+    }
+}
@@ -0,0 +1,65 @@
+package com.cv4j.piccrawler.benchmark;
+
+import com.cv4j.piccrawler.download.DownloadManager;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DownloadManager.writeImageToFile的耗时，响应体来自内存，不经过网络
+ * 包括生成文件名、写入临时文件、重命名以及释放响应，每次写入同一个文件
+ * shardDepth大于0时文件保存在子目录中，目录只在第一次写入时创建
+ *
+ * ./gradlew :crawler-benchmarks:jmh -PjmhArgs="WriteImageBenchmark -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WriteImageBenchmark {
+
+    private static final String URL = "http://img.example.com/upload/2017/11/1.png";
+
+    @Param({"16384", "1048576"})
+    public int size;
+
+    @Param({"0", "2"})
+    public int shardDepth;
+
+    private Path output;
+    private CloseableHttpResponse response;
+    private DownloadManager downloadManager;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+
+        output = Files.createTempDirectory("piccrawler-write-image");
+        response = BenchmarkSupport.response(data, "image/png");
+
+        downloadManager = new DownloadManager();
+        downloadManager.setFileStrategy(BenchmarkSupport.fixedFileStrategy(output, "image", shardDepth));
+    }
+
+    @Benchmark
+    public File writeImageToFile() throws IOException {
+
+        return downloadManager.writeImageToFile(response, URL);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+
+        BenchmarkSupport.deleteDirectory(output);
+    }
+}
@@ -1,47 +1,110 @@
 package com.cv4j.piccrawler;
 
 import com.cv4j.piccrawler.domain.Proxy;
+import com.cv4j.piccrawler.download.BufferPool;
+import com.cv4j.piccrawler.download.ContentDeduplicator;
+import com.cv4j.piccrawler.download.DedupMode;
+import com.cv4j.piccrawler.download.DedupStats;
+import com.cv4j.piccrawler.download.DiskWriter;
+import com.cv4j.piccrawler.download.DownloadExecutor;
 import com.cv4j.piccrawler.download.DownloadManager;
+import com.cv4j.piccrawler.download.ImageFilter;
+import com.cv4j.piccrawler.http.ConnectionGate;
 import com.cv4j.piccrawler.http.HttpManager;
 import com.cv4j.piccrawler.http.HttpParam;
+import com.cv4j.piccrawler.http.PolitenessScheduler;
+import com.cv4j.piccrawler.http.ProxySelector;
+import com.cv4j.piccrawler.http.TransportType;
+import com.cv4j.piccrawler.metrics.CountingInputStream;
+import com.cv4j.piccrawler.metrics.CrawlerMetrics;
+import com.cv4j.piccrawler.metrics.MetricsSnapshot;
+import com.cv4j.piccrawler.metrics.PrometheusExporter;
 import com.cv4j.piccrawler.download.strategy.FileStrategy;
 import com.cv4j.piccrawler.parser.PageParser;
 import com.cv4j.piccrawler.parser.PicParser;
+import com.cv4j.piccrawler.parser.StreamingPageParser;
+import com.cv4j.piccrawler.parser.StreamingPicParser;
+import com.cv4j.piccrawler.store.CrawlJournal;
+import com.cv4j.piccrawler.store.SeenUrlStore;
+import com.cv4j.piccrawler.store.SegmentStore;
+import com.cv4j.piccrawler.store.ValidatorIndex;
+import com.cv4j.piccrawler.utils.VirtualThreads;
 import com.safframework.tony.common.utils.IOUtils;
 import com.safframework.tony.common.utils.Preconditions;
 import io.reactivex.*;
 import io.reactivex.schedulers.Schedulers;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.cookie.BasicClientCookie;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.util.EntityUtils;
 import org.jsoup.Jsoup;
-import org.jsoup.nodes.Document;
 
 import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  * Created by tony on 2017/9/11.
+ *
+ * 每个PicCrawlerClient有各自的HttpManager和DownloadManager，多个client可以在同一个JVM中同时运行，配置互不影响
+ * 所有client共用的是连接池(maxConnections()等修改的是共用的连接池)以及CrawlerMetrics的指标
  */
 @Slf4j
 public class PicCrawlerClient {
 
+    public static final int DEFAULT_MAX_PAGES_IN_FLIGHT = 4; // 默认同时抓取的最大网页数
+
     private int repeat = 1;                    // 下载单张图片的重复次数，对下载网页中对图片无效
-    private int sleepTime = 0;                 // 每次请求url时先sleep一段时间
-    private HttpManager httpManager;           // 网络框架的管理类
-    private DownloadManager downloadManager;   // 下载的管理类
+    private int sleepTime = 0;                 // 同一个host两次请求之间的最小间隔
+    private int maxPerHost = 0;                // 同一个host同时进行的最大请求数
+    private PolitenessScheduler politenessScheduler; // 按host限速的调度器
+    private SeenUrlStore seenUrlStore;         // 已经下载过的图片url，下载多张图片时跳过
+    private ContentDeduplicator deduplicator;  // 按图片内容去重
+    private final HttpManager httpManager;         // 这个client的网络请求，header、代理、cookie只属于这个client
+    private final DownloadManager downloadManager; // 这个client的下载，文件策略、去重、图片检查只属于这个client
     private HttpParam.HttpParamBuilder httpParamBuilder = new HttpParam.HttpParamBuilder(); // 网络请求的参数builder
     private boolean isWebPage = false;         // 是否下载网页的图片
-    private PageParser pageParser;
+    private PageParser<List<String>> pageParser;         // 读取完整个网页之后解析
+    private StreamingPageParser<String> streamingParser; // streamingParse为true时边读取边解析，否则为null
+    private int maxInFlight = DownloadExecutor.DEFAULT_MAX_IN_FLIGHT; // 下载多张图片时同时下载的最大数量
+    private int queueSize = DownloadExecutor.DEFAULT_QUEUE_SIZE;      // 下载多张图片时等待队列的大小
+    private int maxPagesInFlight = DEFAULT_MAX_PAGES_IN_FLIGHT;       // 下载多个网页的图片时同时抓取的最大网页数
+    private int parseParallelism = Runtime.getRuntime().availableProcessors(); // 同时解析的最大网页数
+    private Executor downloadExecutor;         // 下载多张图片时使用的线程池
+    private boolean ownDownloadExecutor;       // downloadExecutor是否由client创建，shutdown()时只关闭client创建的线程池
+    private TransportType transportType = TransportType.BLOCKING; // 下载图片时网络请求的传输方式
+    private boolean useVirtualThreads = false; // 是否使用虚拟线程，需要JDK 21以上的运行环境
+    private ExecutorService virtualThreadExecutor;
+    private Scheduler scheduler;               // 网页的抓取、解析以及图片的下载使用的Scheduler
+    private ConnectionGate connectionGate;     // 使用虚拟线程时限制同时进行的请求数不超过连接池的容量
+    private boolean resumable = false;         // 下载中断后是否用Range请求继续下载
+    private boolean conditionalGet = false;    // 是否发送条件请求，内容没有变化时跳过下载和解析
+    private boolean streamingParse = false;    // 是否边读取边解析网页，解析出图片的地址后立即开始下载
+    private PrometheusExporter metricsExporter; // 导出指标
+    private DiskWriter diskWriter;             // 不为空时读完响应体就释放连接和下载的线程，由DiskWriter写入文件
+    private SegmentStore segmentStore;         // 不为空时图片追加到segment中，不再每张图片一个文件
+    private CrawlJournal crawlJournal;         // 下载多张图片、多个网页的图片时记录进度，中断之后可以继续
 
     private PicCrawlerClient() {
 
-        httpManager = HttpManager.get();
-        downloadManager = DownloadManager.get();
+        httpManager = new HttpManager();
+        downloadManager = new DownloadManager();
     }
 
     public static PicCrawlerClient get() {
@@ -122,7 +185,8 @@ public class PicCrawlerClient {
     }
 
     /**
-     * @param sleepTime 每次请求url时先sleep一段时间，单位是milliseconds
+     * 同一个host两次请求之间的最小间隔，由PolitenessScheduler按host限速，等待时不会占用线程，也不影响其他host的请求
+     * @param sleepTime 单位是milliseconds
      * @return
      */
     public PicCrawlerClient sleep(int sleepTime) {
@@ -134,294 +198,1474 @@ public class PicCrawlerClient {
     }
 
     /**
-     *
-     * @param proxy 代理的host
+     * @param maxPerHost 同一个host同时进行的最大请求数
      * @return
      */
-    public PicCrawlerClient addProxy(Proxy proxy) {
+    public PicCrawlerClient maxPerHost(int maxPerHost) {
 
-        if (proxy!=null) {
-            httpParamBuilder.addProxy(proxy);
+        if (maxPerHost > 0) {
+            this.maxPerHost = maxPerHost;
         }
         return this;
     }
 
     /**
-     *
-     * @param proxyList 代理的host的列表
+     * @param maxInFlight 下载多张图片时同时下载的最大数量
      * @return
      */
-    public PicCrawlerClient addProxyPool(List<Proxy> proxyList) {
+    public PicCrawlerClient maxInFlight(int maxInFlight) {
 
-        if (Preconditions.isNotBlank(proxyList)) {
-            httpParamBuilder.addProxyPool(proxyList);
+        if (maxInFlight > 0) {
+            this.maxInFlight = maxInFlight;
         }
         return this;
     }
 
     /**
-     *
-     * @param cookie 设置浏览器的cookie
+     * @param maxPagesInFlight 下载多个网页的图片时同时抓取、解析的最大网页数
      * @return
      */
-    public PicCrawlerClient cookie(BasicClientCookie cookie) {
+    public PicCrawlerClient maxPagesInFlight(int maxPagesInFlight) {
 
-        if (Preconditions.isNotBlank(cookie)) {
-            httpParamBuilder.cookie(cookie);
+        if (maxPagesInFlight > 0) {
+            this.maxPagesInFlight = maxPagesInFlight;
         }
         return this;
     }
 
     /**
-     * 添加header
-     * @param name
-     * @param value
+     * 网页的解析在Schedulers.computation()中进行，与抓取网页、下载图片的线程分开
+     * @param parseParallelism 同时解析的最大网页数，默认是CPU的核数，超过核数没有意义
      * @return
      */
-    public PicCrawlerClient addHeader(String name, String value) {
+    public PicCrawlerClient parseParallelism(int parseParallelism) {
 
-        httpParamBuilder.addHeader(name,value);
+        if (parseParallelism > 0) {
+            this.parseParallelism = parseParallelism;
+        }
         return this;
     }
 
     /**
-     * 对于CrawlerClient必须要使用builder()，设置的一些配置就无效了
+     * @param queueSize 下载多张图片时等待队列的大小，downloadPicsAsync()同时提交的图片不超过max(maxInFlight,queueSize)，
+     *                  其余的在前面的图片结束之后再提交。不小于maxInFlight时队列不会满
      * @return
      */
-    public PicCrawlerClient build() {
+    public PicCrawlerClient queueSize(int queueSize) {
 
-        httpManager.setHttpParam(httpParamBuilder.build());
+        if (queueSize > 0) {
+            this.queueSize = queueSize;
+        }
         return this;
     }
 
-    /******************* PicCrawlerClient 的配置 End *******************／
+    /**
+     * 使用自定义的线程池来下载多张图片，设置之后maxInFlight()和queueSize()就无效了
+     * @param executor
+     * @return
+     */
+    public PicCrawlerClient downloadExecutor(Executor executor) {
+
+        if (executor!=null) {
+            this.downloadExecutor = executor;
+            this.ownDownloadExecutor = false;
+        }
+        return this;
+    }
 
     /**
-     * 下载图片
-     *
-     * @param url 图片地址
+     * 每个网页的抓取、解析以及每张图片的下载都在各自的虚拟线程中运行，并发数不再受平台线程数的限制
+     * 需要JDK 21以上的运行环境，不支持时仍然使用平台线程
      * @return
      */
-    public void downloadPic(String url) {
+    public PicCrawlerClient virtualThreads() {
+
+        this.useVirtualThreads = true;
+        return this;
+    }
 
-        if (isWebPage) {
+    /**
+     * 下载多张图片(包括网页中的图片)时跳过以前下载过的url，不会发起网络请求。下载记录保存在directory中，多次运行之间共享
+     * @param directory 保存下载记录的目录
+     * @return
+     */
+    public PicCrawlerClient skipSeenUrls(String directory) {
 
-            // 如果是下载网页上的图片，则repeat不用起任何作用
-            if (sleepTime>0) {
+        return skipSeenUrls(directory,SeenUrlStore.DEFAULT_EXPECTED_URLS);
+    }
 
-                try {
-                    Thread.sleep(sleepTime);
-                } catch (InterruptedException exception) {
-                    exception.printStackTrace();
-                }
+    /**
+     * @param directory    保存下载记录的目录
+     * @param expectedUrls 预计的url数量，只在第一次创建下载记录时有效
+     * @return
+     */
+    public PicCrawlerClient skipSeenUrls(String directory,long expectedUrls) {
+
+        if (Preconditions.isNotBlank(directory)) {
+
+            try {
+                IOUtils.closeQuietly(seenUrlStore);
+                seenUrlStore = new SeenUrlStore(new File(directory),expectedUrls);
+            } catch (IOException e) {
+                log.error("can not open seen url store: "+directory,e);
             }
+        }
+        return this;
+    }
 
-            doDownloadPic(url);
+    /**
+     * 下载完成之后调用，将下载记录写入磁盘并关闭，之后下载成功的url不再记录
+     */
+    public void closeSeenUrls() {
 
-        } else {
+        IOUtils.closeQuietly(seenUrlStore);
+    }
+
+    /**
+     * 按图片内容去重，写入文件的同时计算摘要，不同url返回相同内容的图片只保存一份
+     * @param mode 重复图片的处理方式
+     * @return
+     */
+    public PicCrawlerClient dedup(DedupMode mode) {
 
-            for (int i = 0; i < repeat; i++) {
+        deduplicator = new ContentDeduplicator(mode);
+        downloadManager.setDeduplicator(deduplicator);
+        return this;
+    }
 
-                if (sleepTime>0) {
+    /**
+     * 开启断点续传，连接中断时保留已经下载的部分(.part文件)，之后用Range请求继续下载
+     * 续传的请求都使用Get请求，并且使用阻塞的传输方式
+     * @return
+     */
+    public PicCrawlerClient resumable() {
 
-                    try {
-                        Thread.sleep(sleepTime);
-                    } catch (InterruptedException exception) {
-                        exception.printStackTrace();
-                    }
-                }
+        this.resumable = true;
+        return this;
+    }
 
-                doDownloadPic(url);
-            }
+    /**
+     * @param partDirectory 存放.part文件的目录，默认在图片目录下的.parts
+     * @return
+     */
+    public PicCrawlerClient resumable(String partDirectory) {
+
+        if (Preconditions.isNotBlank(partDirectory)) {
+            downloadManager.setPartDirectory(new File(partDirectory));
         }
+        return resumable();
     }
 
     /**
-     * 具体实现图片下载的方法
-     *
-     * @param url
+     * 记录图片和网页的ETag/Last-Modified，之后的抓取发送条件请求，服务端返回304时不再写文件和解析网页
+     * 开启后图片也使用Get请求
+     * @param directory 保存校验信息的目录
+     * @return
      */
-    private void doDownloadPic(String url) {
+    public PicCrawlerClient conditionalGet(String directory) {
 
-        try {
-
-            if (Preconditions.isNotBlank(httpParamBuilder.getHeader("Referer")) || httpParamBuilder.isAutoReferer()) { // 针对需要Referer的图片，我们使用Get请求
+        if (Preconditions.isNotBlank(directory)) {
 
-                downloadManager.writeImageToFile(httpManager.createHttpWithGet(url),url);
-            } else {
-                downloadManager.writeImageToFile(httpManager.createHttpWithPost(url),url);
+            try {
+                httpManager.setValidatorIndex(new ValidatorIndex(new File(directory)));
+                conditionalGet = true;
+            } catch (IOException e) {
+                log.error("can not open validator index: "+directory,e);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
+        return this;
     }
 
     /**
-     * 下载图片
-     *
-     * @param url 图片地址
+     * 下载网页上的图片时不再读取整个网页、构建Document，而是边读取边解析，解析出图片的地址后立即开始下载
+     * 解析的结果与PicParser相同，占用的内存与网页的大小无关，适合很大的列表页
      * @return
      */
-    public void downloadPicUseRx(String url) {
+    public PicCrawlerClient streamingParse() {
 
-        Flowable<File> flowable = downloadPicToFlowable(url);
+        this.streamingParse = true;
+        return this;
+    }
 
-        if (flowable!=null) {
+    /**
+     * 写入文件之前检查响应是不是图片：状态码、Content-Type以及响应体开头的字节(JPEG、PNG、GIF、WebP、BMP、SVG)
+     * 不是图片时(例如html的错误页)直接断开连接，不再下载剩下的数据，也不生成文件，下载的结果为null
+     * 保存的文件使用识别出的图片格式作为扩展名
+     * @return
+     */
+    public PicCrawlerClient checkImage() {
 
-            flowable.subscribe();
-        }
+        return imageSize(0,0);
     }
 
     /**
-     * 下载图片
-     *
-     * @param url 图片地址
+     * 开启checkImage()，同时限制图片的大小，有Content-Length时在收到响应头时检查，否则在下载的过程中检查
+     * @param minSize 最小的字节数，例如过滤掉占位图，<=0时不限制
+     * @param maxSize 最大的字节数，<=0时不限制
      * @return
      */
-    public Flowable<File> downloadPicToFlowable(final String url) {
+    public PicCrawlerClient imageSize(long minSize,long maxSize) {
 
-        if (repeat==1) {
+        downloadManager.setImageFilter(new ImageFilter(minSize,maxSize));
+        return this;
+    }
 
-            return Flowable.create((FlowableEmitter<String> e) -> {
+    /**
+     * 使用独立的写线程写文件，见diskWriter(int,long,boolean)，默认2个写线程、最多缓存64MB、写完之后fsync
+     * @return
+     */
+    public PicCrawlerClient diskWriter() {
 
-                if (sleepTime>0) {
+        return diskWriter(DiskWriter.DEFAULT_THREADS,DiskWriter.DEFAULT_MAX_BUFFERED_BYTES,true);
+    }
 
-                    try {
-                        Thread.sleep(sleepTime);
-                    } catch (InterruptedException exception) {
-                        exception.printStackTrace();
-                    }
-                }
+    /**
+     * 使用独立的写线程写文件，磁盘很慢时(例如NFS)不会延长连接的占用时间，只对阻塞的传输方式有效
+     * 下载的线程读完响应体就释放连接，数据缓存在内存中等待写入，缓存超过maxBufferedBytes时下载的线程等待
+     * 长度未知或者超过maxBufferedBytes的图片仍然由下载的线程直接写入文件
+     * @param threads          写线程数
+     * @param maxBufferedBytes 等待写入的数据最多占用的内存
+     * @param sync             是否fsync，为true时每个文件fsync之后下载才完成
+     * @return
+     */
+    public PicCrawlerClient diskWriter(int threads,long maxBufferedBytes,boolean sync) {
 
-                e.onNext(url);
+        return diskWriter(threads,maxBufferedBytes,sync ? DiskWriter.SYNC_EACH_BATCH : DiskWriter.NO_SYNC);
+    }
 
-            }, BackpressureStrategy.BUFFER)
-                    .map(s->httpManager.createHttpWithPost(s))
-                    .map(response->downloadManager.writeImageToFile(response,url));
+    /**
+     * 使用独立的写线程写文件，见diskWriter(int,long,boolean)
+     * @param threads            写线程数
+     * @param maxBufferedBytes   等待写入的数据最多占用的内存
+     * @param syncIntervalMillis DiskWriter.SYNC_EACH_BATCH、DiskWriter.NO_SYNC，或者定期fsync的间隔，
+     *                           大于0时写完就算下载完成，崩溃时最多丢失这段时间的图片，见DiskWriter
+     * @return
+     */
+    public PicCrawlerClient diskWriter(int threads,long maxBufferedBytes,long syncIntervalMillis) {
 
-        } else if (repeat>1) {
-            return Flowable.create((FlowableEmitter<String> e) -> {
+        if (threads>0 && maxBufferedBytes>0) {
+            IOUtils.closeQuietly(diskWriter);
+            diskWriter = new DiskWriter(threads,Math.max(maxBufferedBytes,BufferPool.DEFAULT_BUFFER_SIZE),syncIntervalMillis);
+            downloadManager.setDiskWriter(diskWriter);
+        }
+        return this;
+    }
 
-                for (int i = 0; i < repeat; i++) {
+    /**
+     * 图片追加到directory中滚动的segment文件，不再每张图片一个文件，fileStrategy()、dedup()对图片无效
+     * 下载的结果是图片所在的segment文件，图片通过SegmentStore.read(url)读取
+     * 只支持阻塞的传输方式
+     * @param directory 存放segment和索引的目录
+     * @return
+     */
+    public PicCrawlerClient segments(String directory) {
 
-                    if (sleepTime>0) {
+        return segments(directory,SegmentStore.DEFAULT_SEGMENT_SIZE);
+    }
 
-                        try {
-                            Thread.sleep(sleepTime);
-                        } catch (InterruptedException exception) {
-                            exception.printStackTrace();
-                        }
-                    }
+    /**
+     * @param directory   存放segment和索引的目录
+     * @param segmentSize 每个segment的大小，超过之后写入下一个segment
+     * @return
+     */
+    public PicCrawlerClient segments(String directory,long segmentSize) {
 
-                    e.onNext(url);
-                }
+        if (Preconditions.isNotBlank(directory)) {
 
-            }, BackpressureStrategy.BUFFER)
-                    .map(s->httpManager.createHttpWithPost(s))
-                    .observeOn(Schedulers.io())
-                    .map(response->downloadManager.writeImageToFile(response,url));
+            try {
+                IOUtils.closeQuietly(segmentStore);
+                segmentStore = new SegmentStore(new File(directory),segmentSize);
+                downloadManager.setSegmentStore(segmentStore);
+            } catch (IOException e) {
+                log.error("can not open segment store: "+directory,e);
+            }
         }
+        return this;
+    }
 
-        return null;
+    /**
+     * @return segments()打开的SegmentStore，可以随机读取已经保存的图片，没有使用segments()时返回null
+     */
+    public SegmentStore getSegmentStore() {
+
+        return segmentStore;
     }
 
     /**
-     * 下载多张图片
-     * @param urls
+     * 下载完成之后调用，将segment的索引写入磁盘并关闭
      */
-    public void downloadPics(List<String> urls) {
+    public void closeSegments() {
 
-        if (Preconditions.isNotBlank(urls)) {
-            urls.stream().parallel().forEach(url->{
-
-                try {
-                    CompletableFuture.runAsync(() -> downloadPic(url)).get();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                } catch (ExecutionException e) {
-                    e.printStackTrace();
+        IOUtils.closeQuietly(segmentStore);
+    }
+
+    /**
+     * 记录downloadPics(List)、downloadWebPageImages(List)的进度，进程中途退出之后用同样的列表再次调用，
+     * 已经解析的网页不再抓取，已经下载成功的图片不再下载，下载失败的图片重新下载。
+     * 整批下载结束之后清空记录，有下载被取消时保留。同一时间只运行一批下载
+     * 使用streamingParse()时不记录网页(读取中断时无法区分)，网页会重新抓取，已经下载成功的图片仍然跳过
+     * @param directory 保存进度日志的目录
+     * @return
+     */
+    public PicCrawlerClient checkpoint(String directory) {
+
+        return checkpoint(directory,CrawlJournal.DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param directory           保存进度日志的目录
+     * @param flushIntervalMillis 进度写入文件的间隔，进程退出时最多丢失这段时间的进度，对应的图片会重新下载
+     * @return
+     */
+    public PicCrawlerClient checkpoint(String directory,long flushIntervalMillis) {
+
+        if (Preconditions.isNotBlank(directory)) {
+
+            try {
+                IOUtils.closeQuietly(crawlJournal);
+                crawlJournal = new CrawlJournal(new File(directory),flushIntervalMillis);
+
+                if (crawlJournal.getDone() > 0 || crawlJournal.getInterrupted() > 0) {
+                    log.info("resume from checkpoint: "+crawlJournal.getDone()+" images done, "+crawlJournal.getInterrupted()+" interrupted");
                 }
-            });
+            } catch (IOException e) {
+                log.error("can not open checkpoint: "+directory,e);
+            }
         }
+        return this;
     }
 
     /**
-     * 下载整个网页的全部图片
-     * @param url
+     * 将进度日志写入磁盘并关闭，未完成的一批下载在下次运行时继续
      */
-    public void downloadWebPageImages(String url) {
+    public void closeCheckpoint() {
 
-        if (Preconditions.isNotBlank(url)) {
+        IOUtils.closeQuietly(crawlJournal);
+    }
+
+    /**
+     * @return 这次运行的去重统计，没有开启dedup()时返回null
+     */
+    public DedupStats getDedupStats() {
 
-            isWebPage = true;
+        return deduplicator!=null ? deduplicator.getStats() : null;
+    }
+
+    /**
+     * @return 请求数(按状态码)、下载的字节数、各阶段的耗时分布、正在进行的请求数、代理的请求结果以及连接池的状态，是所有client的合计
+     */
+    public MetricsSnapshot getMetrics() {
 
-            pageParser = new PicParser();
+        return CrawlerMetrics.get().snapshot();
+    }
+
+    /**
+     * 定期把指标以Prometheus的文本格式写入文件，例如交给node_exporter的textfile collector
+     * @param file           例如 /var/lib/node_exporter/piccrawler.prom
+     * @param intervalMillis 写入的间隔，单位毫秒
+     * @return
+     */
+    public PicCrawlerClient exportMetrics(String file,long intervalMillis) {
 
-            Flowable.just(url)
-                    .map(s->httpManager.createHttpWithGet(s))
-                    .map(response->parseHtmlToImages(response,(PicParser)pageParser))
-                    .subscribe(urls -> downloadPics(urls),
-                            throwable-> System.out.println(throwable.getMessage()));
+        if (Preconditions.isNotBlank(file) && intervalMillis>0) {
+            getMetricsExporter().toFile(new File(file),intervalMillis);
         }
+        return this;
     }
 
     /**
-     * 下载多个网页的全部图片
-     * @param urls
+     * 在本地端口上提供Prometheus的 /metrics
+     * @param port
+     * @return
      */
-    public void downloadWebPageImages(List<String> urls) {
+    public PicCrawlerClient exportMetrics(int port) {
 
-        if (Preconditions.isNotBlank(urls)) {
+        if (port>0) {
+            try {
+                getMetricsExporter().serve(port);
+            } catch (IOException e) {
+                log.error("can not export metrics on port "+port,e);
+            }
+        }
+        return this;
+    }
 
-            isWebPage = true;
+    /**
+     * 停止导出指标
+     */
+    public void closeMetricsExporter() {
+
+        IOUtils.closeQuietly(metricsExporter);
+        metricsExporter = null;
+    }
 
-            pageParser = new PicParser();
+    private PrometheusExporter getMetricsExporter() {
 
-            Flowable.fromIterable(urls)
-                    .parallel()
-                    .map(url->httpManager.createHttpWithGet(url))
-                    .map(response->parseHtmlToImages(response,(PicParser)pageParser))
-                    .sequential()
-                    .subscribe(list -> downloadPics(list),
-                            throwable-> System.out.println(throwable.getMessage()));
+        if (metricsExporter == null) {
+            metricsExporter = new PrometheusExporter(CrawlerMetrics.get().getRegistry());
         }
+        return metricsExporter;
     }
 
     /**
-     * 将response进行解析，解析出图片的url，存放到List中
-     * @param response
-     * @param picParser
+     * @param transportType 下载图片时网络请求的传输方式，默认使用阻塞的方式
      * @return
      */
-    private List<String> parseHtmlToImages(CloseableHttpResponse response,PicParser picParser) {
+    public PicCrawlerClient transport(TransportType transportType) {
 
-        // 获取响应实体
-        HttpEntity entity = response.getEntity();
+        if (transportType!=null) {
+            this.transportType = transportType;
+        }
+        return this;
+    }
 
-        InputStream is = null;
-        String html = null;
+    /**
+     *
+     * @param proxy 代理的host
+     * @return
+     */
+    public PicCrawlerClient addProxy(Proxy proxy) {
 
-        try {
-            is = entity.getContent();
-            html = IOUtils.inputStream2String(is);
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (proxy!=null) {
+            httpParamBuilder.addProxy(proxy);
+        }
+        return this;
+    }
+
+    /**
+     *
+     * @param proxyList 代理的host的列表
+     * @return
+     */
+    public PicCrawlerClient addProxyPool(List<Proxy> proxyList) {
+
+        if (Preconditions.isNotBlank(proxyList)) {
+            httpParamBuilder.addProxyPool(proxyList);
         }
+        return this;
+    }
 
-        Document doc = Jsoup.parse(html);
+    /**
+     * 连接池是所有client共用的，这里的设置对所有client有效
+     * @param maxConnections 连接池的最大连接数，默认200
+     * @return
+     */
+    public PicCrawlerClient maxConnections(int maxConnections) {
 
-        List<String> urls = picParser.parse(doc);
+        if (maxConnections>0) {
+            HttpManager.getConnectionPool().setMaxTotal(maxConnections);
+        }
+        return this;
+    }
 
-        if (response != null) {
-            try {
-                EntityUtils.consume(response.getEntity());
-                response.close();
-            } catch (IOException e) {
-                System.err.println("释放链接错误");
-                e.printStackTrace();
-            }
+    /**
+     * @param maxPerRoute 连接池每个路由默认的最大连接数，默认20
+     * @return
+     */
+    public PicCrawlerClient maxConnectionsPerRoute(int maxPerRoute) {
+
+        if (maxPerRoute>0) {
+            HttpManager.getConnectionPool().setDefaultMaxPerRoute(maxPerRoute);
         }
+        return this;
+    }
+
+    /**
+     * 单独设置某个网站的最大连接数
+     * @param host        例如 https://img.example.com，不写端口时使用scheme的默认端口
+     * @param maxPerRoute
+     * @return
+     */
+    public PicCrawlerClient maxConnectionsPerRoute(String host,int maxPerRoute) {
 
-        return urls;
+        if (Preconditions.isNotBlank(host) && maxPerRoute>0) {
+            HttpManager.getConnectionPool().setMaxPerRoute(HttpHost.create(host),maxPerRoute);
+        }
+        return this;
+    }
+
+    /**
+     * @param keepAlive 服务端没有返回Keep-Alive时连接保持的时间，单位毫秒，默认30秒
+     * @return
+     */
+    public PicCrawlerClient keepAlive(long keepAlive) {
+
+        if (keepAlive>0) {
+            HttpManager.getConnectionPool().setKeepAlive(keepAlive);
+        }
+        return this;
+    }
+
+    /**
+     * @param idleTimeout 连接空闲超过这个时间后由后台线程关闭，单位毫秒，默认60秒
+     * @return
+     */
+    public PicCrawlerClient idleTimeout(long idleTimeout) {
+
+        if (idleTimeout>0) {
+            HttpManager.getConnectionPool().setIdleTimeout(idleTimeout);
+        }
+        return this;
+    }
+
+    /**
+     * @return 连接池的统计，leased是正在使用的连接，pending是等待连接的请求，available是空闲的连接
+     */
+    public PoolStats getPoolStats() {
+
+        return HttpManager.getConnectionPool().getTotalStats();
+    }
+
+    /**
+     * @return 每个路由的连接池统计
+     */
+    public Map<HttpRoute,PoolStats> getRoutePoolStats() {
+
+        return HttpManager.getConnectionPool().getRouteStats();
+    }
+
+    /**
+     * 使用多个代理时选择代理的策略，默认轮询
+     * @param proxySelector 例如ProxySelector.leastInFlight()、ProxySelector.latency()
+     * @return
+     */
+    public PicCrawlerClient proxySelector(ProxySelector proxySelector) {
+
+        if (proxySelector!=null) {
+            httpParamBuilder.proxySelector(proxySelector);
+        }
+        return this;
+    }
+
+    /**
+     * 使用多个代理时，后台探测代理是否可用的间隔，默认30秒
+     * @param proxyCheckInterval 单位是毫秒
+     * @return
+     */
+    public PicCrawlerClient proxyCheckInterval(long proxyCheckInterval) {
+
+        if (proxyCheckInterval>0) {
+            httpManager.setProxyCheckInterval(proxyCheckInterval);
+        }
+        return this;
+    }
+
+    /**
+     *
+     * @param cookie 设置浏览器的cookie
+     * @return
+     */
+    public PicCrawlerClient cookie(BasicClientCookie cookie) {
+
+        if (Preconditions.isNotBlank(cookie)) {
+            httpParamBuilder.cookie(cookie);
+        }
+        return this;
+    }
+
+    /**
+     * 添加header
+     * @param name
+     * @param value
+     * @return
+     */
+    public PicCrawlerClient addHeader(String name, String value) {
+
+        httpParamBuilder.addHeader(name,value);
+        return this;
+    }
+
+    /**
+     * 下载结束之后调用，关闭client创建的下载线程池、虚拟线程的executor以及限速的调度器，正在进行的下载会继续完成
+     * downloadExecutor()传入的线程池由调用方关闭。之后再次下载时会重新创建，限速需要重新调用build()
+     */
+    public void shutdown() {
+
+        if (politenessScheduler!=null) {
+            politenessScheduler.shutdown();
+            politenessScheduler = null;
+        }
+
+        if (ownDownloadExecutor) {
+
+            if (downloadExecutor instanceof DownloadExecutor) {
+                ((DownloadExecutor) downloadExecutor).shutdown();
+            }
+            downloadExecutor = null;
+            ownDownloadExecutor = false;
+        }
+
+        if (virtualThreadExecutor!=null) {
+            virtualThreadExecutor.shutdown();
+            virtualThreadExecutor = null;
+            scheduler = null;
+            connectionGate = null;
+        }
+    }
+
+    /**
+     * 对于CrawlerClient必须要使用builder()，设置的一些配置就无效了
+     * @return
+     */
+    public PicCrawlerClient build() {
+
+        httpManager.setHttpParam(httpParamBuilder.build());
+        getDownloadExecutor();
+
+        if (segmentStore!=null && transportType==TransportType.ASYNC) {
+            log.warn("segments() only supports the blocking transport, fall back to TransportType.BLOCKING");
+            transportType = TransportType.BLOCKING;
+        }
+
+        if (politenessScheduler!=null) {
+            politenessScheduler.shutdown();
+            politenessScheduler = null;
+        }
+
+        if (sleepTime > 0 || maxPerHost > 0) {
+            politenessScheduler = new PolitenessScheduler(sleepTime,maxPerHost);
+        }
+        return this;
+    }
+
+    private Executor getDownloadExecutor() {
+
+        if (downloadExecutor == null) {
+
+            if (useVirtualThreads && getVirtualThreadExecutor()!=null) {
+                downloadExecutor = virtualThreadExecutor;
+            } else {
+                downloadExecutor = new DownloadExecutor(maxInFlight,queueSize);
+            }
+            ownDownloadExecutor = true;
+        }
+        return downloadExecutor;
+    }
+
+    private ExecutorService getVirtualThreadExecutor() {
+
+        if (virtualThreadExecutor == null) {
+
+            virtualThreadExecutor = VirtualThreads.newVirtualThreadPerTaskExecutor();
+
+            if (virtualThreadExecutor == null) {
+                log.warn("virtual threads are not supported by this JVM, fall back to platform threads");
+                useVirtualThreads = false;
+            } else {
+                connectionGate = new ConnectionGate(HttpManager.getConnectionPool());
+            }
+        }
+        return virtualThreadExecutor;
+    }
+
+    /**
+     * @return 使用虚拟线程时每个任务运行在各自的虚拟线程中，否则使用Schedulers.io()
+     */
+    private Scheduler getScheduler() {
+
+        if (scheduler == null) {
+
+            if (useVirtualThreads && getVirtualThreadExecutor()!=null) {
+                scheduler = Schedulers.from(virtualThreadExecutor);
+            } else {
+                scheduler = Schedulers.io();
+            }
+        }
+        return scheduler;
+    }
+
+    /******************* PicCrawlerClient 的配置 End *******************／
+
+    /**
+     * 下载图片
+     *
+     * @param url 图片地址
+     * @return
+     */
+    public void downloadPic(String url) {
+
+        // 如果是下载网页上的图片，则repeat不用起任何作用
+        int times = isWebPage ? 1 : repeat;
+
+        for (int i = 0; i < times; i++) {
+
+            if (politenessScheduler!=null) {
+
+                submitDownload(url).join();
+            } else {
+
+                doDownloadPic(url);
+            }
+        }
+    }
+
+    /**
+     * 具体实现图片下载的方法
+     *
+     * @param url
+     * @return 下载失败时返回null
+     */
+    private File doDownloadPic(String url) {
+
+        if (transportType == TransportType.ASYNC && !resumable) {
+
+            try {
+                return doDownloadPicAsync(url).join();
+            } catch (CompletionException e) {
+                log.error("download "+url+" failed",e.getCause());
+            }
+            return null;
+        }
+
+        try {
+
+            // 针对需要Referer的图片，我们使用Get请求
+            return requestAndWrite(url,isGetRequest());
+        } catch (Exception e) {
+            log.error("download "+url+" failed",e);
+        }
+        return null;
+    }
+
+    /**
+     * 提交一次图片的下载，设置了sleep()或者maxPerHost()时由PolitenessScheduler按host限速
+     * 阻塞的传输方式在下载的线程池中进行，异步的传输方式直接发起请求
+     *
+     * @param url
+     * @return 下载完成的handle，下载失败时结果为null
+     */
+    private CompletableFuture<File> submitDownload(String url) {
+
+        Supplier<CompletableFuture<File>> task;
+
+        if (transportType == TransportType.ASYNC && !resumable) {
+
+            task = () -> doDownloadPicAsync(url).exceptionally(throwable -> {
+                log.error("download "+url+" failed",throwable);
+                return null;
+            });
+        } else if (diskWriter!=null && !resumable) { // 读完响应体就释放下载的线程，不等待写文件
+
+            Executor executor = getDownloadExecutor();
+            task = () -> CompletableFuture.supplyAsync(() -> requestAndSubmitWrite(url), executor)
+                    .thenCompose(future -> future)
+                    .exceptionally(throwable -> {
+                        log.error("download "+url+" failed",throwable);
+                        return null;
+                    });
+        } else {
+
+            Executor executor = getDownloadExecutor();
+            task = () -> CompletableFuture.supplyAsync(() -> doDownloadPic(url), executor);
+        }
+
+        return politenessScheduler!=null ? politenessScheduler.submit(url,task) : task.get();
+    }
+
+    /**
+     * 请求图片并写入文件，使用虚拟线程时先等待连接池有空闲的连接
+     *
+     * @param url
+     * @param useGet 是否使用Get请求
+     * @return
+     * @throws Exception
+     */
+    private File requestAndWrite(String url,boolean useGet) throws Exception {
+
+        Callable<File> task;
+
+        if (resumable) {
+            task = () -> downloadManager.downloadWithResume(httpManager,url);
+        } else {
+            task = () -> {
+                if (useGet || conditionalGet) {
+                    CloseableHttpResponse response = httpManager.createHttpWithGet(url);
+                    File file = downloadManager.writeImageToFile(response,url);
+                    if (file!=null) {
+                        httpManager.storeValidators(url,response);
+                    }
+                    return file;
+                }
+                return downloadManager.writeImageToFile(httpManager.createHttpWithPost(url),url);
+            };
+        }
+
+        return connectionGate!=null ? connectionGate.call(url,task) : task.call();
+    }
+
+    /**
+     * 请求图片并读取响应体，读完之后交给DiskWriter写入文件，使用虚拟线程时先等待连接池有空闲的连接
+     *
+     * @param url
+     * @return 写入完成的handle
+     */
+    private CompletableFuture<File> requestAndSubmitWrite(String url) {
+
+        boolean useGet = isGetRequest() || conditionalGet;
+
+        Callable<CompletableFuture<File>> task = () -> {
+            CloseableHttpResponse response = useGet ? httpManager.createHttpWithGet(url) : httpManager.createHttpWithPost(url);
+            return downloadManager.writeImageToFileAsync(response,url).thenApply(file -> {
+                if (file!=null && useGet) {
+                    httpManager.storeValidators(url,response);
+                }
+                return file;
+            });
+        };
+
+        try {
+            return connectionGate!=null ? connectionGate.call(url,task) : task.call();
+        } catch (Exception e) {
+            CompletableFuture<File> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    /**
+     * 请求并读取网页，使用虚拟线程时先等待连接池有空闲的连接
+     * 响应的ETag/Last-Modified在网页解析成功之后才记录，见parsePage()
+     *
+     * @param url
+     * @return 网页与上次抓取时相同或者读取失败时返回null
+     * @throws Exception
+     */
+    private Page requestPage(String url) throws Exception {
+
+        Callable<Page> task = () -> {
+            CloseableHttpResponse response = httpManager.createHttpWithGet(url);
+            String html = readHtml(response);
+            return html!=null ? new Page(url,html,response) : null;
+        };
+
+        return connectionGate!=null ? connectionGate.call(url,task) : task.call();
+    }
+
+    /**
+     * 使用异步的网络请求下载图片，响应体由NIO线程直接写入文件
+     *
+     * @param url
+     * @return
+     */
+    private CompletableFuture<File> doDownloadPicAsync(String url) {
+
+        if (isGetRequest() || conditionalGet) {
+
+            return httpManager.createAsyncHttpWithGet(url,downloadManager.newImageConsumer(url));
+        } else {
+            return httpManager.createAsyncHttpWithPost(url,downloadManager.newImageConsumer(url));
+        }
+    }
+
+    private boolean isGetRequest() {
+
+        return Preconditions.isNotBlank(httpParamBuilder.getHeader("Referer")) || httpParamBuilder.isAutoReferer();
+    }
+
+    /**
+     * 下载图片
+     *
+     * @param url 图片地址
+     * @return
+     */
+    public void downloadPicUseRx(String url) {
+
+        Flowable<File> flowable = downloadPicToFlowable(url);
+
+        if (flowable!=null) {
+
+            flowable.subscribe();
+        }
+    }
+
+    /**
+     * 下载图片
+     *
+     * @param url 图片地址
+     * @return
+     */
+    public Flowable<File> downloadPicToFlowable(final String url) {
+
+        if (politenessScheduler!=null) { // 按host限速，等待期间不占用线程
+
+            return Flowable.range(0,repeat)
+                    .flatMap(i -> toFlowable(submitDownload(url)),maxInFlight);
+        }
+
+        if (useVirtualThreads || resumable || conditionalGet) { // 每次下载都在各自的(虚拟)线程中进行，续传和条件请求需要自己发起请求
+
+            return Flowable.range(0,repeat)
+                    .flatMapMaybe(i -> Maybe.fromCallable(() -> requestAndWrite(url,false))
+                            .subscribeOn(getScheduler()),false,maxInFlight);
+        }
+
+        if (repeat==1) {
+
+            return Maybe.fromCallable(() -> downloadManager.writeImageToFile(httpManager.createHttpWithPost(url),url))
+                    .toFlowable();
+
+        } else if (repeat>1) { // 请求和写文件在同一个任务中，同时持有的连接不超过maxInFlight
+
+            return Flowable.range(0,repeat)
+                    .flatMapMaybe(i -> Maybe.fromCallable(() -> downloadManager.writeImageToFile(httpManager.createHttpWithPost(url),url))
+                            .subscribeOn(getScheduler()),false,maxInFlight);
+        }
+
+        return null;
+    }
+
+    /**
+     * 下载成功的url记录到SeenUrlStore中
+     * @param url
+     * @param file
+     * @return
+     */
+    private File markSeen(String url,File file) {
+
+        if (file!=null) {
+
+            try {
+                seenUrlStore.add(url);
+            } catch (IOException e) {
+                log.error("can not record seen url: "+url,e);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * 提交一张图片的下载，下载成功时记录到SeenUrlStore，开启checkpoint()时记录开始和成功
+     * 下载失败或者被取消的图片不记录结束，下次继续时重新下载
+     * @param url
+     * @return
+     */
+    private CompletableFuture<File> submitAndRecord(String url) {
+
+        if (crawlJournal==null) {
+            return seenUrlStore!=null ? submitDownload(url).thenApply(file -> markSeen(url,file)) : submitDownload(url);
+        }
+
+        record(url,false);
+
+        return submitDownload(url).whenComplete((file,throwable) -> {
+
+            if (file!=null && seenUrlStore!=null) {
+                markSeen(url,file);
+            }
+
+            if (throwable==null && file!=null) {
+                record(url,true);
+            } else {
+                crawlJournal.failed(url);
+            }
+        });
+    }
+
+    /**
+     * 在CrawlJournal中记录图片开始或者结束下载
+     * @param url
+     * @param done
+     */
+    private void record(String url,boolean done) {
+
+        try {
+            if (done) {
+                crawlJournal.done(url);
+            } else {
+                crawlJournal.started(url);
+            }
+        } catch (IOException e) {
+            log.error("can not record checkpoint: "+url,e);
+        }
+    }
+
+    /**
+     * 整批下载结束，清空CrawlJournal
+     */
+    private void finishCheckpoint() {
+
+        try {
+            crawlJournal.finish();
+        } catch (IOException e) {
+            log.error("can not clear checkpoint",e);
+        }
+    }
+
+    /**
+     * 将CompletableFuture转换成Flowable，结果为null时不发射数据
+     * @param future
+     * @return
+     */
+    private static <T> Flowable<T> toFlowable(CompletableFuture<T> future) {
+
+        return Maybe.<T>create(emitter -> {
+
+            emitter.setCancellable(() -> future.cancel(false));
+
+            future.whenComplete((t,throwable) -> {
+
+                if (throwable!=null) {
+                    emitter.onError(throwable);
+                } else if (t!=null) {
+                    emitter.onSuccess(t);
+                } else {
+                    emitter.onComplete();
+                }
+            });
+        }).toFlowable();
+    }
+
+    /**
+     * 下载多张图片，等待全部图片下载完成之后返回，下载失败的图片记录日志并跳过
+     * 不需要等待时使用downloadPicsAsync()
+     * @param urls
+     */
+    public void downloadPics(List<String> urls) {
+
+        try {
+            downloadPicsAsync(urls).join();
+        } catch (CompletionException e) {
+            log.error("download pics failed",e.getCause());
+        }
+    }
+
+    /**
+     * 下载多张图片，使用独立的线程池，不会阻塞调用方
+     * 同时提交的图片不超过max(maxInFlight,queueSize)，其余的在前面的图片结束之后由下载的线程提交。
+     * 结束的图片的线程可能还没有回到线程池，所以线程池中的任务最多是提交的数量加上maxInFlight，
+     * queueSize不小于maxInFlight(默认64和1024)时下载线程池的队列不会满，下载不会在调用方的线程中进行。
+     * 使用downloadExecutor()共用的线程池被其他任务占满时，仍然按照它的拒绝策略处理
+     * @param urls
+     * @return 全部图片下载完成的handle，需要等待下载完成可以调用join()
+     */
+    public CompletableFuture<Void> downloadPicsAsync(List<String> urls) {
+
+        if (Preconditions.isBlank(urls)) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // 如果是下载网页上的图片，则repeat不用起任何作用
+        int times = isWebPage ? 1 : repeat;
+
+        List<String> pending = new ArrayList<>();
+        for (String url:urls) {
+
+            for (int i = 0; i < times; i++) {
+                if (shouldDownload(url)) {
+                    pending.add(url);
+                }
+            }
+        }
+
+        CompletableFuture<Void> all = new BatchSubmitter(pending,Math.max(maxInFlight,queueSize)).start();
+
+        // 全部结束之后清空进度，有下载被取消或者异常结束时保留进度，下次继续
+        return crawlJournal!=null ? all.whenComplete((v,throwable) -> {
+            if (throwable==null) {
+                finishCheckpoint();
+            }
+        }) : all;
+    }
+
+    /**
+     * @param url
+     * @return 以前下载过的图片返回false，不再请求
+     */
+    private boolean shouldDownload(String url) {
+
+        if (seenUrlStore!=null && seenUrlStore.contains(url)) {
+            log.debug("skip seen url: "+url);
+            return false;
+        }
+
+        if (crawlJournal!=null && crawlJournal.isDone(url)) {
+            log.debug("skip checkpointed url: "+url);
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * downloadPicsAsync()的一批图片，最多window张同时提交，每结束一张再提交下一张
+     * 提交在循环中进行，下载同步完成时也不会递归
+     */
+    private class BatchSubmitter {
+
+        private final Iterator<String> urls;
+        private final AtomicInteger permits;                // 还可以提交的图片数
+        private final AtomicInteger wip = new AtomicInteger(); // 正在提交的线程以及提交期间再次请求提交的次数
+        private final AtomicInteger remaining;              // 还没有结束的图片数
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private final CompletableFuture<Void> all = new CompletableFuture<>();
+
+        BatchSubmitter(List<String> urls,int window) {
+
+            this.urls = urls.iterator();
+            this.permits = new AtomicInteger(Math.max(1,window));
+            this.remaining = new AtomicInteger(urls.size());
+        }
+
+        CompletableFuture<Void> start() {
+
+            if (remaining.get()==0) {
+                all.complete(null);
+            } else {
+                drain();
+            }
+            return all;
+        }
+
+        /**
+         * 只有一个线程在提交，其他线程只增加wip，由正在提交的线程再检查一次
+         */
+        private void drain() {
+
+            if (wip.getAndIncrement()!=0) return;
+
+            do {
+                while (permits.get()>0 && urls.hasNext()) {
+
+                    permits.decrementAndGet();
+                    String url = urls.next();
+
+                    CompletableFuture<File> future;
+                    try {
+                        future = submitAndRecord(url);
+                    } catch (RuntimeException e) { // 例如线程池已经关闭
+                        log.error("submit "+url+" failed",e);
+                        future = new CompletableFuture<>();
+                        future.completeExceptionally(e);
+                    }
+                    future.whenComplete((file,throwable) -> finished(throwable));
+                }
+            } while (wip.decrementAndGet()!=0);
+        }
+
+        private void finished(Throwable throwable) {
+
+            if (throwable!=null) {
+                failure.compareAndSet(null,throwable);
+            }
+
+            if (remaining.decrementAndGet()==0) {
+
+                Throwable first = failure.get();
+                if (first!=null) { // 与allOf()相同，有图片异常结束时整批异常结束
+                    all.completeExceptionally(first instanceof CompletionException ? first : new CompletionException(first));
+                } else {
+                    all.complete(null);
+                }
+                return;
+            }
+
+            permits.incrementAndGet();
+            drain();
+        }
+    }
+
+    /**
+     * 下载整个网页的全部图片，全部下载结束之后才返回
+     * 不需要等待时使用downloadWebPageImagesToFlowable(url)并订阅
+     * @param url
+     */
+    public void downloadWebPageImages(String url) {
+
+        if (Preconditions.isNotBlank(url)) {
+
+            downloadWebPageImagesToFlowable(url)
+                    .blockingSubscribe(file -> {},
+                            throwable-> log.error("crawl "+url+" failed",throwable));
+        }
+    }
+
+    /**
+     * 下载多个网页的全部图片，全部下载结束之后才返回
+     * 不需要等待时使用downloadWebPageImagesToFlowable(urls)并订阅
+     * @param urls
+     */
+    public void downloadWebPageImages(List<String> urls) {
+
+        if (Preconditions.isNotBlank(urls)) {
+
+            downloadWebPageImagesToFlowable(urls)
+                    .blockingSubscribe(file -> {},
+                            throwable-> log.error("crawl pages failed",throwable));
+        }
+    }
+
+    /**
+     * 下载整个网页的全部图片
+     * @param url
+     * @return 下载成功的图片，见downloadWebPageImagesToFlowable(List)
+     */
+    public Flowable<File> downloadWebPageImagesToFlowable(String url) {
+
+        if (Preconditions.isBlank(url)) {
+            return Flowable.empty();
+        }
+
+        return downloadWebPageImagesToFlowable(Collections.singletonList(url));
+    }
+
+    /**
+     * 下载多个网页的全部图片，订阅之后才开始抓取
+     * 同时抓取的网页不超过maxPagesInFlight()，同时下载的图片不超过maxInFlight()，
+     * 下游没有请求数据时不再开始新的下载，也不再抓取新的网页。dispose之后不再开始新的请求
+     * 抓取失败的网页和下载失败的图片会记录日志并跳过，不会中止整个Flowable
+     * @param urls
+     * @return 下载成功的图片，没有顺序
+     */
+    public Flowable<File> downloadWebPageImagesToFlowable(List<String> urls) {
+
+        if (Preconditions.isBlank(urls)) {
+            return Flowable.empty();
+        }
+
+        isWebPage = true;
+
+        pageParser = new PicParser();
+        streamingParser = streamingParse ? new StreamingPicParser() : null;
+
+        Flowable<String> pageUrls = Flowable.fromIterable(urls);
+        Flowable<String> picUrls;
+
+        if (crawlJournal!=null) { // 上次已经解析过的网页不再抓取
+            pageUrls = pageUrls.filter(url -> crawlJournal.pageImages(url)==null);
+        }
+
+        if (streamingParser!=null) { // 边读取边解析，抓取和解析在同一个任务中
+
+            picUrls = pageUrls.flatMap(url -> streamPageImageUrls(url),maxPagesInFlight);
+        } else { // 抓取网页在getScheduler()中进行，解析在Schedulers.computation()中进行，两者的并发数分别设置
+
+            picUrls = pageUrls
+                    .flatMapMaybe(url -> fetchPage(url),false,maxPagesInFlight)
+                    .flatMap(page -> parsePage(page),parseParallelism);
+        }
+
+        if (crawlJournal==null) {
+            return picUrls.flatMap(picUrl -> picToFlowable(picUrl),maxInFlight);
+        }
+
+        // 先下载上次解析过的网页中还没有结束的图片，全部结束之后清空进度
+        Flowable<String> resumed = Flowable.fromIterable(urls)
+                .concatMapIterable(url -> {
+                    List<String> images = crawlJournal.pageImages(url);
+                    return images!=null ? images : Collections.<String>emptyList();
+                });
+
+        return resumed.concatWith(picUrls)
+                .flatMap(picUrl -> picToFlowable(picUrl),maxInFlight)
+                .doOnComplete(() -> finishCheckpoint());
+    }
+
+    /**
+     * 在CrawlJournal中记录网页解析出的图片，下次继续时不再抓取这个网页
+     * @param url
+     * @param images
+     */
+    private void recordPage(String url,List<String> images) {
+
+        try {
+            crawlJournal.pageParsed(url,images);
+        } catch (IOException e) {
+            log.error("can not record checkpoint: "+url,e);
+        }
+    }
+
+    /**
+     * 抓取网页，在getScheduler()中进行
+     * @param url
+     * @return 网页的内容，网页与上次抓取时相同或者抓取失败时不发射数据
+     */
+    private Maybe<Page> fetchPage(String url) {
+
+        return Maybe.fromCallable(() -> requestPage(url))
+                .subscribeOn(getScheduler())
+                .onErrorResumeNext(throwable -> {
+                    log.error("crawl "+url+" failed",throwable);
+                    return Maybe.empty();
+                });
+    }
+
+    /**
+     * 解析网页中图片的url，在Schedulers.computation()中进行
+     * 解析成功之后才记录网页的ETag/Last-Modified，读取或者解析失败的网页下次仍然完整地抓取
+     * @param page
+     * @return 解析失败时记录日志并结束
+     */
+    private Flowable<String> parsePage(Page page) {
+
+        return Flowable.fromCallable(() -> {
+                    List<String> images = pageParser.parse(Jsoup.parse(page.html));
+                    if (crawlJournal!=null) {
+                        recordPage(page.url,images);
+                    }
+                    httpManager.storeValidators(page.url,page.response);
+                    return images;
+                })
+                .subscribeOn(Schedulers.computation())
+                .flatMapIterable(list -> list)
+                .onErrorResumeNext(throwable -> {
+                    log.error("parse page failed",throwable);
+                    return Flowable.empty();
+                });
+    }
+
+    /**
+     * 边读取边解析网页，在getScheduler()中进行，使用虚拟线程时先等待连接池有空闲的连接
+     * 每解析出一个url就发射，不等网页读取完。一个网页的url在下载之前缓存在内存中，与PicParser返回的List相同
+     * @param url
+     * @return 抓取失败时记录日志并结束
+     */
+    private Flowable<String> streamPageImageUrls(String url) {
+
+        return Flowable.<String>create(emitter -> {
+
+            Callable<Void> task = () -> {
+                CloseableHttpResponse response = httpManager.createHttpWithGet(url);
+                if (streamHtmlToImages(response,streamingParser,emitter::onNext)) {
+                    httpManager.storeValidators(url,response); // 只在完整地解析到结尾时记录
+                }
+                return null;
+            };
+
+            if (connectionGate!=null) {
+                connectionGate.call(url,task);
+            } else {
+                task.call();
+            }
+            emitter.onComplete();
+        }, BackpressureStrategy.BUFFER)
+                .subscribeOn(getScheduler())
+                .onErrorResumeNext(throwable -> {
+                    log.error("crawl "+url+" failed",throwable);
+                    return Flowable.empty();
+                });
+    }
+
+    /**
+     * 下载一张网页上的图片，订阅时才提交下载，以前下载过的图片不再请求
+     * @param url
+     * @return 下载失败时不发射数据
+     */
+    private Flowable<File> picToFlowable(String url) {
+
+        if (seenUrlStore!=null && seenUrlStore.contains(url)) {
+            log.debug("skip seen url: "+url);
+            return Flowable.empty();
+        }
+
+        if (crawlJournal!=null && crawlJournal.isDone(url)) {
+            log.debug("skip checkpointed url: "+url);
+            return Flowable.empty();
+        }
+
+        return Flowable.defer(() -> toFlowable(submitAndRecord(url)));
+    }
+
+    /**
+     * 读取response中的网页，之后释放连接，网页的解析在另外的线程中进行
+     * @param response
+     * @return 网页与上次抓取时相同、读取失败或者长度与Content-Length不符时返回null
+     */
+    private String readHtml(CloseableHttpResponse response) {
+
+        if (response==null) return null;
+
+        if (HttpManager.isNotModified(response)) { // 网页与上次抓取时相同，上面的图片已经下载过
+            IOUtils.closeQuietly(response);
+            return null;
+        }
+
+        // 获取响应实体
+        HttpEntity entity = response.getEntity();
+
+        CountingInputStream is = null;
+        String html = null;
+
+        try {
+            is = new CountingInputStream(entity.getContent());
+            html = IOUtils.inputStream2String(is);
+            CrawlerMetrics.get().recordPage(is.getCount());
+
+            if (entity.getContentLength()>=0 && is.getCount()!=entity.getContentLength()) { // 连接中途断开，网页不完整
+                log.error("read page failed: "+is.getCount()+" of "+entity.getContentLength()+" bytes");
+                html = null;
+            }
+        } catch (IOException e) {
+            log.error("read page failed",e);
+        } finally {
+            try {
+                EntityUtils.consume(entity);
+                response.close();
+            } catch (IOException e) {
+                log.warn("释放链接错误",e);
+            }
+        }
+
+        return html;
+    }
+
+    /**
+     * 边读取边解析response，每解析出一张图片的url就交给consumer，不保存整个网页
+     * 网页的编码使用Content-Type中的charset，没有时使用UTF-8
+     * @param response
+     * @param parser
+     * @param consumer
+     * @return 是否没有错误地解析到了网页的结尾，304时返回false
+     */
+    private boolean streamHtmlToImages(CloseableHttpResponse response,StreamingPageParser<String> parser,Consumer<String> consumer) {
+
+        if (HttpManager.isNotModified(response)) { // 网页与上次抓取时相同，上面的图片已经下载过
+            IOUtils.closeQuietly(response);
+            return false;
+        }
+
+        HttpEntity entity = response.getEntity();
+        ContentType contentType = ContentType.getOrDefault(entity);
+        Charset charset = contentType.getCharset()!=null ? contentType.getCharset() : StandardCharsets.UTF_8;
+
+        CountingInputStream is = null;
+        boolean complete = false;
+
+        try {
+            is = new CountingInputStream(entity.getContent());
+            parser.parse(new InputStreamReader(is,charset),"",consumer);
+            complete = entity.getContentLength()<0 || is.getCount()==entity.getContentLength();
+        } catch (IOException e) {
+            log.error("read page failed",e);
+        } finally {
+            if (is!=null) {
+                CrawlerMetrics.get().recordPage(is.getCount());
+            }
+
+            try {
+                EntityUtils.consume(entity);
+                response.close();
+            } catch (IOException e) {
+                log.warn("释放链接错误",e);
+            }
+        }
+
+        return complete;
+    }
+
+    /**
+     * 读取完成的网页，解析成功之后用response记录ETag/Last-Modified
+     */
+    private static class Page {
+
+        private final String url;
+        private final String html;
+        private final HttpResponse response;
+
+        private Page(String url,String html,HttpResponse response) {
+
+            this.url = url;
+            this.html = html;
+            this.response = response;
+        }
     }
- }
\ No newline at end of file
+}
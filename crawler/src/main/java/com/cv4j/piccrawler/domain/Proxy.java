@@ -1,10 +1,10 @@
 package com.cv4j.piccrawler.domain;
 
 import com.safframework.tony.common.utils.Preconditions;
-import lombok.Getter;
-import lombok.Setter;
 import org.apache.http.HttpHost;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Created by tony on 2017/11/14.
  */
@@ -13,10 +13,13 @@ public class Proxy {
     private String ip;
     private int port;
     private String scheme;
+    private HttpHost httpHost;
+
+    private final AtomicInteger failureTimes = new AtomicInteger();//连续失败的次数，请求和探测都会更新
+    private final AtomicInteger inFlight = new AtomicInteger();    //正在进行的请求数
+    private volatile long latencyEwma;                             //请求耗时的指数加权平均，单位纳秒，0表示还没有样本
 
-    @Getter
-    @Setter
-    private int failureTimes;//请求失败次数
+    private static final double EWMA_ALPHA = 0.3;
 
     public Proxy(String ip,int port) {
         this.ip = ip;
@@ -34,13 +37,76 @@ public class Proxy {
         }
     }
 
+    public int getFailureTimes() {
+
+        return failureTimes.get();
+    }
+
+    public void setFailureTimes(int failureTimes) {
+
+        this.failureTimes.set(failureTimes);
+    }
+
+    /**
+     * 记录一次失败
+     * @return 连续失败的次数
+     */
+    public int recordFailure() {
+
+        return failureTimes.incrementAndGet();
+    }
+
+    /**
+     * 通过代理的请求成功，清零失败次数
+     */
+    public void recordSuccess() {
+
+        if (failureTimes.get() != 0) {
+            failureTimes.set(0);
+        }
+    }
+
+    /**
+     * 通过代理的请求开始时调用
+     * @return 开始的时间，请求结束时传给requestFinished()
+     */
+    public long requestStarted() {
+
+        inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * 通过代理的请求结束时调用，无论成功还是失败，失败的耗时同样计入平均耗时
+     * @param startNanos requestStarted()的返回值
+     */
+    public void requestFinished(long startNanos) {
+
+        inFlight.decrementAndGet();
+
+        // 并发更新时可能丢失个别样本，对评分没有影响，因此不加锁
+        long sample = System.nanoTime() - startNanos;
+        long old = latencyEwma;
+        latencyEwma = old == 0 ? Math.max(sample, 1) : Math.max(old + (long) (EWMA_ALPHA * (sample - old)), 1);
+    }
+
+    public int getInFlight() {
+
+        return inFlight.get();
+    }
+
+    public long getLatencyEwma() {
+
+        return latencyEwma;
+    }
+
     /**
      * 是否丢弃代理
      * 失败次数大于３，丢弃
      */
     public boolean isDiscardProxy(){
 
-        return failureTimes>3;
+        return failureTimes.get()>3;
     }
 
     /**
@@ -49,7 +115,10 @@ public class Proxy {
      */
     public HttpHost toHttpHost() {
 
-        return new HttpHost(ip,port,scheme);
+        if (httpHost==null) { // HttpHost不可变，可以复用
+            httpHost = new HttpHost(ip,port,scheme);
+        }
+        return httpHost;
     }
 
     @Override
@@ -0,0 +1,58 @@
+package com.cv4j.piccrawler.download;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * 堆外ByteBuffer的池，写文件时复用，避免每张图片都分配新的buffer
+ * FileChannel写入堆外的buffer时不需要再复制到临时的堆外buffer
+ */
+public class BufferPool {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+    public static final int DEFAULT_MAX_POOLED = 256;
+
+    private final int bufferSize;
+    private final ArrayBlockingQueue<ByteBuffer> pool;
+
+    /**
+     * @param bufferSize 每个buffer的大小
+     * @param maxPooled  池中最多保留的buffer数量，超过的buffer用完之后交给GC回收
+     */
+    public BufferPool(int bufferSize,int maxPooled) {
+
+        this.bufferSize = bufferSize;
+        this.pool = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    public static BufferPool get() {
+
+        return Holder.POOL;
+    }
+
+    public ByteBuffer acquire() {
+
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+
+        if (buffer != null && buffer.capacity() == bufferSize) {
+            buffer.clear();
+            pool.offer(buffer);
+        }
+    }
+
+    public int getBufferSize() {
+
+        return bufferSize;
+    }
+
+    private static class Holder {
+        private static final BufferPool POOL = new BufferPool(DEFAULT_BUFFER_SIZE,DEFAULT_MAX_POOLED);
+    }
+}
@@ -0,0 +1,123 @@
+package com.cv4j.piccrawler.download;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按图片内容去重
+ * 摘要在写入文件的同时计算(ImageFileWriter或者ImageFileConsumer写入时更新)，去重时不需要再次读取文件
+ */
+@Slf4j
+public class ContentDeduplicator {
+
+    private static final String ALGORITHM = "SHA-256";
+
+    private final DedupMode mode;
+    private final ConcurrentHashMap<String,File> index = new ConcurrentHashMap<>();
+
+    private final LongAdder files = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder bytesSaved = new LongAdder();
+
+    public ContentDeduplicator(DedupMode mode) {
+
+        this.mode = mode != null ? mode : DedupMode.LINK;
+    }
+
+    /**
+     * @return 计算图片摘要的MessageDigest，每张图片使用一个新的实例
+     */
+    public static MessageDigest newDigest() {
+
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " is not supported", e);
+        }
+    }
+
+    /**
+     * 对刚写完的文件进行去重
+     * @param file   刚写完的文件
+     * @param digest 写入文件时计算的摘要
+     * @return 内容重复并且使用DROP时返回第一次保存的文件，否则返回file
+     */
+    public File deduplicate(File file,byte[] digest) {
+
+        long length = file.length();
+        files.increment();
+        bytes.add(length);
+
+        String key = Base64.getEncoder().encodeToString(digest);
+
+        File existing = index.putIfAbsent(key, file);
+        if (existing == null) return file;
+
+        if (!existing.exists()) { // 第一次保存的文件已经被删除，当前的文件作为新的原件
+            index.put(key, file);
+            return file;
+        }
+
+        switch (mode) {
+
+            case DROP:
+
+                if (file.delete()) {
+                    duplicates.increment();
+                    bytesSaved.add(length);
+                    return existing;
+                }
+                return file;
+
+            case LINK:
+            default:
+
+                if (link(file.toPath(), existing.toPath())) {
+                    duplicates.increment();
+                    bytesSaved.add(length);
+                }
+                return file;
+        }
+    }
+
+    /**
+     * 先在临时路径创建硬链接，再原子替换重复的文件，创建硬链接失败(例如跨分区)时保留原来的文件
+     */
+    private boolean link(Path duplicate,Path original) {
+
+        Path tmp = duplicate.resolveSibling(duplicate.getFileName() + ".link");
+
+        try {
+            Files.deleteIfExists(tmp);
+            Files.createLink(tmp, original);
+            Files.move(tmp, duplicate, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            log.warn("can not link " + duplicate + " to " + original + ", keep the copy", e);
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException ignored) {
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return 这次运行的去重统计
+     */
+    public DedupStats getStats() {
+
+        return new DedupStats(files.sum(), duplicates.sum(), bytes.sum(), bytesSaved.sum());
+    }
+}
@@ -0,0 +1,10 @@
+package com.cv4j.piccrawler.download;
+
+/**
+ * 内容重复的图片的处理方式
+ */
+public enum DedupMode {
+
+    LINK,   // 重复的图片以硬链接的方式指向第一次保存的文件，文件名保持不变但不占用额外的磁盘空间
+    DROP    // 直接删除重复的图片，返回第一次保存的文件
+}
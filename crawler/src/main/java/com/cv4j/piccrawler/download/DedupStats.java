@@ -0,0 +1,37 @@
+package com.cv4j.piccrawler.download;
+
+import lombok.Getter;
+
+/**
+ * 一次运行中按内容去重的统计
+ */
+@Getter
+public class DedupStats {
+
+    private final long files;        // 写入的图片数量
+    private final long duplicates;   // 内容重复的图片数量
+    private final long bytes;        // 写入的字节数
+    private final long bytesSaved;   // 去重节省的字节数
+
+    public DedupStats(long files,long duplicates,long bytes,long bytesSaved) {
+
+        this.files = files;
+        this.duplicates = duplicates;
+        this.bytes = bytes;
+        this.bytesSaved = bytesSaved;
+    }
+
+    /**
+     * @return 重复的图片占全部图片的比例
+     */
+    public double getDuplicateRatio() {
+
+        return files == 0 ? 0 : (double) duplicates / files;
+    }
+
+    @Override
+    public String toString() {
+
+        return "files="+files+",duplicates="+duplicates+",bytes="+bytes+",bytesSaved="+bytesSaved+",duplicateRatio="+String.format("%.4f",getDuplicateRatio());
+    }
+}
@@ -0,0 +1,441 @@
+package com.cv4j.piccrawler.download;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 独立的写文件阶段，磁盘很慢(例如NFS)时不会延长连接的占用时间
+ *
+ * 1. 下载的线程把响应体读入BufferPool的buffer之后立即释放连接，然后把文件交给写线程
+ * 2. 缓存的数据不超过maxBufferedBytes，buffer不够时下载的线程等待，从而对抓取形成背压
+ * 3. 写线程每次从队列中取出多个文件，全部写完之后再重命名，fsync的时机由syncIntervalMillis决定
+ *
+ * fsync的方式，越往下吞吐量越高，机器掉电或者系统崩溃时可能丢失的图片越多:
+ * SYNC_EACH_BATCH 每个文件fsync之后再重命名，每批每个目录fsync一次，下载完成时图片已经写入磁盘
+ * 大于0          重命名之后下载就完成，写线程每隔syncIntervalMillis一起fsync这段时间的文件和目录，
+ *                崩溃时最多丢失这段时间的图片，文件可能已经存在但是长度为0或者内容不完整
+ * NO_SYNC        不fsync，由操作系统决定何时写入磁盘，进程退出不会丢失，系统崩溃时丢失的图片没有上限
+ *
+ * 长度未知或者超过maxBufferedBytes的图片不经过DiskWriter，仍然由下载的线程直接写入文件，不fsync
+ */
+@Slf4j
+public class DiskWriter implements Closeable {
+
+    public static final int DEFAULT_THREADS = 2;                               // 默认的写线程数
+    public static final long DEFAULT_MAX_BUFFERED_BYTES = 64L * 1024 * 1024;   // 默认最多缓存64MB
+    public static final int DEFAULT_BATCH_SIZE = 32;                           // 每次最多一起写入的文件数
+
+    public static final long SYNC_EACH_BATCH = 0; // 每个文件写完之后立即fsync
+    public static final long NO_SYNC = -1;        // 不fsync
+
+    private static final long POLL_MILLIS = 100;
+    private static final int MAX_UNSYNCED_FILES = 4096; // 定期fsync时，等待fsync的文件超过这个数量时提前fsync
+
+    private final BufferPool bufferPool;
+    private final Semaphore permits;        // 可以使用的buffer数量
+    private final int maxBuffers;
+    private final BlockingQueue<Task> queue;
+    private final int batchSize;
+    private final long syncIntervalNanos;
+    private final Thread[] threads;
+    private volatile boolean closed;
+
+    public DiskWriter() {
+
+        this(DEFAULT_THREADS,DEFAULT_MAX_BUFFERED_BYTES,true);
+    }
+
+    /**
+     * @param threads          写线程数，磁盘的并发能力有限，一般1-4个
+     * @param maxBufferedBytes 等待写入的数据最多占用的内存
+     * @param sync             为true时使用SYNC_EACH_BATCH，图片写入磁盘之后下载才算完成，为false时使用NO_SYNC
+     */
+    public DiskWriter(int threads,long maxBufferedBytes,boolean sync) {
+
+        this(threads,maxBufferedBytes,sync ? SYNC_EACH_BATCH : NO_SYNC);
+    }
+
+    /**
+     * @param threads            写线程数，磁盘的并发能力有限，一般1-4个
+     * @param maxBufferedBytes   等待写入的数据最多占用的内存
+     * @param syncIntervalMillis SYNC_EACH_BATCH、NO_SYNC，或者定期fsync的间隔，见类的说明
+     */
+    public DiskWriter(int threads,long maxBufferedBytes,long syncIntervalMillis) {
+
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be > 0");
+        }
+
+        int bufferSize = BufferPool.DEFAULT_BUFFER_SIZE;
+        if (maxBufferedBytes < bufferSize) {
+            throw new IllegalArgumentException("maxBufferedBytes must be >= " + bufferSize);
+        }
+
+        this.maxBuffers = (int) Math.min(maxBufferedBytes / bufferSize, Integer.MAX_VALUE);
+        this.bufferPool = new BufferPool(bufferSize,maxBuffers);
+        this.permits = new Semaphore(maxBuffers,true); // 公平的，大图片不会一直等待
+        this.queue = new LinkedBlockingQueue<>(maxBuffers); // 每个文件至少占用一个buffer，队列不会超过buffer的数量
+        this.batchSize = DEFAULT_BATCH_SIZE;
+        this.syncIntervalNanos = syncIntervalMillis < 0 ? NO_SYNC : TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis);
+
+        this.threads = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread(this::run, "piccrawler-writer-" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+            this.threads[i] = thread;
+        }
+    }
+
+    /**
+     * @param contentLength 响应头中的Content-Length，未知时小于0
+     * @return 是否可以缓存，长度未知或者超过maxBufferedBytes时由调用方直接写文件
+     */
+    public boolean canBuffer(long contentLength) {
+
+        return !closed && contentLength >= 0 && buffersFor(contentLength) <= maxBuffers;
+    }
+
+    /**
+     * 把is中的数据读入buffer，buffer不够时等待
+     * @param is
+     * @param contentLength canBuffer()返回true的长度
+     * @param digest        不为空时读取的同时更新摘要
+     * @return 读取的数据，交给write()写入文件
+     * @throws IOException 读取失败，或者数据超过了contentLength
+     */
+    public Body read(InputStream is,long contentLength,MessageDigest digest) throws IOException {
+
+        int count = buffersFor(contentLength);
+
+        try {
+            permits.acquire(count);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for buffers");
+        }
+
+        Body body = new Body(count);
+
+        try {
+            ReadableByteChannel source = Channels.newChannel(is);
+            ByteBuffer buffer = null;
+
+            while (true) {
+
+                if (buffer == null || !buffer.hasRemaining()) {
+
+                    if (body.buffers.size() == count) {
+                        if (is.read() == -1) break; // 正好读完
+                        throw new IOException("more than Content-Length " + contentLength + " bytes");
+                    }
+                    buffer = bufferPool.acquire();
+                    body.buffers.add(buffer);
+                }
+
+                int position = buffer.position();
+                int n = source.read(buffer);
+                if (n == -1) break;
+
+                if (digest != null && n > 0) {
+                    ByteBuffer read = buffer.duplicate();
+                    read.flip().position(position);
+                    digest.update(read);
+                }
+                body.length += n;
+            }
+
+            for (ByteBuffer b : body.buffers) {
+                b.flip();
+            }
+            return body;
+        } catch (IOException e) {
+            release(body);
+            throw e;
+        }
+    }
+
+    /**
+     * 交给写线程写入target，先写入临时文件，完成后原子重命名
+     * @param body   read()的结果，写完之后buffer回到池中
+     * @param target
+     * @return 写入的字节数，写入失败时异常结束
+     */
+    public CompletableFuture<Long> write(Body body,File target) {
+
+        CompletableFuture<Long> future = new CompletableFuture<>();
+
+        if (closed) {
+            release(body);
+            future.completeExceptionally(new IOException("disk writer is closed"));
+            return future;
+        }
+
+        try {
+            queue.put(new Task(body,target,future));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            release(body);
+            future.completeExceptionally(new InterruptedIOException("interrupted while queueing " + target));
+        }
+        return future;
+    }
+
+    /**
+     * @return 等待写入的文件数
+     */
+    public int getQueueSize() {
+
+        return queue.size();
+    }
+
+    /**
+     * @return 等待写入的数据占用的字节数
+     */
+    public long getBufferedBytes() {
+
+        return (long) (maxBuffers - permits.availablePermits()) * bufferPool.getBufferSize();
+    }
+
+    /**
+     * 不再接收新的文件，等待队列中的文件写完
+     */
+    @Override
+    public void close() {
+
+        closed = true;
+
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void run() {
+
+        List<Task> batch = new ArrayList<>(batchSize);
+        Set<File> unsynced = new LinkedHashSet<>(); // 定期fsync时，重命名之后还没有fsync的文件
+        long lastSync = System.nanoTime();
+
+        while (!closed || !queue.isEmpty()) {
+
+            try {
+                Task first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, batchSize - 1);
+                    writeBatch(batch, unsynced);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (RuntimeException e) {
+                log.error("disk writer failed", e);
+                for (Task task : batch) {
+                    task.fail(new IOException(e));
+                }
+            } finally {
+                batch.clear();
+            }
+
+            long now = System.nanoTime();
+            if (!unsynced.isEmpty() && (now - lastSync >= syncIntervalNanos || unsynced.size() >= MAX_UNSYNCED_FILES)) {
+                syncFiles(unsynced);
+                lastSync = now;
+            }
+        }
+
+        syncFiles(unsynced); // close()时等待最后一批fsync
+    }
+
+    /**
+     * 先写完全部的临时文件，再重命名。SYNC_EACH_BATCH时重命名之前fsync文件，最后fsync涉及的目录
+     * @param unsynced 定期fsync时，重命名之后的文件加入其中
+     */
+    private void writeBatch(List<Task> batch,Set<File> unsynced) {
+
+        for (Task task : batch) {
+
+            File tmp = ImageFileWriter.tempFile(task.target);
+            try {
+                task.raf = new RandomAccessFile(tmp, "rw");
+                task.raf.setLength(task.body.length);
+                FileChannel channel = task.raf.getChannel();
+                for (ByteBuffer buffer : task.body.buffers) {
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+            } catch (IOException e) {
+                task.fail(e);
+            } finally {
+                release(task.body); // 写入page cache之后就可以给下载的线程使用
+            }
+        }
+
+        Set<File> directories = new LinkedHashSet<>();
+
+        for (Task task : batch) {
+
+            if (task.future.isDone()) continue;
+
+            File tmp = ImageFileWriter.tempFile(task.target);
+            try {
+                if (syncIntervalNanos == SYNC_EACH_BATCH) {
+                    task.raf.getChannel().force(true);
+                }
+                task.raf.close();
+                ImageFileWriter.commit(tmp, task.target);
+                directories.add(task.target.getAbsoluteFile().getParentFile());
+                if (syncIntervalNanos > 0) {
+                    unsynced.add(task.target);
+                }
+            } catch (IOException e) {
+                task.fail(e);
+            }
+        }
+
+        if (syncIntervalNanos == SYNC_EACH_BATCH) {
+            for (File directory : directories) {
+                syncDirectory(directory);
+            }
+        }
+
+        for (Task task : batch) {
+            task.future.complete(task.body.length);
+        }
+    }
+
+    /**
+     * 定期fsync：先fsync全部的文件，再fsync涉及的目录，每个目录只fsync一次
+     * 文件已经被删除或者移动时忽略
+     */
+    private static void syncFiles(Set<File> files) {
+
+        if (files.isEmpty()) return;
+
+        Set<File> directories = new LinkedHashSet<>();
+        for (File file : files) {
+
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.force(true);
+            } catch (IOException e) {
+                log.debug("can not sync file " + file, e);
+            }
+            directories.add(file.getAbsoluteFile().getParentFile());
+        }
+
+        for (File directory : directories) {
+            syncDirectory(directory);
+        }
+        files.clear();
+    }
+
+    /**
+     * fsync目录，重命名之后的文件名才会写入磁盘，不支持的系统(例如Windows)忽略
+     */
+    private static void syncDirectory(File directory) {
+
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            log.debug("can not sync directory " + directory, e);
+        }
+    }
+
+    private int buffersFor(long contentLength) {
+
+        long count = (contentLength + bufferPool.getBufferSize() - 1) / bufferPool.getBufferSize();
+        return (int) Math.max(1, Math.min(count, Integer.MAX_VALUE));
+    }
+
+    private void release(Body body) {
+
+        if (body.released) return;
+        body.released = true;
+
+        for (ByteBuffer buffer : body.buffers) {
+            bufferPool.release(buffer);
+        }
+        permits.release(body.permits);
+    }
+
+    /**
+     * 缓存在buffer中的响应体
+     */
+    public static class Body {
+
+        private final int permits;
+        private final List<ByteBuffer> buffers = new ArrayList<>();
+        private long length;
+        private boolean released;
+
+        private Body(int permits) {
+
+            this.permits = permits;
+        }
+
+        public long length() {
+
+            return length;
+        }
+    }
+
+    private static class Task {
+
+        private final Body body;
+        private final File target;
+        private final CompletableFuture<Long> future;
+        private RandomAccessFile raf;
+
+        Task(Body body,File target,CompletableFuture<Long> future) {
+
+            this.body = body;
+            this.target = target;
+            this.future = future;
+        }
+
+        void fail(IOException e) {
+
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ignored) {
+                }
+            }
+
+            try {
+                Files.deleteIfExists(ImageFileWriter.tempFile(target).toPath());
+            } catch (IOException ignored) {
+            }
+
+            future.completeExceptionally(e);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.cv4j.piccrawler.download;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 下载图片专用的线程池，拥有独立的最大并发数以及有界的任务队列，不会占用ForkJoinPool.commonPool()
+ * 任务队列满了以后由提交任务的线程来执行下载，从而对提交方形成背压。PicCrawlerClient.downloadPicsAsync()提交的图片不会超过队列的容量
+ * 线程都是daemon线程，并且空闲的线程会被回收，不调用shutdown()也不会阻止JVM退出
+ */
+public class DownloadExecutor implements Executor {
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;   // 默认同时下载的最大数量
+    public static final int DEFAULT_QUEUE_SIZE = 1024;    // 默认等待队列的大小
+
+    private static final long KEEP_ALIVE_SECONDS = 60L;
+
+    private final ThreadPoolExecutor executor;
+
+    public DownloadExecutor() {
+
+        this(DEFAULT_MAX_IN_FLIGHT,DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * @param maxInFlight 同时下载的最大数量
+     * @param queueSize   等待下载的任务队列大小
+     */
+    public DownloadExecutor(int maxInFlight,int queueSize) {
+
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be > 0");
+        }
+
+        if (queueSize <= 0) {
+            throw new IllegalArgumentException("queueSize must be > 0");
+        }
+
+        executor = new ThreadPoolExecutor(maxInFlight, maxInFlight,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                new DownloadThreadFactory(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+
+        // 空闲的线程会被回收
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+
+        executor.execute(command);
+    }
+
+    /**
+     * @return 正在下载的任务数量
+     */
+    public int getActiveCount() {
+
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return 队列中等待下载的任务数量
+     */
+    public int getQueueSize() {
+
+        return executor.getQueue().size();
+    }
+
+    public void shutdown() {
+
+        executor.shutdown();
+    }
+
+    private static class DownloadThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+
+            Thread thread = new Thread(r, "piccrawler-download-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
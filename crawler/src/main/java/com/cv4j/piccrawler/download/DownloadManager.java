@@ -4,38 +4,129 @@ import com.cv4j.piccrawler.download.strategy.FileGenType;
 import com.cv4j.piccrawler.download.strategy.FileStrategy;
 import com.cv4j.piccrawler.download.strategy.AutoIncrementStrategy;
 import com.cv4j.piccrawler.download.strategy.NormalStrategy;
+import com.cv4j.piccrawler.metrics.CrawlerMetrics;
+import com.cv4j.piccrawler.store.SegmentStore;
 import com.cv4j.piccrawler.utils.Utils;
 import com.safframework.tony.common.utils.FileUtils;
 import com.safframework.tony.common.utils.IOUtils;
+import com.cv4j.piccrawler.http.HttpManager;
 import com.safframework.tony.common.utils.Preconditions;
 import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
 import org.apache.http.util.EntityUtils;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by tony on 2017/10/27.
+ *
+ * 每个PicCrawlerClient使用各自的DownloadManager，文件策略、自增的文件名、去重和图片检查互不影响
  */
-
+@Slf4j
 public class DownloadManager {
 
-    private static AtomicInteger count = new AtomicInteger();
+    private static final int MAX_RESUME_ATTEMPTS = 3;
+    private static final String PART_DIRECTORY = ".parts";
+
+    private static final FileStrategy DEFAULT_FILE_STRATEGY = new FileStrategy() {
+
+        @Override
+        public String filePath() {
+            return "images";
+        }
+
+        @Override
+        public String picFormat() {
+            return "png";
+        }
+
+        @Override
+        public FileGenType genType() {
+
+            return FileGenType.RANDOM;
+        }
+    };
+
+    /**
+     * 正在续传的.part文件，不同的DownloadManager可能使用同一个目录，因此是全局的
+     */
+    private static final Set<File> RESUMING = ConcurrentHashMap.newKeySet();
+
+    private static final int MAX_SHARD_DEPTH = 3;          // 每一级目录使用fingerprint的一个字节，3级已经有1600多万个目录
+    private static final int MAX_CACHED_SHARDS = 64 * 1024; // 缓存的子目录数，2级的全部子目录
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final AtomicInteger count = new AtomicInteger(); // AUTO_INCREMENT的文件名
+
+    /**
+     * 已经存在的目录，key是目录的路径，只在第一次使用时访问文件系统，之后创建文件不再检查目录
+     */
+    private final ConcurrentHashMap<String,File> directories = new ConcurrentHashMap<>();
+
+    /**
+     * 已经存在的子目录，超过MAX_CACHED_SHARDS时移除最久没有使用的，被移除的子目录下次使用时再检查一次
+     */
+    private final Map<String,File> shards = Collections.synchronizedMap(new LinkedHashMap<String,File>(1024,0.75f,true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,File> eldest) {
+
+            return size() > MAX_CACHED_SHARDS;
+        }
+    });
+
+    @Setter
+    private volatile FileStrategy fileStrategy;
+
+    @Setter
+    private ContentDeduplicator deduplicator;  // 不为空时按图片内容去重
+
+    @Setter
+    private File partDirectory;                // 存放.part文件的目录，默认在图片目录下的.parts
+
+    @Setter
+    private ImageFilter imageFilter;           // 不为空时写入文件之前检查响应是不是图片
 
     @Setter
-    private FileStrategy fileStrategy;
+    private DiskWriter diskWriter;             // 不为空时读完响应体就释放连接，由DiskWriter的线程写入文件
 
-    private DownloadManager() {
+    @Setter
+    private SegmentStore segmentStore;         // 不为空时图片追加到segment中，不再生成单独的文件，不支持异步的传输方式
+
+    public DownloadManager() {
     }
 
+    /**
+     * @return 所有调用方共用的实例，配置会互相覆盖，需要单独配置时使用new DownloadManager()
+     */
+    @Deprecated
     public static DownloadManager get() {
         return DownloadManager.Holder.DOWNLOAD_MANAGER;
     }
 
     /**
-     * 将response的响应流写入文件中
+     * 将response的响应流写入文件中，设置了DiskWriter时等待DiskWriter写完
      * @param response
      * @param url
 
@@ -44,69 +135,491 @@ public class DownloadManager {
      */
     public File writeImageToFile(CloseableHttpResponse response, String url) throws IOException{
 
+        if (diskWriter!=null) {
+
+            try {
+                return writeImageToFileAsync(response,url).join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+            }
+        }
+
+        return writeDirectly(response,url);
+    }
+
+    /**
+     * 设置了DiskWriter时，在当前线程读完响应体、释放连接之后返回，由DiskWriter的线程写入文件
+     * 没有设置DiskWriter，或者长度未知、超过DiskWriter的内存限制时在当前线程写入文件
+     * @param response
+     * @param url
+     * @return 写入完成的handle，与writeImageToFile()的结果相同
+     */
+    public CompletableFuture<File> writeImageToFileAsync(CloseableHttpResponse response,String url) {
+
+        HttpEntity entity = response!=null ? response.getEntity() : null;
+
+        if (diskWriter==null || segmentStore!=null || entity==null || HttpManager.isNotModified(response)
+                || !diskWriter.canBuffer(entity.getContentLength())) {
+
+            try {
+                return CompletableFuture.completedFuture(writeDirectly(response,url));
+            } catch (IOException e) {
+                return failed(e);
+            }
+        }
+
+        long start = System.nanoTime();
+
+        MessageDigest digest = deduplicator!=null ? ContentDeduplicator.newDigest() : null;
+
+        InputStream is = null;
+        File file;
+        DiskWriter.Body body;
+        ImageRejectedException rejection = null;
+        try {
+            is = entity.getContent();
+            ImageType type = null;
+
+            if (imageFilter!=null) {
+                imageFilter.checkHeaders(response,entity.getContentLength());
+                PushbackInputStream pushback = new PushbackInputStream(is,ImageType.SNIFF_LENGTH);
+                is = pushback;
+                type = imageFilter.checkContent(response,readHead(pushback));
+            }
+
+            file = createFile(url,type);
+            body = diskWriter.read(is,entity.getContentLength(),digest); // buffer不够时在这里等待
+        } catch (ImageRejectedException e) {
+            rejection = e;
+            rejected(url,e);
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException e) {
+            return failed(e);
+        } finally {
+            release(response,entity,is,rejection);
+        }
+
+        return diskWriter.write(body,file).thenApply(bytes -> {
+
+            File result = digest!=null ? deduplicator.deduplicate(file,digest.digest()) : file;
+            CrawlerMetrics.get().recordWrite(bytes,start);
+            return result;
+        });
+    }
+
+    /**
+     * 在当前线程将response的响应流写入文件中，使用SegmentStore时返回图片所在的segment文件
+     */
+    private File writeDirectly(CloseableHttpResponse response, String url) throws IOException{
+
         if (response==null) return null;
 
+        if (HttpManager.isNotModified(response)) { // 图片与上次下载时相同
+            IOUtils.closeQuietly(response);
+            return null;
+        }
+
         // 获取响应实体
         HttpEntity entity = response.getEntity();
 
         if (entity==null) return null;
 
-        InputStream is = entity.getContent();
+        long start = System.nanoTime();
+
+        // 需要去重时，写入文件的同时计算摘要，segment中的图片不去重
+        MessageDigest digest = deduplicator!=null && segmentStore==null ? ContentDeduplicator.newDigest() : null;
+
+        InputStream is = null;
+        File file = null;
+        long bytes = 0;
+        ImageRejectedException rejection = null;
+        try {
+            is = entity.getContent();
+            ImageType type = null;
+
+            if (imageFilter!=null) { // 先检查响应头和开头的字节，不是图片时不再读取剩下的数据
+                imageFilter.checkHeaders(response,entity.getContentLength());
+                PushbackInputStream pushback = new PushbackInputStream(is,ImageType.SNIFF_LENGTH);
+                is = pushback;
+                type = imageFilter.checkContent(response,readHead(pushback));
+            }
+
+            if (segmentStore!=null) { // 追加到segment中
+                SegmentStore.Entry entry = appendToSegment(url,type,response,is,entity.getContentLength());
+                file = segmentStore.segmentFile(entry.getSegment());
+                bytes = entry.getLength();
+            } else {
+                file = createFile(url,type);
+                bytes = ImageFileWriter.write(is,file,entity.getContentLength(),digest,imageFilter); // 将inputStream写入文件
+            }
+        } catch (ImageRejectedException e) {
+            rejection = e;
+        } finally {
+            release(response,entity,is,rejection);
+        }
+
+        if (rejection!=null) {
+            rejected(url,rejection);
+            return null;
+        }
+
+        if (digest!=null) {
+            file = deduplicator.deduplicate(file,digest.digest());
+        }
+
+        CrawlerMetrics.get().recordWrite(bytes,start);
+        return file;
+    }
+
+    /**
+     * 支持断点续传的下载，连接中断后从已经写入的位置用Range请求继续下载
+     * 服务端忽略Range或者文件已经改变(If-Range不匹配)时返回完整的文件，此时重新下载
+     * 同一个.part文件正在续传时(同一个url，同一个目录)退回普通的下载
+     * @param httpManager
+     * @param url
+     * @return
+     * @throws IOException 重试MAX_RESUME_ATTEMPTS次之后仍然失败
+     */
+    public File downloadWithResume(HttpManager httpManager,String url) throws IOException {
+
+        PartFile part = new PartFile(getPartDirectory(),url);
+        File key = part.getFile().getAbsoluteFile();
+
+        if (!RESUMING.add(key)) {
+            return writeImageToFile(httpManager.createHttpWithGet(url),url);
+        }
+
+        try {
+            IOException failure = null;
+
+            for (int attempt = 0; attempt < MAX_RESUME_ATTEMPTS; attempt++) {
+
+                try {
+                    return fetchPart(httpManager,url,part);
+                } catch (IOException e) {
+                    log.info("download "+url+" interrupted at "+part.length()+" bytes: "+e.getMessage());
+                    failure = e;
+                }
+            }
+
+            throw failure;
+        } finally {
+            RESUMING.remove(key);
+        }
+    }
+
+    /**
+     * @return 图片被imageFilter拒绝时返回null
+     */
+    private File fetchPart(HttpManager httpManager,String url,PartFile part) throws IOException {
+
+        boolean resume = part.canResume();
+        long offset = resume ? part.length() : 0;
+
+        CloseableHttpResponse response = httpManager.createHttpWithGet(url,resume ? part.resumeHeaders() : null);
+        if (response==null) throw new IOException("no response");
+
+        try {
+            int status = response.getStatusLine().getStatusCode();
+            HttpEntity entity = response.getEntity();
+
+            if (status == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE && resume
+                    && part.getTotalLength() == offset) { // 上次已经下载完整，只是没有来得及重命名
+                return completePart(part,url,null,null);
+            }
+
+            if (entity == null || (status != HttpStatus.SC_OK && status != HttpStatus.SC_PARTIAL_CONTENT)) {
+
+                if (resume) { // 续传的请求失败，Range无效时下一次重新下载完整的文件，其他情况保留已经下载的部分
+                    if (status == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE) {
+                        part.delete();
+                    }
+                    throw new IOException("resume failed with status " + status);
+                }
+                File file = writeImageToFile(response,url); // 保持原来的行为，由writeImageToFile释放response
+                response = null;
+                return file;
+            }
 
-        if (fileStrategy == null) {
-            fileStrategy = new FileStrategy() {
+            if (status == HttpStatus.SC_PARTIAL_CONTENT) {
 
-                @Override
-                public String filePath() {
-                    return "images";
+                long start = rangeStart(response.getFirstHeader("Content-Range"));
+                if (!resume || start != offset) {
+                    part.delete();
+                    throw new IOException("unexpected Content-Range, start=" + start + " expected=" + offset);
                 }
+            } else { // 服务端返回了完整的文件
+
+                part.reset(url,headerValue(response,"ETag"),headerValue(response,"Last-Modified"),entity.getContentLength());
+                offset = 0;
+            }
 
-                @Override
-                public String picFormat() {
-                    return "png";
+            InputStream is = entity.getContent();
+            if (imageFilter!=null) {
+
+                imageFilter.checkHeaders(response,part.getTotalLength());
+                if (offset == 0) { // 续传时开头的字节在completePart()中检查
+                    PushbackInputStream pushback = new PushbackInputStream(is,ImageType.SNIFF_LENGTH);
+                    is = pushback;
+                    imageFilter.checkContent(response,readHead(pushback));
                 }
+            }
 
-                @Override
-                public FileGenType genType() {
+            long start = System.nanoTime();
 
-                    return FileGenType.RANDOM;
+            // 需要去重时，续传的摘要要包含已经下载的部分
+            MessageDigest digest = null;
+            if (deduplicator!=null) {
+                digest = ContentDeduplicator.newDigest();
+                if (offset > 0) {
+                    part.updateDigest(digest);
                 }
-            };
+            }
+
+            long bytes;
+            try (FileChannel channel = part.openForAppend()) {
+
+                bytes = ImageFileWriter.transfer(is,channel,digest,
+                        imageFilter!=null ? imageFilter.getMaxSize() - offset : Long.MAX_VALUE);
+            }
+            is.close(); // 读完之后关闭会释放连接，失败时不关闭，由response.close()直接断开
+            CrawlerMetrics.get().recordWrite(bytes,start); // 只记录这次请求写入的部分
+
+            long total = part.getTotalLength();
+            if (total > 0 && part.length() != total) {
+                throw new IOException("incomplete download, " + part.length() + " of " + total + " bytes");
+            }
+
+            return completePart(part,url,digest,response);
+        } catch (ImageRejectedException e) { // 不再重试
+            part.delete();
+            rejected(url,e);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(response); // 没有读完的响应直接关闭连接，不再读取剩下的数据
         }
+    }
 
-        String path = fileStrategy.filePath();
+    /**
+     * @param response 这次请求的响应，用于imageFilter检查Content-Type，可以为null
+     */
+    private File completePart(PartFile part,String url,MessageDigest digest,HttpResponse response) throws IOException {
 
-        // 尝试获取图片的格式
-        String format = Utils.tryToGetPicFormat(url);
-        // 如果能获取到图片的格式，优先使用url地址中图片的格式，如果不存在格式取fileStrategy的图片格式
-        if (Preconditions.isBlank(format)) {
-            format = fileStrategy.picFormat();
+        ImageType type = null;
+        if (imageFilter!=null) { // 检查完整的文件
+            imageFilter.checkSize(part.length());
+            type = imageFilter.checkContent(response,readHead(part.getFile()));
         }
 
-        FileGenType fileGenType = fileStrategy.genType();
+        if (segmentStore!=null) {
+            SegmentStore.Entry entry;
+            try (InputStream is = new FileInputStream(part.getFile())) {
+                entry = appendToSegment(url,type,response,is,part.length());
+            }
+            part.delete();
+            return segmentStore.segmentFile(entry.getSegment());
+        }
 
-        File directory = null;
-        // 写入本地文件
-        if (Preconditions.isNotBlank(path)) {
+        File file = createFile(url,type);
+        ImageFileWriter.commit(part.getFile(),file);
+        part.delete();
 
-            directory = new File(path);
-            if (!FileUtils.exists(directory)) {
+        if (deduplicator!=null) {
 
-                if (path.contains("/")) {
-                    directory.mkdirs();
-                } else {
-                    directory.mkdir();
-                }
+            if (digest == null) {
+                digest = ContentDeduplicator.newDigest();
+                digest.update(Files.readAllBytes(file.toPath()));
+            }
+            file = deduplicator.deduplicate(file,digest.digest());
+        }
 
-                if (!FileUtils.isDirectory(directory)) {
+        return file;
+    }
 
-                    directory = Utils.mkDefaultDir(directory);
-                }
+    /**
+     * 图片的数据边读边写入segment，不在内存中缓存整张图片
+     * 长度未知时先写入.parts目录中的临时文件，超过imageFilter的最大长度时立即中止，读完之后再写入segment
+     * @param type          识别出的图片格式，为null时使用响应的Content-Type
+     * @param response      可以为null
+     * @param contentLength 未知时小于0
+     * @return segment中的记录
+     * @throws IOException 长度超出限制时抛出ImageRejectedException
+     */
+    private SegmentStore.Entry appendToSegment(String url,ImageType type,HttpResponse response,InputStream is,long contentLength) throws IOException {
+
+        String contentType = type!=null ? type.mimeType() : null;
+        if (contentType==null && response!=null && response.getFirstHeader("Content-Type")!=null) {
+            contentType = response.getFirstHeader("Content-Type").getValue();
+        }
+
+        if (contentLength>=0) { // imageFilter已经检查过Content-Length
+            return segmentStore.put(url,contentType,is,contentLength);
+        }
+
+        File directory = getPartDirectory();
+        if (!directory.exists() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("can not create directory: " + directory);
+        }
+
+        File body = File.createTempFile("segment-",".body",directory);
+        try {
+            long length = ImageFileWriter.write(is,body,contentLength,null,imageFilter);
+            try (InputStream in = new FileInputStream(body)) {
+                return segmentStore.put(url,contentType,in,length);
+            }
+        } finally {
+            Files.deleteIfExists(body.toPath());
+        }
+    }
+
+    private File getPartDirectory() {
+
+        return partDirectory!=null ? partDirectory : new File(directory(),PART_DIRECTORY);
+    }
+
+    /**
+     * @param contentRange 例如 bytes 100-199/1000
+     * @return 返回的数据的起始位置，无法解析时返回-1
+     */
+    private static long rangeStart(Header contentRange) {
+
+        if (contentRange == null) return -1;
+
+        String value = contentRange.getValue().trim();
+        int begin = value.indexOf(' ');
+        int end = value.indexOf('-');
+        if (begin < 0 || end <= begin) return -1;
+
+        try {
+            return Long.parseLong(value.substring(begin + 1, end).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 读取开头的最多ImageType.SNIFF_LENGTH个字节之后放回流中
+     */
+    private static ByteBuffer readHead(PushbackInputStream is) throws IOException {
+
+        byte[] head = new byte[ImageType.SNIFF_LENGTH];
+        int n = 0;
+        int read;
+        while (n < head.length && (read = is.read(head,n,head.length - n)) != -1) {
+            n += read;
+        }
+
+        is.unread(head,0,n);
+        return ByteBuffer.wrap(head,0,n);
+    }
+
+    private static ByteBuffer readHead(File file) throws IOException {
+
+        ByteBuffer head = ByteBuffer.allocate(ImageType.SNIFF_LENGTH);
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            while (head.hasRemaining() && channel.read(head) != -1) {
             }
-        } else {
-            directory = Utils.mkDefaultDir(directory);
         }
 
+        head.flip();
+        return head;
+    }
+
+    /**
+     * 释放连接，图片被拒绝时由abort()决定是否读完剩下的数据
+     * @param response
+     * @param entity
+     * @param is        响应体的流，可以为null
+     * @param rejection 不为空时图片被拒绝
+     */
+    private static void release(CloseableHttpResponse response,HttpEntity entity,InputStream is,ImageRejectedException rejection) {
+
+        if (rejection!=null) {
+            abort(response,entity);
+            return;
+        }
+
+        IOUtils.closeQuietly(is);
+        try {
+            EntityUtils.consume(entity);
+            response.close();
+        } catch (IOException e) {
+            log.warn("释放链接错误",e);
+        }
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable throwable) {
+
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(throwable);
+        return future;
+    }
+
+    /**
+     * 图片被拒绝时释放连接：剩下的数据不多时读完，连接可以复用，否则直接关闭连接，不再传输剩下的数据
+     */
+    private static void abort(CloseableHttpResponse response,HttpEntity entity) {
+
+        long length = entity.getContentLength();
+        if (length >= 0 && length <= ImageFilter.DRAIN_LIMIT) {
+            try {
+                EntityUtils.consume(entity);
+            } catch (IOException e) { // 由response.close()关闭连接
+            }
+        }
+        IOUtils.closeQuietly(response);
+    }
+
+    /**
+     * 记录被拒绝的图片
+     * @param url
+     * @param e
+     */
+    static void rejected(String url,ImageRejectedException e) {
+
+        log.info("skip "+url+": "+e.getMessage());
+        CrawlerMetrics.get().recordRejected(e.getReason());
+    }
+
+    private static String headerValue(CloseableHttpResponse response,String name) {
+
+        Header header = response.getFirstHeader(name);
+        return header!=null ? header.getValue() : null;
+    }
+
+    /**
+     * 根据fileStrategy生成图片需要保存的文件
+     * @param url
+     * @return
+     */
+    File createFile(String url) {
+
+        return createFile(url,null);
+    }
+
+    /**
+     * @param url
+     * @param type 从响应体识别出的图片格式，可以为null
+     * @return
+     */
+    File createFile(String url,ImageType type) {
+
+        FileStrategy fileStrategy = getFileStrategy();
+
+        // 尝试获取图片的格式
+        String format = Utils.tryToGetPicFormat(url);
+        // 优先使用响应体的格式，其次是url地址中图片的格式，都不存在时取fileStrategy的图片格式
+        if (type!=null && !type.matches(format)) {
+            format = type.extension();
+        } else if (Preconditions.isBlank(format)) {
+            format = fileStrategy.picFormat();
+        }
+
+        FileGenType fileGenType = fileStrategy.genType();
+
+        File directory = directory();
+
         String fileName = null;
         switch (fileGenType) {
 
@@ -120,13 +633,11 @@ public class DownloadManager {
                 // 只针对AutoIncrementStrategy及其子类
                 if (fileStrategy instanceof AutoIncrementStrategy) {
 
-                    if (count.get() < ((AutoIncrementStrategy) fileStrategy).start()) {
-                        count.set(((AutoIncrementStrategy) fileStrategy).start());
-                    }
+                    count.accumulateAndGet(((AutoIncrementStrategy) fileStrategy).start(),Math::max);
                 }
 
-                count.incrementAndGet();
-                fileName = String.valueOf(count.get());
+                // 多个线程同时下载时每个文件名只使用一次
+                fileName = String.valueOf(count.incrementAndGet());
                 break;
 
             case NORMAL:
@@ -137,23 +648,107 @@ public class DownloadManager {
 
         if (Preconditions.isBlank(fileName)) fileName = "temp";
 
-        File file = new File(directory, fileName + "." + format);
+        int depth = Math.min(fileStrategy.shardDepth(),MAX_SHARD_DEPTH);
+        if (depth > 0) {
+            directory = shardDirectory(directory,fileName,depth);
+        }
 
-        IOUtils.writeToFile(is,file); // 将inputStream写入文件
+        return new File(directory, fileName + "." + format);
+    }
 
-        IOUtils.closeQuietly(is);
+    /**
+     * 按文件名的fingerprint分散到子目录，例如depth为2时是 ab/cd/，每一级有256个目录
+     * @param directory 图片保存的目录
+     * @param fileName  不包括扩展名的文件名
+     * @param depth     子目录的层数
+     * @return 子目录，无法创建时返回directory
+     */
+    private File shardDirectory(File directory,String fileName,int depth) {
 
-        if (response != null) {
-            try {
-                EntityUtils.consume(response.getEntity());
-                response.close();
-            } catch (IOException e) {
-                System.err.println("释放链接错误");
-                e.printStackTrace();
+        long fingerprint = Utils.fingerprint(fileName);
+
+        StringBuilder sb = new StringBuilder(directory.getPath().length() + depth * 3);
+        sb.append(directory.getPath());
+        for (int i = 0; i < depth; i++) {
+            int b = (int) (fingerprint >>> (56 - 8 * i)) & 0xFF;
+            sb.append(File.separatorChar).append(HEX[b >>> 4]).append(HEX[b & 0xF]);
+        }
+
+        String path = sb.toString();
+        File shard = shards.get(path);
+        if (shard != null) return shard;
+
+        shard = new File(path);
+        if (!shard.mkdirs() && !shard.isDirectory()) {
+            log.warn("can not create directory: "+path);
+            return directory; // 不缓存，下次仍然尝试创建
+        }
+
+        shards.put(path,shard);
+        return shard;
+    }
+
+    private FileStrategy getFileStrategy() {
+
+        FileStrategy strategy = fileStrategy;
+        return strategy!=null ? strategy : DEFAULT_FILE_STRATEGY;
+    }
+
+    /**
+     * @return 图片保存的目录，第一次使用时检查，不存在时创建
+     */
+    private File directory() {
+
+        String path = getFileStrategy().filePath();
+        String key = path!=null ? path : "";
+
+        File directory = directories.get(key);
+        if (directory != null) return directory;
+
+        directory = createDirectory(path);
+        File existing = directories.putIfAbsent(key,directory);
+        return existing!=null ? existing : directory;
+    }
+
+    /**
+     * @param path fileStrategy的路径，为空或者无法创建时使用默认的目录
+     * @return
+     */
+    private static File createDirectory(String path) {
+
+        File directory = null;
+        // 写入本地文件
+        if (Preconditions.isNotBlank(path)) {
+
+            directory = new File(path);
+            if (!FileUtils.exists(directory)) {
+
+                if (path.contains("/")) {
+                    directory.mkdirs();
+                } else {
+                    directory.mkdir();
+                }
+
+                if (!FileUtils.isDirectory(directory)) {
+
+                    directory = Utils.mkDefaultDir(directory);
+                }
             }
+        } else {
+            directory = Utils.mkDefaultDir(directory);
         }
 
-        return file;
+        return directory;
+    }
+
+    /**
+     * 创建异步下载图片时使用的响应消费者，响应体到达时直接写入文件
+     * @param url
+     * @return
+     */
+    public HttpAsyncResponseConsumer<File> newImageConsumer(String url) {
+
+        return new ImageFileConsumer(this,url,deduplicator,imageFilter);
     }
 
     private static class Holder {
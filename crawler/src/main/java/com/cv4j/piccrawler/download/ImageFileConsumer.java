@@ -0,0 +1,233 @@
+package com.cv4j.piccrawler.download;
+
+import com.cv4j.piccrawler.metrics.CrawlerMetrics;
+import com.safframework.tony.common.utils.IOUtils;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.ContentDecoderChannel;
+import org.apache.http.nio.FileContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * 异步下载图片时使用的响应消费者
+ * 响应体的数据到达时由NIO线程直接写入文件，不需要额外的线程等待传输，也不会把整个响应体读入内存
+ * 和ImageFileWriter一样先写入临时文件，下载完成后再原子重命名
+ * 设置了ImageFilter时先在内存中收集开头的字节，确认是图片之后才创建文件，不是图片时抛出ImageRejectedException断开连接
+ */
+class ImageFileConsumer extends AbstractAsyncResponseConsumer<File> {
+
+    private final DownloadManager downloadManager;
+    private final String url;
+    private final ContentDeduplicator deduplicator;
+    private final ImageFilter imageFilter;
+    private final MessageDigest digest;
+    private ByteBuffer buffer;
+
+    private HttpResponse response;
+    private long contentLength;
+    private ByteBuffer head;                    // 响应体开头的字节，识别出图片的格式之后写入文件
+
+    private File file;
+    private File tmp;
+    private FileChannel fileChannel;
+    private long position;
+    private boolean completed;
+
+    /**
+     * @param downloadManager
+     * @param url
+     * @param deduplicator 不为空时在写入文件的同时计算摘要，下载完成后按内容去重
+     * @param imageFilter  不为空时写入文件之前检查响应是不是图片
+     */
+    ImageFileConsumer(DownloadManager downloadManager,String url,ContentDeduplicator deduplicator,ImageFilter imageFilter) {
+
+        this.downloadManager = downloadManager;
+        this.url = url;
+        this.deduplicator = deduplicator;
+        this.imageFilter = imageFilter;
+        this.digest = deduplicator!=null ? ContentDeduplicator.newDigest() : null;
+    }
+
+    @Override
+    protected void onResponseReceived(HttpResponse response) throws IOException {
+
+        this.response = response;
+    }
+
+    @Override
+    protected void onEntityEnclosed(HttpEntity entity,ContentType contentType) throws IOException {
+
+        contentLength = entity.getContentLength();
+
+        if (imageFilter!=null) {
+            try {
+                imageFilter.checkHeaders(response,contentLength);
+            } catch (ImageRejectedException e) {
+                throw rejected(e);
+            }
+            head = ByteBuffer.allocate(ImageType.SNIFF_LENGTH);
+            return;
+        }
+
+        openFile(null);
+    }
+
+    private void openFile(ImageType type) throws IOException {
+
+        file = downloadManager.createFile(url,type);
+        tmp = ImageFileWriter.tempFile(file);
+
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        raf.setLength(contentLength > 0 ? contentLength : 0); // 预先设置文件的长度
+        fileChannel = raf.getChannel();
+    }
+
+    /**
+     * 识别开头的字节，是图片时创建文件并写入
+     */
+    private void sniff() throws IOException {
+
+        head.flip();
+        ImageType type;
+        try {
+            type = imageFilter.checkContent(response,head);
+        } catch (ImageRejectedException e) {
+            throw rejected(e);
+        }
+        openFile(type);
+
+        if (digest!=null) {
+            digest.update(head.duplicate());
+        }
+        while (head.hasRemaining()) {
+            position += fileChannel.write(head);
+        }
+        head = null;
+    }
+
+    @Override
+    protected void onContentReceived(ContentDecoder decoder,IOControl ioControl) throws IOException {
+
+        if (head!=null) { // 还没有收集到足够的字节
+
+            while (head.hasRemaining() && decoder.read(head) > 0) {
+            }
+            if (head.hasRemaining() && !decoder.isCompleted()) return;
+
+            sniff();
+        }
+
+        receive(decoder);
+
+        if (imageFilter!=null && position > imageFilter.getMaxSize()) { // 没有Content-Length或者与实际的长度不一致
+            checkSize();
+        }
+    }
+
+    private void receive(ContentDecoder decoder) throws IOException {
+
+        if (digest!=null) { // 需要计算摘要时不能直接从socket传输到文件，经过buffer时顺便更新摘要
+
+            if (buffer==null) {
+                buffer = BufferPool.get().acquire();
+            }
+
+            while (decoder.read(buffer) > 0) {
+
+                buffer.flip();
+                digest.update(buffer.duplicate());
+                while (buffer.hasRemaining()) {
+                    position += fileChannel.write(buffer);
+                }
+                buffer.clear();
+            }
+            return;
+        }
+
+        // 有最大长度时最多多传输一个字节，超过时立即中止
+        long count = imageFilter!=null ? Math.min(Integer.MAX_VALUE, imageFilter.getMaxSize() - position + 1) : Integer.MAX_VALUE;
+
+        long transferred;
+        if (decoder instanceof FileContentDecoder) { // 支持的情况下直接从socket传输到文件
+            transferred = ((FileContentDecoder) decoder).transfer(fileChannel, position, count);
+        } else {
+            transferred = fileChannel.transferFrom(new ContentDecoderChannel(decoder), position, count);
+        }
+
+        if (transferred > 0) {
+            position += transferred;
+        }
+    }
+
+    @Override
+    protected File buildResult(HttpContext context) throws Exception {
+
+        if (head!=null) { // 响应体比SNIFF_LENGTH短
+            sniff();
+        }
+
+        if (file==null) return null;
+
+        if (imageFilter!=null) {
+            checkSize();
+        }
+
+        if (fileChannel.size() != position) { // 实际的长度与Content-Length不一致时以实际写入的为准
+            fileChannel.truncate(position);
+        }
+        fileChannel.close();
+
+        ImageFileWriter.commit(tmp,file);
+        completed = true;
+        CrawlerMetrics.get().recordImage(position);
+
+        if (digest!=null) {
+            return deduplicator.deduplicate(file,digest.digest());
+        }
+
+        return file;
+    }
+
+    private void checkSize() throws ImageRejectedException {
+
+        try {
+            imageFilter.checkSize(position);
+        } catch (ImageRejectedException e) {
+            throw rejected(e);
+        }
+    }
+
+    /**
+     * 记录被拒绝的图片，抛出返回的异常使请求失败并关闭连接
+     */
+    private ImageRejectedException rejected(ImageRejectedException e) {
+
+        DownloadManager.rejected(url,e);
+        return e;
+    }
+
+    @Override
+    protected void releaseResources() {
+
+        IOUtils.closeQuietly(fileChannel);
+
+        BufferPool.get().release(buffer);
+        buffer = null;
+
+        // 下载失败或者被取消，删除写了一半的文件
+        if (!completed && tmp!=null) {
+            tmp.delete();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.cv4j.piccrawler.download;
+
+import com.cv4j.piccrawler.metrics.CrawlerMetrics.RejectReason;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+
+/**
+ * 基于FileChannel的图片写入
+ * 使用BufferPool中的堆外buffer，已知Content-Length时预先设置文件的长度，
+ * 先写入同一目录下的临时文件，写完之后原子重命名，其他程序不会读到写了一半的图片
+ */
+public class ImageFileWriter {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * @param target 最终的文件
+     * @return 写入过程中使用的临时文件，与target在同一个目录，保证可以原子重命名
+     */
+    public static File tempFile(File target) {
+
+        return new File(target.getParentFile(), "." + target.getName() + TEMP_SUFFIX);
+    }
+
+    /**
+     * 将inputStream写入文件
+     * @param is            图片的数据
+     * @param target        最终的文件
+     * @param contentLength 响应头中的Content-Length，未知时小于0
+     * @param digest        不为空时写入的同时更新摘要
+     * @return 写入的字节数
+     * @throws IOException
+     */
+    public static long write(InputStream is,File target,long contentLength,MessageDigest digest) throws IOException {
+
+        return write(is,target,contentLength,digest,null);
+    }
+
+    /**
+     * 将inputStream写入文件，长度超出filter的限制时不会生成target
+     * @param is            图片的数据
+     * @param target        最终的文件
+     * @param contentLength 响应头中的Content-Length，未知时小于0
+     * @param digest        不为空时写入的同时更新摘要
+     * @param filter        不为空时检查写入的长度，超过最大长度时立即中止
+     * @return 写入的字节数
+     * @throws IOException 长度超出限制时抛出ImageRejectedException
+     */
+    public static long write(InputStream is,File target,long contentLength,MessageDigest digest,ImageFilter filter) throws IOException {
+
+        File tmp = tempFile(target);
+        long written;
+
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+             FileChannel channel = raf.getChannel()) {
+
+            raf.setLength(contentLength > 0 ? contentLength : 0); // 预先设置文件的长度
+
+            written = transfer(is, channel, digest, filter != null ? filter.getMaxSize() : Long.MAX_VALUE);
+
+            if (filter != null) { // 没有Content-Length时只能在写完之后检查最小长度
+                filter.checkSize(written);
+            }
+
+            if (written != contentLength) { // 实际的长度与Content-Length不一致时以实际写入的为准
+                channel.truncate(written);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp.toPath());
+            throw e;
+        }
+
+        commit(tmp, target);
+        return written;
+    }
+
+    /**
+     * 将inputStream写入channel的当前位置
+     * @param is
+     * @param channel
+     * @param digest  不为空时写入的同时更新摘要
+     * @return 写入的字节数
+     * @throws IOException
+     */
+    static long transfer(InputStream is,FileChannel channel,MessageDigest digest) throws IOException {
+
+        return transfer(is,channel,digest,Long.MAX_VALUE);
+    }
+
+    /**
+     * 将inputStream写入channel的当前位置，超过maxBytes时中止
+     * @param is
+     * @param channel
+     * @param digest   不为空时写入的同时更新摘要
+     * @param maxBytes 最多写入的字节数
+     * @return 写入的字节数
+     * @throws IOException 超过maxBytes时抛出ImageRejectedException
+     */
+    static long transfer(InputStream is,FileChannel channel,MessageDigest digest,long maxBytes) throws IOException {
+
+        BufferPool pool = BufferPool.get();
+        ByteBuffer buffer = pool.acquire();
+        long written = 0;
+
+        try {
+            ReadableByteChannel source = Channels.newChannel(is);
+
+            while (source.read(buffer) != -1) {
+
+                buffer.flip();
+
+                if (written + buffer.remaining() > maxBytes) { // 没有Content-Length或者与实际的长度不一致
+                    throw new ImageRejectedException(RejectReason.SIZE,"more than " + maxBytes + " bytes");
+                }
+
+                if (digest != null) {
+                    digest.update(buffer.duplicate());
+                }
+
+                while (buffer.hasRemaining()) {
+                    written += channel.write(buffer);
+                }
+                buffer.clear();
+            }
+        } finally {
+            pool.release(buffer);
+        }
+
+        return written;
+    }
+
+    /**
+     * 将写完的临时文件原子重命名为最终的文件
+     * @param tmp
+     * @param target
+     * @throws IOException
+     */
+    public static void commit(File tmp,File target) throws IOException {
+
+        try {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) { // 不在同一个分区，例如单独设置了.part文件的目录
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.cv4j.piccrawler.download;
+
+import com.cv4j.piccrawler.metrics.CrawlerMetrics.RejectReason;
+import com.safframework.tony.common.utils.Preconditions;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 写入文件之前检查响应是不是图片：
+ *
+ * 1. 收到响应头时检查状态码、Content-Type和Content-Length，例如html的错误页、超过大小限制的文件，不读取响应体直接断开
+ * 2. 读取响应体开头的ImageType.SNIFF_LENGTH个字节，识别JPEG、PNG、GIF、WebP、BMP、SVG，识别出的格式作为文件的扩展名
+ *    Content-Type是其他的图片格式(例如image/x-icon)时不要求能识别
+ * 3. 没有Content-Length时在写入的过程中检查长度
+ *
+ * 检查不通过时抛出ImageRejectedException
+ */
+public class ImageFilter {
+
+    /**
+     * 被拒绝的响应剩下的数据不超过这个长度时读完，连接可以复用，否则直接关闭连接
+     */
+    static final int DRAIN_LIMIT = 8 * 1024;
+
+    // 不是image/*，但可能是图片的Content-Type
+    private static final Set<String> BINARY_TYPES = new HashSet<>(Arrays.asList(
+            "application/octet-stream", "binary/octet-stream", "application/xml", "text/xml"));
+
+    // 能通过开头的字节识别的图片格式，Content-Type是这些格式时开头的字节必须匹配
+    private static final Set<String> SNIFFABLE_TYPES = new HashSet<>(Arrays.asList(
+            "image/jpeg", "image/jpg", "image/pjpeg", "image/png", "image/gif", "image/webp",
+            "image/bmp", "image/x-ms-bmp", "image/svg+xml"));
+
+    private final long minSize;
+    private final long maxSize;
+
+    /**
+     * @param minSize 最小的字节数，例如过滤掉1x1的占位图，<=0时不限制
+     * @param maxSize 最大的字节数，<=0时不限制
+     */
+    public ImageFilter(long minSize,long maxSize) {
+
+        this.minSize = Math.max(minSize,0);
+        this.maxSize = maxSize > 0 ? maxSize : Long.MAX_VALUE;
+    }
+
+    public long getMaxSize() {
+
+        return maxSize;
+    }
+
+    /**
+     * 检查状态码、Content-Type以及文件的长度
+     * @param response
+     * @param length 文件的长度，未知时小于0
+     * @throws ImageRejectedException
+     */
+    public void checkHeaders(HttpResponse response,long length) throws ImageRejectedException {
+
+        int status = response.getStatusLine().getStatusCode();
+        if (status < 200 || status >= 300 || status == 204) {
+            throw new ImageRejectedException(RejectReason.STATUS,"status " + status);
+        }
+
+        String mimeType = mimeType(response);
+        if (mimeType != null && !mimeType.startsWith("image/") && !BINARY_TYPES.contains(mimeType)) {
+            throw new ImageRejectedException(RejectReason.CONTENT_TYPE,"Content-Type " + mimeType);
+        }
+
+        if (length >= 0) {
+            checkSize(length);
+        }
+    }
+
+    /**
+     * 检查响应体开头的字节
+     * @param response 为空时按没有Content-Type处理
+     * @param head 响应体开头的最多ImageType.SNIFF_LENGTH个字节
+     * @return 识别出的图片格式，Content-Type是其他的图片格式时返回null
+     * @throws ImageRejectedException
+     */
+    public ImageType checkContent(HttpResponse response,ByteBuffer head) throws ImageRejectedException {
+
+        ImageType type = ImageType.sniff(head);
+        if (type != null) return type;
+
+        String mimeType = mimeType(response);
+        if (mimeType != null && mimeType.startsWith("image/") && !SNIFFABLE_TYPES.contains(mimeType)) {
+            return null;
+        }
+
+        throw new ImageRejectedException(RejectReason.SIGNATURE,"unknown signature" + (mimeType != null ? ", Content-Type " + mimeType : ""));
+    }
+
+    /**
+     * @param bytes 文件的长度
+     * @throws ImageRejectedException
+     */
+    public void checkSize(long bytes) throws ImageRejectedException {
+
+        if (bytes < minSize || bytes > maxSize) {
+            throw new ImageRejectedException(RejectReason.SIZE,bytes + " bytes, limit " + minSize + "-" + maxSize);
+        }
+    }
+
+    /**
+     * @return Content-Type中的类型，例如"image/png"，没有时返回null
+     */
+    private static String mimeType(HttpResponse response) {
+
+        Header header = response != null ? response.getFirstHeader("Content-Type") : null;
+        if (header == null || Preconditions.isBlank(header.getValue())) return null;
+
+        String value = header.getValue();
+        int end = value.indexOf(';');
+        return (end >= 0 ? value.substring(0, end) : value).trim().toLowerCase();
+    }
+}
@@ -0,0 +1,26 @@
+package com.cv4j.piccrawler.download;
+
+import com.cv4j.piccrawler.metrics.CrawlerMetrics.RejectReason;
+
+import java.io.IOException;
+
+/**
+ * 响应不是图片或者长度超出了限制，下载被中止
+ */
+public class ImageRejectedException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final RejectReason reason;
+
+    public ImageRejectedException(RejectReason reason,String message) {
+
+        super(message);
+        this.reason = reason;
+    }
+
+    public RejectReason getReason() {
+
+        return reason;
+    }
+}
@@ -0,0 +1,160 @@
+package com.cv4j.piccrawler.download;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 通过文件开头的几个字节(magic number)识别的图片格式
+ */
+public enum ImageType {
+
+    JPEG("jpg","image/jpeg"),
+    PNG("png","image/png"),
+    GIF("gif","image/gif"),
+    WEBP("webp","image/webp"),
+    BMP("bmp","image/bmp"),
+    SVG("svg","image/svg+xml");
+
+    // svg是文本，开头可能有xml声明、注释和DOCTYPE，需要在更多的字节中查找<svg
+    static final int SNIFF_LENGTH = 512;
+
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    private final String extension;
+    private final String mimeType;
+
+    ImageType(String extension,String mimeType) {
+
+        this.extension = extension;
+        this.mimeType = mimeType;
+    }
+
+    /**
+     * @return 保存文件时使用的扩展名
+     */
+    public String extension() {
+
+        return extension;
+    }
+
+    /**
+     * @return 这种格式的Content-Type
+     */
+    public String mimeType() {
+
+        return mimeType;
+    }
+
+    /**
+     * @param format url中的图片格式，例如"jpeg"
+     * @return format是否是这种格式
+     */
+    public boolean matches(String format) {
+
+        if (format == null) return false;
+
+        return extension.equalsIgnoreCase(format) || (this == JPEG && "jpeg".equalsIgnoreCase(format));
+    }
+
+    /**
+     * @param head 响应体开头的最多SNIFF_LENGTH个字节，从position到limit
+     * @return 无法识别时返回null
+     */
+    public static ImageType sniff(ByteBuffer head) {
+
+        int p = head.position();
+        int n = head.remaining();
+
+        if (n >= 3 && u(head, p) == 0xFF && u(head, p + 1) == 0xD8 && u(head, p + 2) == 0xFF) return JPEG;
+
+        if (startsWith(head, p, PNG_SIGNATURE)) return PNG;
+
+        if (startsWith(head, p, "GIF87a") || startsWith(head, p, "GIF89a")) return GIF;
+
+        if (startsWith(head, p, "RIFF") && startsWith(head, p + 8, "WEBP")) return WEBP;
+
+        if (n >= 14 && startsWith(head, p, "BM")) return BMP; // 14个字节的文件头，避免把以"BM"开头的文本当作图片
+
+        return isSvg(head) ? SVG : null;
+    }
+
+    /**
+     * 跳过UTF-8的BOM、空白、xml声明、注释和DOCTYPE之后，第一个元素是<svg
+     */
+    private static boolean isSvg(ByteBuffer head) {
+
+        int p = head.position();
+        int end = head.limit();
+
+        if (startsWith(head, p, new byte[]{(byte) 0xEF, (byte) 0xBB, (byte) 0xBF})) p += 3;
+
+        while (p < end) {
+
+            int c = u(head, p);
+            if (c == ' ' || c == '\t' || c == '\r' || c == '\n') {
+                p++;
+                continue;
+            }
+
+            if (c != '<') return false;
+
+            if (startsWith(head, p, "<svg")) {
+                return p + 4 < end && !isNameChar(u(head, p + 4));
+            }
+
+            String close;
+            if (startsWith(head, p, "<?")) {
+                close = "?>";
+            } else if (startsWith(head, p, "<!--")) {
+                close = "-->";
+            } else if (startsWith(head, p, "<!")) {
+                close = ">";
+            } else {
+                return false;
+            }
+
+            p = indexOf(head, p + 2, close);
+            if (p < 0) return false;
+            p += close.length();
+        }
+
+        return false;
+    }
+
+    private static boolean isNameChar(int c) {
+
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == ':';
+    }
+
+    private static int indexOf(ByteBuffer head, int from, String s) {
+
+        for (int i = from, end = head.limit() - s.length(); i <= end; i++) {
+            if (startsWith(head, i, s)) return i;
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(ByteBuffer head, int p, String s) {
+
+        if (p + s.length() > head.limit()) return false;
+
+        for (int i = 0; i < s.length(); i++) {
+            if (u(head, p + i) != s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static boolean startsWith(ByteBuffer head, int p, byte[] bytes) {
+
+        if (p + bytes.length > head.limit()) return false;
+
+        for (int i = 0; i < bytes.length; i++) {
+            if (head.get(p + i) != bytes[i]) return false;
+        }
+        return true;
+    }
+
+    private static int u(ByteBuffer head, int p) {
+
+        return head.get(p) & 0xFF;
+    }
+}
@@ -0,0 +1,169 @@
+package com.cv4j.piccrawler.download;
+
+import com.cv4j.piccrawler.utils.Utils;
+import com.safframework.tony.common.utils.Preconditions;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * 下载了一部分的图片，由.part文件和记录校验信息的.meta文件组成，文件名是url的指纹
+ * 只有服务端返回了强ETag或者Last-Modified时才能续传，续传时用If-Range保证前后两部分来自同一个文件
+ */
+class PartFile {
+
+    private static final String KEY_URL = "url";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+    private static final String KEY_TOTAL_LENGTH = "totalLength";
+
+    private final File file;
+    private final File metaFile;
+    private final Properties meta = new Properties();
+
+    /**
+     * @param directory 存放.part文件的目录
+     * @param url
+     * @throws IOException
+     */
+    PartFile(File directory,String url) throws IOException {
+
+        if (!directory.exists() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("can not create directory: " + directory);
+        }
+
+        String name = Long.toHexString(Utils.fingerprint(url));
+        file = new File(directory, name + ".part");
+        metaFile = new File(directory, name + ".meta");
+
+        if (metaFile.exists()) {
+
+            try (InputStream is = new FileInputStream(metaFile)) {
+                meta.load(is);
+            }
+
+            if (!url.equals(meta.getProperty(KEY_URL))) { // 指纹冲突，不是同一个url
+                meta.clear();
+            }
+        }
+    }
+
+    File getFile() {
+
+        return file;
+    }
+
+    /**
+     * @return 已经下载的字节数
+     */
+    long length() {
+
+        return file.length();
+    }
+
+    /**
+     * @return 文件的总长度，未知时返回-1
+     */
+    long getTotalLength() {
+
+        return Long.parseLong(meta.getProperty(KEY_TOTAL_LENGTH, "-1"));
+    }
+
+    /**
+     * @return 是否可以从已经下载的位置继续下载
+     */
+    boolean canResume() {
+
+        return length() > 0 && ifRange() != null;
+    }
+
+    /**
+     * @return 续传时需要添加的header
+     */
+    Map<String,String> resumeHeaders() {
+
+        Map<String,String> headers = new LinkedHashMap<>();
+        headers.put("Range", "bytes=" + length() + "-");
+        headers.put("If-Range", ifRange());
+        return headers;
+    }
+
+    /**
+     * 服务端返回了完整的文件，清空已经下载的部分，记录新的校验信息
+     * @param url
+     * @param etag
+     * @param lastModified
+     * @param totalLength
+     * @throws IOException
+     */
+    void reset(String url,String etag,String lastModified,long totalLength) throws IOException {
+
+        meta.clear();
+        meta.setProperty(KEY_URL, url);
+        if (etag != null) meta.setProperty(KEY_ETAG, etag);
+        if (lastModified != null) meta.setProperty(KEY_LAST_MODIFIED, lastModified);
+        meta.setProperty(KEY_TOTAL_LENGTH, String.valueOf(totalLength));
+
+        try (OutputStream os = new FileOutputStream(metaFile)) {
+            meta.store(os, null);
+        }
+
+        Files.deleteIfExists(file.toPath());
+    }
+
+    /**
+     * 打开.part文件，位置在文件的末尾
+     * @return
+     * @throws IOException
+     */
+    FileChannel openForAppend() throws IOException {
+
+        return new FileOutputStream(file, true).getChannel();
+    }
+
+    /**
+     * 续传时用已经下载的部分初始化摘要
+     * @param digest
+     * @throws IOException
+     */
+    void updateDigest(MessageDigest digest) throws IOException {
+
+        BufferPool pool = BufferPool.get();
+        ByteBuffer buffer = pool.acquire();
+
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    void delete() {
+
+        file.delete();
+        metaFile.delete();
+    }
+
+    /**
+     * 弱ETag不能用于If-Range，这时使用Last-Modified
+     */
+    private String ifRange() {
+
+        String etag = meta.getProperty(KEY_ETAG);
+        if (Preconditions.isNotBlank(etag) && !etag.startsWith("W/")) return etag;
+
+        String lastModified = meta.getProperty(KEY_LAST_MODIFIED);
+        return Preconditions.isNotBlank(lastModified) ? lastModified : null;
+    }
+}
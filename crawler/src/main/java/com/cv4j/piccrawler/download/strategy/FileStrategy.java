@@ -23,4 +23,14 @@ public interface FileStrategy {
      * @return
      */
     FileGenType genType();
+
+    /**
+     * 图片很多时按文件名的hash分散到子目录，避免一个目录中有大量的文件，例如2时是 ab/cd/文件名
+     * 每一级有256个目录，100万张图片使用2级时每个目录大约15个文件
+     * @return 子目录的层数，最多3层，默认0，所有文件直接保存在filePath()中
+     */
+    default int shardDepth() {
+
+        return 0;
+    }
 }
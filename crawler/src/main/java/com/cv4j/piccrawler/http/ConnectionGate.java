@@ -0,0 +1,87 @@
+package com.cv4j.piccrawler.http;
+
+import org.apache.http.HttpHost;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.function.ToIntFunction;
+
+/**
+ * 限制同时进行的请求数不超过连接池的容量（总数以及每个路由）
+ *
+ * httpcore的连接池在synchronized代码块中等待空闲的连接，虚拟线程在这里等待会占住载体线程(pinning)。
+ * 载体线程全部被占住之后，持有连接的虚拟线程也无法运行并归还连接，最终变成获取连接超时。
+ * 先在Semaphore上等待则只会挂起虚拟线程，不会占住载体线程。
+ */
+public class ConnectionGate {
+
+    private static final HttpHost UNKNOWN = new HttpHost("unknown");
+
+    private final Semaphore total;
+    private final ToIntFunction<HttpHost> maxPerRoute;
+    private final ConcurrentHashMap<HttpHost,Semaphore> routes = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxTotal    连接池的最大连接数
+     * @param maxPerRoute 连接池每个路由的最大连接数
+     */
+    public ConnectionGate(int maxTotal,int maxPerRoute) {
+
+        this(maxTotal, host -> maxPerRoute);
+    }
+
+    /**
+     * @param maxTotal    连接池的最大连接数
+     * @param maxPerRoute 目标host对应的最大连接数，第一次访问该host时读取
+     */
+    public ConnectionGate(int maxTotal,ToIntFunction<HttpHost> maxPerRoute) {
+
+        this.total = new Semaphore(maxTotal);
+        this.maxPerRoute = maxPerRoute;
+    }
+
+    /**
+     * @param pool 使用连接池当前设置的连接数
+     */
+    public ConnectionGate(ConnectionPool pool) {
+
+        this(pool.getMaxTotal(), pool::getMaxPerRoute);
+    }
+
+    /**
+     * 在连接池有空闲的连接时执行task，task需要在返回之前释放连接(关闭response)
+     * @param url  请求的地址
+     * @param task
+     * @return task的返回结果
+     * @throws Exception
+     */
+    public <T> T call(String url,Callable<T> task) throws Exception {
+
+        Semaphore route = routes.computeIfAbsent(routeKey(url), key -> new Semaphore(maxPerRoute.applyAsInt(key)));
+
+        route.acquire();
+        try {
+            total.acquire();
+            try {
+                return task.call();
+            } finally {
+                total.release();
+            }
+        } finally {
+            route.release();
+        }
+    }
+
+    private static HttpHost routeKey(String url) {
+
+        try {
+            URL u = new URL(url);
+            return new HttpHost(u.getHost().toLowerCase(), u.getPort() != -1 ? u.getPort() : u.getDefaultPort(), u.getProtocol());
+        } catch (MalformedURLException e) {
+            return UNKNOWN;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package com.cv4j.piccrawler.http;
+
+import lombok.Getter;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.config.Registry;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.IdleConnectionEvictor;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 同步请求共用的连接池，负责连接的整个生命周期
+ *
+ * 1. 最大连接数以及每个路由的最大连接数，可以按目标host单独设置，通过代理的路由同样有效
+ * 2. 服务端返回Keep-Alive: timeout=n时按服务端的要求保持连接，没有返回时使用默认的保持时间
+ * 3. 后台定期关闭过期的以及空闲时间过长的连接
+ * 4. 连接池的统计(leased、pending、available)，可以判断请求是在等待连接池还是在等待网络
+ */
+public class ConnectionPool {
+
+    public static final long DEFAULT_KEEP_ALIVE = 30_000;
+    public static final long DEFAULT_IDLE_TIMEOUT = 60_000;
+
+    private static final long MAX_EVICT_INTERVAL = 5_000;
+
+    private final Manager manager;
+    private final Map<HttpHost,Integer> hostLimits = new ConcurrentHashMap<>();
+
+    @Getter
+    private volatile long keepAlive = DEFAULT_KEEP_ALIVE;
+    @Getter
+    private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+    private IdleConnectionEvictor evictor;
+
+    private final ConnectionKeepAliveStrategy keepAliveStrategy = new ConnectionKeepAliveStrategy() {
+
+        @Override
+        public long getKeepAliveDuration(HttpResponse response,HttpContext context) {
+
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return duration > 0 ? duration : keepAlive;
+        }
+    };
+
+    /**
+     * @param registry    http/https的ConnectionSocketFactory
+     * @param maxTotal    最大连接数
+     * @param maxPerRoute 每个路由默认的最大连接数
+     */
+    public ConnectionPool(Registry<ConnectionSocketFactory> registry,int maxTotal,int maxPerRoute) {
+
+        manager = new Manager(registry);
+        manager.pool.setMaxTotal(maxTotal);
+        manager.pool.setDefaultMaxPerRoute(maxPerRoute);
+
+        startEvictor();
+    }
+
+    public HttpClientConnectionManager getConnectionManager() {
+
+        return manager;
+    }
+
+    /**
+     * @return 服务端没有要求时保持连接的时间，客户端创建时设置
+     */
+    public ConnectionKeepAliveStrategy getKeepAliveStrategy() {
+
+        return keepAliveStrategy;
+    }
+
+    public int getMaxTotal() {
+
+        return manager.pool.getMaxTotal();
+    }
+
+    public void setMaxTotal(int maxTotal) {
+
+        manager.pool.setMaxTotal(maxTotal);
+    }
+
+    public int getDefaultMaxPerRoute() {
+
+        return manager.pool.getDefaultMaxPerRoute();
+    }
+
+    public void setDefaultMaxPerRoute(int maxPerRoute) {
+
+        manager.pool.setDefaultMaxPerRoute(maxPerRoute);
+    }
+
+    /**
+     * 单独设置某个目标host的最大连接数，无论是否通过代理访问
+     * @param host   目标host，需要包含scheme和port
+     * @param maxPerRoute
+     */
+    public void setMaxPerRoute(HttpHost host,int maxPerRoute) {
+
+        hostLimits.put(normalize(host), maxPerRoute);
+
+        // 已经存在的路由立即生效，之后的路由在第一次请求时生效
+        for (HttpRoute route : manager.pool.getRoutes()) {
+            if (normalize(route.getTargetHost()).equals(normalize(host))) {
+                manager.pool.setMaxPerRoute(route, maxPerRoute);
+            }
+        }
+    }
+
+    /**
+     * @param host 目标host
+     * @return 该host的最大连接数
+     */
+    public int getMaxPerRoute(HttpHost host) {
+
+        Integer limit = hostLimits.get(normalize(host));
+        return limit != null ? limit : manager.pool.getDefaultMaxPerRoute();
+    }
+
+    /**
+     * @param keepAlive 服务端没有返回Keep-Alive时连接保持的时间，单位毫秒
+     */
+    public void setKeepAlive(long keepAlive) {
+
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * @param idleTimeout 连接空闲超过这个时间后被关闭，单位毫秒
+     */
+    public synchronized void setIdleTimeout(long idleTimeout) {
+
+        this.idleTimeout = idleTimeout;
+        evictor.shutdown();
+        startEvictor();
+    }
+
+    /**
+     * @return 整个连接池的统计
+     */
+    public PoolStats getTotalStats() {
+
+        return manager.pool.getTotalStats();
+    }
+
+    /**
+     * @return 每个路由的统计
+     */
+    public Map<HttpRoute,PoolStats> getRouteStats() {
+
+        Map<HttpRoute,PoolStats> stats = new LinkedHashMap<>();
+        for (HttpRoute route : manager.pool.getRoutes()) {
+            stats.put(route, manager.pool.getStats(route));
+        }
+        return stats;
+    }
+
+    private synchronized void startEvictor() {
+
+        long interval = Math.min(Math.max(idleTimeout / 2, 1), MAX_EVICT_INTERVAL);
+
+        // IdleConnectionEvictor默认使用daemon线程
+        evictor = new IdleConnectionEvictor(manager.pool, interval, TimeUnit.MILLISECONDS, idleTimeout, TimeUnit.MILLISECONDS);
+        evictor.start();
+    }
+
+    private static HttpHost normalize(HttpHost host) {
+
+        int port = host.getPort();
+        if (port < 0) {
+            port = "https".equalsIgnoreCase(host.getSchemeName()) ? 443 : 80;
+        }
+        return new HttpHost(host.getHostName().toLowerCase(), port, host.getSchemeName().toLowerCase());
+    }
+
+    /**
+     * 第一次请求某个路由时，按目标host设置该路由的最大连接数，其余的操作直接交给连接池
+     * (httpclient 4.5.2的连接池类带有新版httpcore中已经删除的注解，不能继承，因此使用代理的方式)
+     */
+    private class Manager implements HttpClientConnectionManager {
+
+        private final PoolingHttpClientConnectionManager pool;
+        private final Set<HttpRoute> configured = ConcurrentHashMap.newKeySet();
+
+        Manager(Registry<ConnectionSocketFactory> registry) {
+
+            pool = new PoolingHttpClientConnectionManager(registry);
+        }
+
+        @Override
+        public ConnectionRequest requestConnection(HttpRoute route,Object state) {
+
+            if (!hostLimits.isEmpty() && configured.add(route)) {
+
+                Integer limit = hostLimits.get(normalize(route.getTargetHost()));
+                if (limit != null) {
+                    pool.setMaxPerRoute(route, limit);
+                }
+            }
+
+            return pool.requestConnection(route, state);
+        }
+
+        @Override
+        public void releaseConnection(HttpClientConnection conn,Object newState,long validDuration,TimeUnit timeUnit) {
+
+            pool.releaseConnection(conn, newState, validDuration, timeUnit);
+        }
+
+        @Override
+        public void connect(HttpClientConnection conn,HttpRoute route,int connectTimeout,HttpContext context) throws IOException {
+
+            pool.connect(conn, route, connectTimeout, context);
+        }
+
+        @Override
+        public void upgrade(HttpClientConnection conn,HttpRoute route,HttpContext context) throws IOException {
+
+            pool.upgrade(conn, route, context);
+        }
+
+        @Override
+        public void routeComplete(HttpClientConnection conn,HttpRoute route,HttpContext context) throws IOException {
+
+            pool.routeComplete(conn, route, context);
+        }
+
+        @Override
+        public void closeIdleConnections(long idletime,TimeUnit timeUnit) {
+
+            pool.closeIdleConnections(idletime, timeUnit);
+        }
+
+        @Override
+        public void closeExpiredConnections() {
+
+            pool.closeExpiredConnections();
+        }
+
+        @Override
+        public void shutdown() {
+
+            pool.shutdown();
+        }
+    }
+}
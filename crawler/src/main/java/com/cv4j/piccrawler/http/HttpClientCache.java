@@ -0,0 +1,105 @@
+package com.cv4j.piccrawler.http;
+
+import com.safframework.tony.common.utils.IOUtils;
+import org.apache.http.HttpHost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.cookie.BasicClientCookie;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按(代理,超时时间,cookie)缓存已经创建好的CloseableHttpClient，使用多个代理时每次请求只需要选择代理
+ * 缓存的客户端共用同一个连接池，关闭客户端不会关闭连接池
+ */
+public class HttpClientCache {
+
+    /**
+     * 创建CloseableHttpClient，创建的客户端必须设置setConnectionManagerShared(true)
+     */
+    public interface Factory {
+
+        CloseableHttpClient create(int timeOut,HttpHost proxy,BasicClientCookie cookie);
+    }
+
+    private final Factory factory;
+    private final ConcurrentHashMap<Key,CloseableHttpClient> clients = new ConcurrentHashMap<>();
+
+    public HttpClientCache(Factory factory) {
+
+        this.factory = factory;
+    }
+
+    /**
+     * @param timeOut 超时时间
+     * @param proxy   代理，不使用代理时为null
+     * @param cookie  Cookie，按引用区分
+     * @return 缓存的客户端，不存在时创建
+     */
+    public CloseableHttpClient get(int timeOut,HttpHost proxy,BasicClientCookie cookie) {
+
+        Key key = new Key(timeOut, proxy, cookie);
+
+        CloseableHttpClient client = clients.get(key); // 绝大多数情况下已经存在，避免computeIfAbsent的加锁
+        if (client != null) return client;
+
+        return clients.computeIfAbsent(key, k -> factory.create(timeOut, proxy, cookie));
+    }
+
+    /**
+     * 代理被丢弃时，关闭并移除使用该代理的客户端，正在进行的请求不受影响
+     * @param proxy
+     */
+    public void evict(HttpHost proxy) {
+
+        Iterator<Map.Entry<Key,CloseableHttpClient>> iterator = clients.entrySet().iterator();
+
+        while (iterator.hasNext()) {
+
+            Map.Entry<Key,CloseableHttpClient> entry = iterator.next();
+            if (Objects.equals(entry.getKey().proxy, proxy)) {
+                iterator.remove();
+                IOUtils.closeQuietly(entry.getValue());
+            }
+        }
+    }
+
+    public int size() {
+
+        return clients.size();
+    }
+
+    private static final class Key {
+
+        private final int timeOut;
+        private final HttpHost proxy;
+        private final BasicClientCookie cookie;
+
+        Key(int timeOut,HttpHost proxy,BasicClientCookie cookie) {
+
+            this.timeOut = timeOut;
+            this.proxy = proxy;
+            this.cookie = cookie;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+
+            Key other = (Key) o;
+            return timeOut == other.timeOut
+                    && cookie == other.cookie
+                    && Objects.equals(proxy, other.proxy);
+        }
+
+        @Override
+        public int hashCode() {
+
+            return 31 * (31 * timeOut + Objects.hashCode(proxy)) + System.identityHashCode(cookie);
+        }
+    }
+}
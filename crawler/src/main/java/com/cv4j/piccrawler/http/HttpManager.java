@@ -1,11 +1,19 @@
 package com.cv4j.piccrawler.http;
 
 import com.cv4j.piccrawler.domain.Proxy;
+import com.cv4j.piccrawler.download.ImageRejectedException;
+import com.cv4j.piccrawler.metrics.CrawlerMetrics;
+import com.cv4j.piccrawler.metrics.MetricsRegistry;
+import com.cv4j.piccrawler.store.ValidatorIndex;
+import com.cv4j.piccrawler.store.Validators;
 import com.cv4j.piccrawler.utils.Utils;
 import com.safframework.tony.common.utils.Preconditions;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.http.Header;
 import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.CookieStore;
 import org.apache.http.client.config.AuthSchemes;
 import org.apache.http.client.config.CookieSpecs;
@@ -13,6 +21,9 @@ import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
@@ -23,8 +34,18 @@ import org.apache.http.impl.client.BasicCookieStore;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.impl.cookie.BasicClientCookie;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.nio.reactor.IOReactorException;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
@@ -36,30 +57,53 @@ import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by tony on 2017/10/19.
+ *
+ * 每个PicCrawlerClient使用各自的HttpManager，header、代理、cookie、超时以及缓存的客户端互不影响
+ * 所有实例共用的只有连接池、SSLContext和异步的Http客户端，它们不包含client的配置
  */
 @Slf4j
 public class HttpManager {
 
+    public static final int MAX_TOTAL = 200;        // 连接池的最大连接数
+    public static final int MAX_PER_ROUTE = 20;     // 连接池每个路由的最大连接数
+
+    private static final int DEFAULT_TIME_OUT = 20000;
+    private static final int ASYNC_MAX_TOTAL = 1000;
+    private static final int ASYNC_MAX_PER_ROUTE = 50;
+
     /**
      * 全局连接池对象
      */
-    private static PoolingHttpClientConnectionManager connManager = null;
-    private CloseableHttpClient httpClient;
+    private static ConnectionPool connectionPool = null;
+    private static SSLContext sslcontext = null;
+    private volatile CloseableHttpClient httpClient;
+    private final HttpClientCache clientCache = new HttpClientCache(this::createHttpClient); // 使用多个代理时缓存的客户端
+    private CookieStore asyncCookieStore;
+
+    private volatile HttpParam httpParam;
 
     @Setter
-    private HttpParam httpParam;
+    private ValidatorIndex validatorIndex; // 不为空时Get请求带上If-None-Match/If-Modified-Since
+
+    private volatile boolean useProxyPool = false;
 
-    private boolean useProxyPool = false;
+    private volatile ProxyHealthChecker proxyHealthChecker; // 使用代理池时在后台探测代理
+
+    @Setter
+    private long proxyCheckInterval = ProxyHealthChecker.DEFAULT_INTERVAL;
 
     /**
      * 配置连接池信息，支持http/https
      */
     static {
 
-        SSLContext sslcontext = null;
         try {
             //获取TLS安全协议上下文
             sslcontext = SSLContext.getInstance("TLS");
@@ -89,33 +133,71 @@ public class HttpManager {
                     .register("http", PlainConnectionSocketFactory.INSTANCE)
                     .register("https", scsf).build();
 
-            connManager = new PoolingHttpClientConnectionManager(sfr);
-
-            // 设置最大连接数
-            connManager.setMaxTotal(200);
-            // 设置每个连接的路由数
-            connManager.setDefaultMaxPerRoute(20);
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        } catch (KeyManagementException e) {
-            e.printStackTrace();
+            // 默认的最大连接数以及每个路由的最大连接数，可以通过getConnectionPool()修改
+            connectionPool = new ConnectionPool(sfr,MAX_TOTAL,MAX_PER_ROUTE);
+            registerPoolGauges(CrawlerMetrics.get().getRegistry());
+        } catch (NoSuchAlgorithmException | KeyManagementException e) {
+            log.error("can not init ssl context",e);
         }
     }
 
-    private HttpManager() {
+    private final CrawlerMetrics metrics = CrawlerMetrics.get();
+
+    public HttpManager() {
     }
 
+    /**
+     * @return 所有调用方共用的实例，配置会互相覆盖，需要单独配置时使用new HttpManager()
+     */
+    @Deprecated
     public static HttpManager get() {
         return HttpManager.Holder.MANAGER;
     }
 
+    /**
+     * 设置这个HttpManager的请求参数，之前按旧参数创建的客户端和cookie不再使用
+     * 旧代理池的探测停止，使用新的代理池时重新启动
+     * @param httpParam
+     */
+    public synchronized void setHttpParam(HttpParam httpParam) {
+
+        this.httpParam = httpParam;
+        this.httpClient = null;
+        this.asyncCookieStore = null;
+
+        if (proxyHealthChecker!=null) {
+            proxyHealthChecker.close();
+            proxyHealthChecker = null;
+        }
+        useProxyPool = false;
+    }
+
+    /**
+     * 同步请求的连接池是全局共用的，指标只注册一次，读取指标时才计算
+     * @param registry
+     */
+    private static void registerPoolGauges(MetricsRegistry registry) {
+
+        String help = "Connections of the blocking connection pool by state";
+        registry.gauge("piccrawler_pool_connections",help,() -> connectionPool.getTotalStats().getLeased(),"state","leased");
+        registry.gauge("piccrawler_pool_connections",help,() -> connectionPool.getTotalStats().getAvailable(),"state","available");
+        registry.gauge("piccrawler_pool_pending","Requests waiting for a pooled connection",() -> connectionPool.getTotalStats().getPending());
+    }
+
+    /**
+     * @return 同步请求共用的连接池，可以设置连接数、Keep-Alive以及查看连接池的统计
+     */
+    public static ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
     /**
      * 获取Http客户端连接对象
      * @return Http客户端连接对象
      */
     private CloseableHttpClient createHttpClient() {
 
-        return createHttpClient(20000,null,null);
+        return createHttpClient(DEFAULT_TIME_OUT,null,null);
     }
 
     /**
@@ -127,21 +209,7 @@ public class HttpManager {
      */
     private CloseableHttpClient createHttpClient(int timeOut,HttpHost proxy,BasicClientCookie cookie) {
 
-        // 创建Http请求配置参数
-        RequestConfig.Builder builder = RequestConfig.custom()
-                // 获取连接超时时间
-                .setConnectionRequestTimeout(timeOut)
-                // 请求超时时间
-                .setConnectTimeout(timeOut)
-                // 响应超时时间
-                .setSocketTimeout(timeOut)
-                .setCookieSpec(CookieSpecs.STANDARD);
-
-        if (proxy!=null) {
-            builder.setProxy(proxy);
-        }
-
-        RequestConfig requestConfig = builder.build();
+        RequestConfig requestConfig = createRequestConfig(timeOut,proxy);
 
         // 创建httpClient
         HttpClientBuilder httpClientBuilder = HttpClients.custom();
@@ -152,7 +220,11 @@ public class HttpManager {
                 // 把请求重试设置到连接客户端
                 .setRetryHandler(new RetryHandler())
                 // 配置连接池管理对象
-                .setConnectionManager(connManager);
+                .setConnectionManager(connectionPool.getConnectionManager())
+                // 服务端返回Keep-Alive时按服务端的要求保持连接
+                .setKeepAliveStrategy(connectionPool.getKeepAliveStrategy())
+                // 连接池是全局共用的，关闭客户端时不关闭连接池
+                .setConnectionManagerShared(true);
 
         if (cookie!=null) {
             CookieStore cookieStore = new BasicCookieStore();
@@ -163,48 +235,167 @@ public class HttpManager {
         return httpClientBuilder.build();
     }
 
+    /**
+     * 创建Http请求配置参数，同步和异步的网络请求共用
+     * @param timeOut 超时时间
+     * @param proxy   代理
+     * @return
+     */
+    private RequestConfig createRequestConfig(int timeOut,HttpHost proxy) {
+
+        RequestConfig.Builder builder = RequestConfig.custom()
+                // 获取连接超时时间
+                .setConnectionRequestTimeout(timeOut)
+                // 请求超时时间
+                .setConnectTimeout(timeOut)
+                // 响应超时时间
+                .setSocketTimeout(timeOut)
+                .setCookieSpec(CookieSpecs.STANDARD);
+
+        if (proxy!=null) {
+            builder.setProxy(proxy);
+        }
+
+        return builder.build();
+    }
 
     /**
-     * 创建网络请求 post请求
-     * @param url
+     * 创建异步的Http客户端，基于NIO的selector，少量的线程就可以支撑大量同时进行的下载
+     * 超时、代理和cookie都在每次请求时设置，因此全局只需要一个实例
      * @return
      */
-    public CloseableHttpResponse createHttpWithPost(String url) {
+    private static CloseableHttpAsyncClient createAsyncHttpClient() {
 
-        // 获取客户端连接对象
-        CloseableHttpClient httpClient = getHttpClient();
-        // 创建Post请求对象
-        HttpPost httpPost = new HttpPost(url);
+        ThreadFactory threadFactory = new ThreadFactory() {
 
-        if (Preconditions.isNotBlank(httpParam)) {
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+
+                Thread thread = new Thread(r, "piccrawler-nio-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+
+        try {
+            DefaultConnectingIOReactor ioReactor = new DefaultConnectingIOReactor(IOReactorConfig.DEFAULT, threadFactory);
+
+            Registry<SchemeIOSessionStrategy> registry = RegistryBuilder.<SchemeIOSessionStrategy>create()
+                    .register("http", NoopIOSessionStrategy.INSTANCE)
+                    .register("https", new SSLIOSessionStrategy(sslcontext, NoopHostnameVerifier.INSTANCE)).build();
+
+            PoolingNHttpClientConnectionManager asyncConnManager = new PoolingNHttpClientConnectionManager(ioReactor, registry);
+
+            // 异步请求不占用线程，连接数可以比同步的连接池大很多
+            asyncConnManager.setMaxTotal(ASYNC_MAX_TOTAL);
+            asyncConnManager.setDefaultMaxPerRoute(ASYNC_MAX_PER_ROUTE);
+
+            CloseableHttpAsyncClient client = HttpAsyncClients.custom()
+                    .setConnectionManager(asyncConnManager)
+                    .setKeepAliveStrategy(connectionPool.getKeepAliveStrategy())
+                    .setThreadFactory(threadFactory)
+                    .build();
+            client.start();
+            return client;
+        } catch (IOReactorException e) {
+            throw new IllegalStateException("can not create async http client", e);
+        }
+    }
+
+    /**
+     * 设置请求的header，autoReferer的Referer只设置到这次请求上，HttpParam在请求之间不会改变
+     * @param request
+     * @param url
+     */
+    private void setHeaders(HttpRequestBase request,String url) {
+
+        HttpParam httpParam = this.httpParam;
 
-            boolean autoReferer = httpParam.isAutoReferer();
+        if (Preconditions.isNotBlank(httpParam)) {
 
             Map<String,String> header = httpParam.getHeader();
 
-            if (Preconditions.isNotBlank(header)) {
+            for (Map.Entry<String,String> entry : header.entrySet()) {
+                request.setHeader(entry.getKey(),entry.getValue());
+            }
+
+            if (httpParam.isAutoReferer() && !header.containsKey("Referer")) {
+                request.setHeader("Referer", Utils.getReferer(url));
+            }
+        }
+    }
 
-                if (autoReferer && !header.containsKey("Referer")) {
 
-                    header.put("Referer", Utils.getReferer(url));
-                }
+    /**
+     * 带上上次响应的ETag/Last-Modified，内容没有变化时服务端返回304
+     * @param request
+     * @param url
+     */
+    private void setConditionalHeaders(HttpRequestBase request,String url) {
 
-                for (String key : header.keySet()) {
-                    httpPost.setHeader(key,header.get(key));
+        if (validatorIndex==null) return;
+
+        try {
+            Validators validators = validatorIndex.get(url);
+
+            if (validators!=null) {
+
+                if (validators.getEtag()!=null) {
+                    request.setHeader("If-None-Match",validators.getEtag());
+                }
+                if (validators.getLastModified()!=null) {
+                    request.setHeader("If-Modified-Since",validators.getLastModified());
                 }
             }
+        } catch (IOException e) {
+            log.warn("can not read validators of "+url,e);
         }
+    }
 
-        CloseableHttpResponse response = null;
+    /**
+     * 响应的内容处理成功之后调用，记录响应的ETag/Last-Modified，下次请求时发送条件请求
+     * @param url
+     * @param response
+     */
+    public void storeValidators(String url,HttpResponse response) {
+
+        if (validatorIndex==null || response==null
+                || response.getStatusLine().getStatusCode()!=HttpStatus.SC_OK) return;
+
+        Header etag = response.getFirstHeader("ETag");
+        Header lastModified = response.getFirstHeader("Last-Modified");
 
-        // 执行请求
         try {
-            response = httpClient.execute(httpPost);
+            validatorIndex.put(url,etag!=null?etag.getValue():null,lastModified!=null?lastModified.getValue():null);
         } catch (IOException e) {
-            e.printStackTrace();
+            log.warn("can not store validators of "+url,e);
         }
+    }
+
+    /**
+     * @param response
+     * @return 是否是304，内容与上次相同，不需要再处理
+     */
+    public static boolean isNotModified(HttpResponse response) {
 
-        return response;
+        return response!=null && response.getStatusLine().getStatusCode()==HttpStatus.SC_NOT_MODIFIED;
+    }
+
+    /**
+     * 创建网络请求 post请求
+     * @param url
+     * @return
+     */
+    public CloseableHttpResponse createHttpWithPost(String url) {
+
+        // 创建Post请求对象
+        HttpPost httpPost = new HttpPost(url);
+
+        setHeaders(httpPost,url);
+
+        return execute(httpPost);
     }
 
     /**
@@ -214,117 +405,339 @@ public class HttpManager {
      */
     public CloseableHttpResponse createHttpWithGet(String url) {
 
-        // 获取客户端连接对象
-        CloseableHttpClient httpClient = getHttpClient();
+        return createHttpWithGet(url,null);
+    }
+
+    /**
+     * 创建网络请求 get请求，在HttpParam的header之外添加这次请求的header，例如续传时的Range
+     * @param url
+     * @param headers 这次请求额外的header，可以为null
+     * @return
+     */
+    public CloseableHttpResponse createHttpWithGet(String url,Map<String,String> headers) {
+
         // 创建Get请求对象
         HttpGet httpGet = new HttpGet(url);
 
+        setHeaders(httpGet,url);
+
+        if (headers==null || !headers.containsKey("Range")) {
+            setConditionalHeaders(httpGet,url);
+        }
+
+        if (headers!=null) {
+            for (Map.Entry<String,String> entry : headers.entrySet()) {
+                httpGet.setHeader(entry.getKey(),entry.getValue());
+            }
+        }
+
+        return execute(httpGet);
+    }
+
+    /**
+     * 执行同步的请求，使用代理池时从可用的代理中选择，请求的结果记录到代理的失败次数
+     * @param request
+     * @return 请求失败时返回null
+     */
+    private CloseableHttpResponse execute(HttpRequestBase request) {
+
+        Proxy proxy = null;
+        CloseableHttpClient httpClient;
+
+        if (isProxyPool()) { // 使用多个代理的情况，客户端按代理缓存，每次请求只需要选择代理
+
+            proxy = selectProxy();
+            httpClient = clientCache.get(httpParam.getTimeOut(),proxy!=null?proxy.toHttpHost():null,httpParam.getCookie());
+        } else {
+
+            httpClient = getHttpClient();
+        }
+
+        long start = proxy!=null ? proxy.requestStarted() : 0;
+        long begin = metrics.requestStarted();
+
+        try {
+            CloseableHttpResponse response = httpClient.execute(request);
+            metrics.requestCompleted(response.getStatusLine().getStatusCode(),begin);
+            if (proxy!=null) {
+                proxy.recordSuccess();
+                metrics.recordProxy(proxy,CrawlerMetrics.ProxyOutcome.SUCCESS);
+            }
+            return response;
+        } catch (IOException e) {
+            metrics.requestFailed(begin);
+            if (proxy!=null) {
+                log.info("proxy："+proxy.toString()+" 请求失败");
+                recordProxyFailure(proxy);
+            }
+            log.warn("request "+request.getURI()+" failed",e);
+        } finally {
+            if (proxy!=null) {
+                proxy.requestFinished(start);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * 使用HttpParam中的ProxySelector，从后台探测可用的代理中选择，这里不做任何I/O
+     * @return
+     */
+    private Proxy selectProxy() {
+
+        return httpParam.getProxySelector().select(getProxyHealthChecker().getReadyProxies());
+    }
+
+    /**
+     * 创建异步网络请求 post请求，响应体到达时直接交给consumer处理，传输过程中不占用线程
+     * @param url
+     * @param consumer 响应的消费者
+     * @return
+     */
+    public <T> CompletableFuture<T> createAsyncHttpWithPost(String url,HttpAsyncResponseConsumer<T> consumer) {
+
+        HttpPost httpPost = new HttpPost(url);
+
+        setHeaders(httpPost,url);
+
+        return executeAsync(httpPost,consumer);
+    }
+
+    /**
+     * 创建异步网络请求 get请求，响应体到达时直接交给consumer处理，传输过程中不占用线程
+     * @param url
+     * @param consumer 响应的消费者
+     * @return
+     */
+    public <T> CompletableFuture<T> createAsyncHttpWithGet(String url,HttpAsyncResponseConsumer<T> consumer) {
+
+        HttpGet httpGet = new HttpGet(url);
+
+        setHeaders(httpGet,url);
+        setConditionalHeaders(httpGet,url);
+
+        return executeAsync(httpGet,consumer);
+    }
+
+    /**
+     * 执行异步请求，超时、代理和cookie跟同步的请求使用相同的HttpParam
+     * @param request
+     * @param consumer
+     * @return
+     */
+    private <T> CompletableFuture<T> executeAsync(HttpRequestBase request,HttpAsyncResponseConsumer<T> consumer) {
+
+        int timeOut = DEFAULT_TIME_OUT;
+        Proxy proxy = null;
+
         if (Preconditions.isNotBlank(httpParam)) {
 
-            boolean autoReferer = httpParam.isAutoReferer();
+            timeOut = httpParam.getTimeOut();
+            // 从可用的代理中轮询，请求的结果记录到代理的失败次数
+            proxy = isProxyPool() ? selectProxy() : httpParam.getProxy();
+        }
 
-            Map<String,String> header = httpParam.getHeader();
+        request.setConfig(createRequestConfig(timeOut,proxy!=null?proxy.toHttpHost():null));
+
+        HttpClientContext context = HttpClientContext.create();
+        context.setCookieStore(getAsyncCookieStore());
+
+        final Proxy usedProxy = proxy;
+        final long start = proxy!=null ? proxy.requestStarted() : 0;
+        final long begin = metrics.requestStarted();
+        CompletableFuture<T> result = new CompletableFuture<>();
+
+        Future<T> future = AsyncHolder.ASYNC_CLIENT.execute(HttpAsyncMethods.create(request), consumer, context, new FutureCallback<T>() {
 
-            if (Preconditions.isNotBlank(header)) {
+            @Override
+            public void completed(T t) {
+
+                HttpResponse response = context.getResponse();
+                metrics.requestCompleted(response!=null ? response.getStatusLine().getStatusCode() : 0,begin);
+                if (usedProxy!=null) {
+                    usedProxy.recordSuccess();
+                    metrics.recordProxy(usedProxy,CrawlerMetrics.ProxyOutcome.SUCCESS);
+                }
+                if (t!=null && request instanceof HttpGet) { // 304或者没有响应体时consumer返回null
+                    storeValidators(request.getURI().toString(),context.getResponse());
+                }
+                result.complete(t);
+            }
 
-                if (autoReferer && !header.containsKey("Referer")) {
+            @Override
+            public void failed(Exception e) {
 
-                    header.put("Referer", Utils.getReferer(url));
+                if (e instanceof ImageRejectedException) { // 收到了响应，但不是需要的图片，与同步下载一样返回null
+                    completed(null);
+                    return;
                 }
 
-                for (String key : header.keySet()) {
-                    httpGet.setHeader(key,header.get(key));
+                metrics.requestFailed(begin);
+                if (usedProxy!=null) {
+                    log.info("proxy："+usedProxy.toString()+" 请求失败");
+                    recordProxyFailure(usedProxy);
                 }
+
+                result.completeExceptionally(e);
+            }
+
+            @Override
+            public void cancelled() {
+
+                metrics.requestFailed(begin);
+                result.cancel(false);
+            }
+        });
+
+        // 调用方取消时同时取消底层的请求
+        result.whenComplete((t,throwable) -> {
+            if (usedProxy!=null) {
+                usedProxy.requestFinished(start);
+            }
+            if (result.isCancelled()) {
+                future.cancel(true);
+            }
+        });
+
+        return result;
+    }
+
+    private synchronized CookieStore getAsyncCookieStore() {
+
+        if (asyncCookieStore == null) {
+
+            asyncCookieStore = new BasicCookieStore();
+
+            if (Preconditions.isNotBlank(httpParam) && httpParam.getCookie()!=null) {
+                asyncCookieStore.addCookie(httpParam.getCookie());
             }
         }
 
-        CloseableHttpResponse response = null;
+        return asyncCookieStore;
+    }
+
+    /**
+     * 代理池中有多个代理时开启代理池的功能，开启之后即使代理被丢弃也不再关闭，直到重新setHttpParam()
+     * @return
+     */
+    private boolean isProxyPool() {
 
-        // 执行请求
-        try {
-            response = httpClient.execute(httpGet);
-        } catch (IOException e) {
-            e.printStackTrace();
+        if (!useProxyPool && Preconditions.isNotBlank(httpParam) && httpParam.getProxyPoolSize()>1) {
+            useProxyPool = true;
         }
+        return useProxyPool;
+    }
+
+    /**
+     * 第一次使用代理池时启动后台的代理探测
+     * @return
+     */
+    private ProxyHealthChecker getProxyHealthChecker() {
+
+        ProxyHealthChecker checker = proxyHealthChecker;
 
-        return response;
+        if (checker==null) {
+
+            synchronized (this) {
+
+                if (proxyHealthChecker==null) {
+                    proxyHealthChecker = new ProxyHealthChecker(httpParam.getProxyPool(),proxyCheckInterval,
+                            ProxyHealthChecker.DEFAULT_CONNECT_TIMEOUT,proxy -> {
+                                metrics.recordProxy(proxy,CrawlerMetrics.ProxyOutcome.DISCARDED);
+                                clientCache.evict(proxy.toHttpHost());
+                            }).start();
+                }
+                checker = proxyHealthChecker;
+            }
+        }
+
+        return checker;
     }
 
+    /**
+     * 只使用一个代理或者不使用代理时，每个HttpManager只需要一个客户端，第一次请求时创建
+     * @return
+     */
     private CloseableHttpClient getHttpClient() {
 
-        if (useProxyPool) {
-            // 使用多个代理的情况
-
-            if (Preconditions.isNotBlank(httpParam)) {
-
-                int timeOut = httpParam.getTimeOut();
-                Proxy proxy = httpParam.getProxy(); // 随机取出代理
-                BasicClientCookie cookie = httpParam.getCookie();
-
-                if (proxy!=null) {
-                    HttpHost httpHost = proxy.toHttpHost();
-                    boolean check = Utils.checkProxy(httpHost);
-                    if (check) { // 代理检测成功，使用代理
-                        log.info("proxy："+proxy.toString()+" 代理可用");
-                        httpClient = createHttpClient(timeOut,httpHost,cookie);
-                    } else {
-                        log.info("proxy："+proxy.toString()+" 代理不可用");
-                        proxy.setFailureTimes(proxy.getFailureTimes()+1); // proxy的失败次数+1
-                        if (proxy.isDiscardProxy()) {                     // 如果proxy的失败次数到了可被丢弃的次数，那么会从内置的ProxyPool中删除该Proxy
-                            log.info("proxy："+proxy.toString()+"被丢弃");
-                            httpParam.getProxyPool().remove(proxy);
-                        }
-                        httpClient = createHttpClient(timeOut,null,cookie);
-                    }
-                } else { // 代理池中无代理可用的情况
-                    httpClient = createHttpClient(timeOut,null,cookie);
-                }
-            } else {
-                httpClient = createHttpClient();
+        CloseableHttpClient client = httpClient;
+        if (client!=null) return client;
+
+        synchronized (this) { // 并发的第一批请求只创建一个客户端，代理也只检测一次
+
+            if (httpClient==null) {
+                httpClient = newHttpClient();
             }
-        } else {
+            return httpClient;
+        }
+    }
 
-            if (httpClient!=null) return httpClient;
+    /**
+     * 按httpParam创建客户端，有代理时先检测代理是否可用
+     * @return
+     */
+    private CloseableHttpClient newHttpClient() {
 
-            if (Preconditions.isNotBlank(httpParam)) {
+        CloseableHttpClient client;
 
-                int timeOut = httpParam.getTimeOut();
-                int proxySize = httpParam.getProxyPoolSize();
+        if (Preconditions.isNotBlank(httpParam)) {
 
-                if (proxySize>1) {
-                    useProxyPool = true;
-                }
+            int timeOut = httpParam.getTimeOut();
+            Proxy proxy = httpParam.getProxy();
+            BasicClientCookie cookie = httpParam.getCookie();
 
-                Proxy proxy = httpParam.getProxy();
-                BasicClientCookie cookie = httpParam.getCookie();
-
-                if (proxy!=null) {
-                    HttpHost httpHost = proxy.toHttpHost();
-                    boolean check = Utils.checkProxy(httpHost);
-                    if (check) { // 代理检测成功，使用代理
-                        log.info("proxy："+proxy.toString()+" 代理可用");
-                        httpClient = createHttpClient(timeOut,httpHost,cookie);
-                    } else {
-                        log.info("proxy："+proxy.toString()+" 代理不可用");
-                        proxy.setFailureTimes(proxy.getFailureTimes()+1);
-                        if (proxy.isDiscardProxy()) {
-                            log.info("proxy："+proxy.toString()+"被丢弃");
-                            httpParam.getProxyPool().remove(proxy);
-                        }
-                        httpClient = createHttpClient(timeOut,null,cookie);
-                    }
+            if (proxy!=null) {
+                HttpHost httpHost = proxy.toHttpHost();
+                boolean check = Utils.checkProxy(httpHost); // 只在创建客户端时检测一次
+                if (check) { // 代理检测成功，使用代理
+                    log.info("proxy："+proxy.toString()+" 代理可用");
+                    client = createHttpClient(timeOut,httpHost,cookie);
                 } else {
-                    httpClient = createHttpClient(timeOut,null,cookie);
+                    log.info("proxy："+proxy.toString()+" 代理不可用");
+                    recordProxyFailure(proxy);
+                    client = createHttpClient(timeOut,null,cookie);
                 }
             } else {
-                httpClient = createHttpClient();
+                client = createHttpClient(timeOut,null,cookie);
             }
+        } else {
+            client = createHttpClient();
         }
 
-        return httpClient;
+        return client;
+    }
+
+    /**
+     * proxy的失败次数+1，并且立即从可用的代理中移除，
+     * 如果proxy的失败次数到了可被丢弃的次数，那么会从内置的ProxyPool中删除该Proxy，同时关闭缓存的使用该Proxy的客户端
+     * @param proxy
+     */
+    private void recordProxyFailure(Proxy proxy) {
+
+        proxy.recordFailure();
+        metrics.recordProxy(proxy,CrawlerMetrics.ProxyOutcome.FAILURE);
+
+        if (proxyHealthChecker!=null) {
+            proxyHealthChecker.markDown(proxy);
+        }
+
+        if (proxy.isDiscardProxy()) {
+            log.info("proxy："+proxy.toString()+"被丢弃");
+            httpParam.getProxyPool().remove(proxy);
+            metrics.recordProxy(proxy,CrawlerMetrics.ProxyOutcome.DISCARDED);
+            clientCache.evict(proxy.toHttpHost());
+        }
     }
 
     private static class Holder {
         private static final HttpManager MANAGER = new HttpManager();
     }
+
+    /**
+     * 异步的Http客户端只在第一次使用时创建，不使用异步模式时不会启动NIO线程
+     */
+    private static class AsyncHolder {
+        private static final CloseableHttpAsyncClient ASYNC_CLIENT = createAsyncHttpClient();
+    }
 }
@@ -5,13 +5,16 @@ import com.safframework.tony.common.collection.NoEmptyHashMap;
 import lombok.Getter;
 import org.apache.http.impl.cookie.BasicClientCookie;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by tony on 2017/10/27.
+ *
+ * build()时复制header和代理池，之后builder的修改不会影响已经创建的HttpParam
  */
 public class HttpParam {
 
@@ -30,35 +33,25 @@ public class HttpParam {
     @Getter
     private List<Proxy> proxyPool;
 
-    private AtomicInteger index = new AtomicInteger();
+    @Getter
+    private ProxySelector proxySelector;
 
     private HttpParam(HttpParamBuilder builder) {
         this.timeOut = builder.timeOut;
-        this.proxyPool = builder.proxyPool;
+        this.proxyPool = new CopyOnWriteArrayList<>(builder.proxyPool); // 丢弃代理时会从中删除
         this.cookie = builder.cookie;
-        this.header = builder.header;
+        this.header = Collections.unmodifiableMap(new LinkedHashMap<>(builder.header));
         this.autoReferer = builder.autoReferer;
+        this.proxySelector = builder.proxySelector!=null ? builder.proxySelector : ProxySelector.roundRobin();
     }
 
     /**
-     * 采用round robin算法来获取Proxy
+     * 使用proxySelector从代理池中选择Proxy，默认采用round robin算法
      * @return
      */
     public Proxy getProxy(){
 
-        Proxy result = null;
-
-        if (getProxyPoolSize() > 0) {
-
-            if (index.get() > proxyPool.size()-1) {
-                index.set(0);
-            }
-
-            result = proxyPool.get(index.get());
-            index.incrementAndGet();
-        }
-
-        return result;
+        return proxyPool != null ? proxySelector.select(proxyPool) : null;
     }
 
     /**
@@ -77,6 +70,7 @@ public class HttpParam {
         private List<Proxy> proxyPool = new CopyOnWriteArrayList<>();
         private Map<String,String> header = new NoEmptyHashMap<>();
         private boolean autoReferer = false;
+        private ProxySelector proxySelector;
 
         public HttpParamBuilder timeOut(int timeOut) {
             this.timeOut = timeOut;
@@ -103,6 +97,11 @@ public class HttpParam {
             return this;
         }
 
+        public HttpParamBuilder proxySelector(ProxySelector proxySelector) {
+            this.proxySelector = proxySelector;
+            return this;
+        }
+
         public HttpParamBuilder autoReferer() {
             autoReferer = true;
             return this;
@@ -0,0 +1,350 @@
+package com.cv4j.piccrawler.http;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * 按host进行限速的调度器，替代每次请求之前的Thread.sleep
+ *
+ * 每个host有独立的等待队列，两次请求之间至少间隔minInterval，并且同时进行的请求不超过maxPerHost。
+ * 被限速的host只是在队列中等待，由一个定时线程在可以请求的时候唤醒，不会有线程为了限速而sleep，
+ * 其他host的请求也不受影响。
+ * 定时线程只负责唤醒，到时间的请求交给dispatcher发起，即使发起请求时阻塞(例如下载线程池的CallerRunsPolicy)也不会耽误其他host。
+ * 请求完成之后，host中等待的请求也交给dispatcher发起，不在完成请求的线程中递归，同步完成的请求很多时也不会栈溢出。
+ * 没有等待的请求、并且已经过了间隔的host会被定期清除，抓取大量host时不会一直占用内存。
+ */
+public class PolitenessScheduler {
+
+    private static final long EXPIRE_INTERVAL_MILLIS = 10_000; // 清除空闲host的间隔
+
+    private final long minIntervalNanos;
+    private final int maxPerHost;
+    private final ConcurrentHashMap<String,HostQueue> hosts = new ConcurrentHashMap<>();
+    private final ScheduledThreadPoolExecutor timer;
+    private final ExecutorService dispatcher;
+    private volatile boolean shutdown;
+
+    /**
+     * @param minIntervalMillis 同一个host两次请求之间的最小间隔，单位是milliseconds
+     * @param maxPerHost        同一个host同时进行的最大请求数，小于等于0表示不限制
+     */
+    public PolitenessScheduler(long minIntervalMillis,int maxPerHost) {
+
+        this.minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, minIntervalMillis));
+        this.maxPerHost = maxPerHost > 0 ? maxPerHost : Integer.MAX_VALUE;
+
+        timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "piccrawler-politeness");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        timer.scheduleWithFixedDelay(this::expireIdleHosts, EXPIRE_INTERVAL_MILLIS, EXPIRE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+
+        AtomicInteger count = new AtomicInteger();
+        dispatcher = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+            Thread thread = new Thread(r, "piccrawler-politeness-dispatch-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 将请求放入对应host的队列，轮到它时调用task发起请求
+     * task需要立即返回，请求本身在task返回的CompletableFuture中完成，完成之后才会释放host的并发数
+     *
+     * @param url  请求的地址，用于获取host
+     * @param task 发起请求的方法
+     * @return 请求完成的handle，shutdown()之后被取消
+     */
+    public <T> CompletableFuture<T> submit(String url,Supplier<CompletableFuture<T>> task) {
+
+        String host = hostOf(url);
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Pending<T> pending = new Pending<>(task,result);
+
+        HostQueue queue;
+        do {
+            queue = hosts.computeIfAbsent(host, HostQueue::new);
+        } while (!queue.add(pending)); // 刚好被清除的host重新创建
+
+        if (shutdown) { // 与shutdown()同时进行时，shutdown()可能已经取消过这个队列
+            queue.cancelAll();
+            return result;
+        }
+
+        dispatch(queue);
+
+        return result;
+    }
+
+    /**
+     * @return 所有host中等待请求的数量
+     */
+    public int getPendingCount() {
+
+        int count = 0;
+        for (HostQueue queue : hosts.values()) {
+            count += queue.pendingSize();
+        }
+        return count;
+    }
+
+    /**
+     * @return 正在记录限速状态的host数量
+     */
+    public int getHostCount() {
+
+        return hosts.size();
+    }
+
+    /**
+     * 停止定时线程和dispatcher，队列中还在等待的请求不再发起，它们的handle以CancellationException结束
+     * 已经发起的请求不受影响
+     */
+    public void shutdown() {
+
+        shutdown = true;
+        timer.shutdownNow();
+        dispatcher.shutdown();
+
+        for (HostQueue queue : hosts.values()) {
+            queue.cancelAll();
+        }
+    }
+
+    /**
+     * 取出host队列中可以开始的请求，并发起请求。还没到时间的话交给定时线程稍后唤醒
+     * shutdown()之后不再发起请求
+     * @param queue
+     */
+    private void dispatch(HostQueue queue) {
+
+        if (shutdown) {
+            queue.cancelAll();
+            return;
+        }
+
+        List<Pending<?>> ready = new ArrayList<>();
+        long delay = queue.pollReady(ready);
+
+        if (delay > 0) {
+            try {
+                timer.schedule(() -> redispatch(queue,true), delay, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) { // 同时调用了shutdown()
+                queue.cancelAll();
+            }
+        }
+
+        for (Pending<?> pending : ready) {
+            start(queue,pending);
+        }
+    }
+
+    /**
+     * 在dispatcher中重新检查host的队列
+     * @param queue
+     * @param wakeup 是否是定时线程的唤醒
+     */
+    private void redispatch(HostQueue queue,boolean wakeup) {
+
+        try {
+            dispatcher.execute(() -> {
+                if (wakeup) {
+                    queue.wakeupDone();
+                }
+                dispatch(queue);
+            });
+        } catch (RejectedExecutionException e) { // 已经shutdown()
+            queue.cancelAll();
+        }
+    }
+
+    private <T> void start(HostQueue queue,Pending<T> pending) {
+
+        CompletableFuture<T> future;
+        try {
+            future = pending.task.get();
+        } catch (Throwable e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+
+        if (future == null) {
+            future = CompletableFuture.completedFuture(null);
+        }
+
+        future.whenComplete((t,throwable) -> {
+
+            queue.release();
+
+            if (throwable != null) {
+                pending.result.completeExceptionally(throwable);
+            } else {
+                pending.result.complete(t);
+            }
+
+            if (queue.pendingSize() > 0) { // future同步完成时，在这里dispatch会递归到下一个请求
+                redispatch(queue,false);
+            }
+        });
+    }
+
+    /**
+     * 清除空闲的host，之后这个host的请求会重新创建队列
+     */
+    private void expireIdleHosts() {
+
+        long now = System.nanoTime();
+
+        for (HostQueue queue : hosts.values()) {
+
+            if (queue.expire(now)) {
+                hosts.remove(queue.host, queue);
+            }
+        }
+    }
+
+    private static String hostOf(String url) {
+
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            return "";
+        }
+    }
+
+    private static class Pending<T> {
+
+        private final Supplier<CompletableFuture<T>> task;
+        private final CompletableFuture<T> result;
+
+        private Pending(Supplier<CompletableFuture<T>> task,CompletableFuture<T> result) {
+
+            this.task = task;
+            this.result = result;
+        }
+    }
+
+    /**
+     * 单个host的等待队列以及限速的状态
+     */
+    private class HostQueue {
+
+        private final String host;
+        private final Queue<Pending<?>> pending = new ArrayDeque<>();
+        private int running;
+        private long nextStartNanos = System.nanoTime();
+        private boolean wakeupScheduled;
+        private boolean removed;
+
+        HostQueue(String host) {
+
+            this.host = host;
+        }
+
+        /**
+         * @return 已经被清除时返回false，需要重新获取队列
+         */
+        synchronized boolean add(Pending<?> p) {
+
+            if (removed) return false;
+
+            pending.add(p);
+            return true;
+        }
+
+        /**
+         * 没有等待和进行中的请求，并且已经过了间隔时标记为清除
+         * @param now
+         * @return 是否可以清除
+         */
+        synchronized boolean expire(long now) {
+
+            if (pending.isEmpty() && running == 0 && !wakeupScheduled && now - nextStartNanos >= 0) {
+                removed = true;
+            }
+            return removed;
+        }
+
+        synchronized int pendingSize() {
+
+            return pending.size();
+        }
+
+        synchronized void release() {
+
+            running--;
+        }
+
+        synchronized void wakeupDone() {
+
+            wakeupScheduled = false;
+        }
+
+        /**
+         * 取消全部等待的请求
+         */
+        void cancelAll() {
+
+            List<Pending<?>> cancelled;
+            synchronized (this) {
+                cancelled = new ArrayList<>(pending);
+                pending.clear();
+            }
+
+            for (Pending<?> p : cancelled) {
+                p.result.completeExceptionally(new CancellationException("politeness scheduler is shut down"));
+            }
+        }
+
+        /**
+         * 取出可以立即开始的请求
+         * @param ready 可以开始的请求
+         * @return 需要定时唤醒时返回等待的纳秒数，否则返回0
+         */
+        synchronized long pollReady(List<Pending<?>> ready) {
+
+            while (!pending.isEmpty() && running < maxPerHost) {
+
+                Pending<?> next = pending.peek();
+                if (next.result.isDone()) { // 已经被调用方取消
+                    pending.poll();
+                    continue;
+                }
+
+                long now = System.nanoTime();
+                long wait = nextStartNanos - now;
+                if (wait > 0) {
+
+                    if (wakeupScheduled) return 0;
+
+                    wakeupScheduled = true;
+                    return wait;
+                }
+
+                pending.poll();
+                running++;
+                nextStartNanos = now + minIntervalNanos;
+                ready.add(next);
+            }
+
+            return 0;
+        }
+    }
+}
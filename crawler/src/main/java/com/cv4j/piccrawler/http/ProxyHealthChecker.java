@@ -0,0 +1,210 @@
+package com.cv4j.piccrawler.http;
+
+import com.cv4j.piccrawler.domain.Proxy;
+import com.safframework.tony.common.utils.IOUtils;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.HttpHost;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 在后台定期探测代理池中的全部代理，维护可用代理的集合
+ *
+ * 一轮探测中所有代理的连接都是非阻塞的，注册在同一个Selector上，一个线程就可以同时探测全部代理，
+ * 一轮的耗时最多是一个连接超时时间。请求时从getReadyProxies()中选择代理，不需要任何I/O
+ */
+@Slf4j
+public class ProxyHealthChecker implements Closeable {
+
+    public static final long DEFAULT_INTERVAL = 30_000;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 3000;
+
+    private final List<Proxy> proxyPool;
+    private final long intervalMillis;
+    private final int connectTimeoutMillis;
+    private final Consumer<Proxy> discardListener;
+
+    private volatile List<Proxy> ready;   // 可用的代理，整体替换，读取时不需要加锁
+    private final Thread thread;
+    private volatile boolean closed;
+
+    /**
+     * @param proxyPool            代理池，探测时读取当前的全部代理
+     * @param intervalMillis       两轮探测之间的间隔
+     * @param connectTimeoutMillis 连接的超时时间
+     * @param discardListener      失败次数达到丢弃的次数时调用，可以为null
+     */
+    public ProxyHealthChecker(List<Proxy> proxyPool,long intervalMillis,int connectTimeoutMillis,Consumer<Proxy> discardListener) {
+
+        this.proxyPool = proxyPool;
+        this.intervalMillis = intervalMillis;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.discardListener = discardListener;
+
+        // 第一轮探测完成之前，认为全部代理都可用
+        this.ready = snapshot(proxyPool);
+
+        thread = new Thread(this::run, "piccrawler-proxy-health");
+        thread.setDaemon(true);
+    }
+
+    public ProxyHealthChecker start() {
+
+        thread.start();
+        return this;
+    }
+
+    /**
+     * @return 当前可用的代理，不可修改
+     */
+    public List<Proxy> getReadyProxies() {
+
+        return ready;
+    }
+
+    /**
+     * 请求失败时立即从可用的代理中移除，下一轮探测成功后再加入
+     * @param proxy
+     */
+    public synchronized void markDown(Proxy proxy) {
+
+        List<Proxy> proxies = ready;
+        List<Proxy> list = new ArrayList<>(proxies.size());
+        for (Proxy p : proxies) {
+            if (p != proxy) list.add(p);
+        }
+
+        if (list.size() != proxies.size()) {
+            ready = snapshot(list);
+        }
+    }
+
+    @Override
+    public void close() {
+
+        closed = true;
+        thread.interrupt();
+    }
+
+    private void run() {
+
+        while (!closed) {
+
+            try {
+                probeAll();
+                TimeUnit.MILLISECONDS.sleep(intervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                log.warn("proxy health check failed", e);
+            }
+        }
+    }
+
+    /**
+     * 探测一轮全部的代理
+     */
+    void probeAll() throws IOException {
+
+        List<Proxy> proxies = new ArrayList<>(proxyPool);
+        if (proxies.isEmpty()) {
+            ready = Collections.emptyList();
+            return;
+        }
+
+        Set<Proxy> alive = new HashSet<>();
+        int pending = 0;
+
+        try (Selector selector = Selector.open()) {
+
+            for (Proxy proxy : proxies) {
+
+                SocketChannel channel = null;
+                try {
+                    HttpHost host = proxy.toHttpHost();
+                    channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+
+                    if (channel.connect(new InetSocketAddress(host.getHostName(), host.getPort()))) {
+                        alive.add(proxy);
+                        channel.close();
+                    } else {
+                        channel.register(selector, SelectionKey.OP_CONNECT, proxy);
+                        pending++;
+                    }
+                } catch (IOException | RuntimeException e) { // 无法解析的地址等
+                    IOUtils.closeQuietly(channel);
+                }
+            }
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connectTimeoutMillis);
+
+            while (pending > 0) {
+
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) break;
+
+                selector.select(remaining);
+
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    pending--;
+                    try {
+                        if (channel.finishConnect()) {
+                            alive.add((Proxy) key.attachment());
+                        }
+                    } catch (IOException e) { // 连接被拒绝等
+                    } finally {
+                        key.cancel();
+                        IOUtils.closeQuietly(channel);
+                    }
+                }
+            }
+
+            // 超时没有连上的代理
+            for (SelectionKey key : selector.keys()) {
+                IOUtils.closeQuietly(key.channel());
+            }
+        }
+
+        List<Proxy> readyList = new ArrayList<>(alive.size());
+        for (Proxy proxy : proxies) {
+
+            if (alive.contains(proxy)) {
+                readyList.add(proxy);
+            } else {
+                log.info("proxy："+proxy.toString()+" 代理不可用");
+                proxy.recordFailure();
+                if (proxy.isDiscardProxy()) {
+                    log.info("proxy："+proxy.toString()+"被丢弃");
+                    proxyPool.remove(proxy);
+                    if (discardListener != null) {
+                        discardListener.accept(proxy);
+                    }
+                }
+            }
+        }
+
+        synchronized (this) {
+            ready = snapshot(readyList);
+        }
+    }
+
+    private static List<Proxy> snapshot(List<Proxy> proxies) {
+
+        return Collections.unmodifiableList(Arrays.asList(proxies.toArray(new Proxy[0])));
+    }
+}
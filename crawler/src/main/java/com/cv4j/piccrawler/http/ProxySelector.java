@@ -0,0 +1,123 @@
+package com.cv4j.piccrawler.http;
+
+import com.cv4j.piccrawler.domain.Proxy;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 从多个代理中选择这次请求使用的代理，实现必须是线程安全的
+ * 候选的列表可能在选择的同时被修改(代理被丢弃)，实现不能因此抛出异常
+ */
+public interface ProxySelector {
+
+    /**
+     * @param proxies 候选的代理
+     * @return 没有候选的代理时返回null
+     */
+    Proxy select(List<Proxy> proxies);
+
+    /**
+     * @return 轮询，每个代理承担相同的请求数
+     */
+    static ProxySelector roundRobin() {
+
+        return new RoundRobin();
+    }
+
+    /**
+     * @return 选择正在进行的请求最少的代理，慢的代理积压的请求多，自然分到的请求就少
+     */
+    static ProxySelector leastInFlight() {
+
+        return new LeastInFlight();
+    }
+
+    /**
+     * @return 按请求耗时的指数加权平均和正在进行的请求数评分，随机取两个代理选择评分低的(power of two choices)，
+     *         快的代理承担更多的请求，慢的代理只是请求变少，不会被丢弃
+     */
+    static ProxySelector latency() {
+
+        return new Latency();
+    }
+
+    class RoundRobin implements ProxySelector {
+
+        private final AtomicInteger index = new AtomicInteger();
+
+        @Override
+        public Proxy select(List<Proxy> proxies) {
+
+            while (true) {
+
+                int size = proxies.size();
+                if (size == 0) return null;
+
+                try {
+                    return proxies.get((index.getAndIncrement() & Integer.MAX_VALUE) % size);
+                } catch (IndexOutOfBoundsException e) { // 选择的同时有代理被移除，重新选择
+                }
+            }
+        }
+    }
+
+    class LeastInFlight implements ProxySelector {
+
+        private final AtomicInteger offset = new AtomicInteger();
+
+        @Override
+        public Proxy select(List<Proxy> proxies) {
+
+            Proxy best = null;
+            int bestInFlight = Integer.MAX_VALUE;
+
+            // 每次从不同的位置开始，请求数相同的代理轮流被选中
+            Object[] snapshot = proxies.toArray();
+            int size = snapshot.length;
+            int start = size > 0 ? (offset.getAndIncrement() & Integer.MAX_VALUE) % size : 0;
+
+            for (int i = 0; i < size; i++) {
+
+                Proxy proxy = (Proxy) snapshot[(start + i) % size];
+                int inFlight = proxy.getInFlight();
+                if (inFlight < bestInFlight) {
+                    best = proxy;
+                    bestInFlight = inFlight;
+                }
+            }
+
+            return best;
+        }
+    }
+
+    class Latency implements ProxySelector {
+
+        @Override
+        public Proxy select(List<Proxy> proxies) {
+
+            Object[] snapshot = proxies.toArray();
+            int size = snapshot.length;
+            if (size == 0) return null;
+            if (size == 1) return (Proxy) snapshot[0];
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int a = random.nextInt(size);
+            int b = random.nextInt(size - 1);
+            if (b >= a) b++;
+
+            Proxy first = (Proxy) snapshot[a];
+            Proxy second = (Proxy) snapshot[b];
+            return score(first) <= score(second) ? first : second;
+        }
+
+        /**
+         * 还没有样本的代理评分为0，优先被选中，从而得到样本
+         */
+        private static double score(Proxy proxy) {
+
+            return (double) proxy.getLatencyEwma() * (proxy.getInFlight() + 1);
+        }
+    }
+}
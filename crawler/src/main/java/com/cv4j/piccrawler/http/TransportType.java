@@ -0,0 +1,10 @@
+package com.cv4j.piccrawler.http;
+
+/**
+ * 网络请求的传输方式
+ */
+public enum TransportType {
+
+    BLOCKING,   // 基于阻塞的CloseableHttpClient，每个请求在传输过程中都会占用一个线程
+    ASYNC       // 基于NIO的CloseableHttpAsyncClient，响应体直接写入文件，少量线程就可以支撑大量的下载
+}
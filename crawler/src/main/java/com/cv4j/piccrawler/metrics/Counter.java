@@ -0,0 +1,48 @@
+package com.cv4j.piccrawler.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 只增不减的计数，基于LongAdder，多个线程同时记录时没有竞争
+ */
+public class Counter extends Metric {
+
+    private final LongAdder value = new LongAdder();
+
+    Counter(String name,String help,String... labels) {
+
+        super(name,help,labels);
+    }
+
+    public void inc() {
+
+        value.increment();
+    }
+
+    /**
+     * @param n 不能是负数
+     */
+    public void add(long n) {
+
+        if (n > 0) {
+            value.add(n);
+        }
+    }
+
+    public long get() {
+
+        return value.sum();
+    }
+
+    @Override
+    public Type getType() {
+
+        return Type.COUNTER;
+    }
+
+    @Override
+    MetricsSnapshot.Sample sample() {
+
+        return new MetricsSnapshot.Sample(this,get(),null);
+    }
+}
@@ -0,0 +1,53 @@
+package com.cv4j.piccrawler.metrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 记录读取的字节数，用于统计网页这类整体读入内存的响应体
+ */
+public class CountingInputStream extends FilterInputStream {
+
+    private long count;
+
+    public CountingInputStream(InputStream in) {
+
+        super(in);
+    }
+
+    public long getCount() {
+
+        return count;
+    }
+
+    @Override
+    public int read() throws IOException {
+
+        int b = super.read();
+        if (b >= 0) count++;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b,int off,int len) throws IOException {
+
+        int n = super.read(b,off,len);
+        if (n > 0) count += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+
+        long skipped = super.skip(n);
+        count += skipped;
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+
+        return false;
+    }
+}
@@ -0,0 +1,220 @@
+package com.cv4j.piccrawler.metrics;
+
+import com.cv4j.piccrawler.domain.Proxy;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 爬虫各个阶段的指标：请求(按状态码)、下载的字节数、抓取/解析/写文件的耗时、正在进行的请求数、代理的请求结果以及被拒绝的图片
+ * HttpManager、PicParser/UrlParser和DownloadManager在处理的过程中记录，记录时不分配内存
+ */
+public class CrawlerMetrics {
+
+    public static final String REQUESTS = "piccrawler_requests_total";
+    public static final String REQUEST_ERRORS = "piccrawler_request_errors_total";
+    public static final String IN_FLIGHT = "piccrawler_requests_in_flight";
+    public static final String DOWNLOADED_BYTES = "piccrawler_downloaded_bytes_total";
+    public static final String IMAGES_WRITTEN = "piccrawler_images_written_total";
+    public static final String PARSED_URLS = "piccrawler_parsed_urls_total";
+    public static final String STAGE_DURATION = "piccrawler_stage_duration_seconds";
+    public static final String PROXY_REQUESTS = "piccrawler_proxy_requests_total";
+    public static final String IMAGES_REJECTED = "piccrawler_images_rejected_total";
+
+    public enum ProxyOutcome {
+        SUCCESS, FAILURE, DISCARDED
+    }
+
+    /**
+     * 图片在写入文件之前被拒绝的原因
+     */
+    public enum RejectReason {
+        STATUS,         // 状态码不是200/206
+        CONTENT_TYPE,   // Content-Type不是图片，例如text/html的错误页
+        SIZE,           // 超出了设置的最小/最大长度
+        SIGNATURE       // 开头的字节不是能识别的图片格式
+    }
+
+    private static final double NANOS_TO_SECONDS = 1e-9;
+    private static final int MAX_STATUS = 600;
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+
+    private final LongAdder inFlight = new LongAdder();
+    private final AtomicReferenceArray<Counter> statusCounters = new AtomicReferenceArray<>(MAX_STATUS);
+    private final ConcurrentHashMap<String,Counter[]> proxyCounters = new ConcurrentHashMap<>(); // key是代理的host:port，重建代理池之后仍然是同一组指标
+
+    private final Counter errors;
+    private final Counter imageBytes;
+    private final Counter pageBytes;
+    private final Counter images;
+    private final Counter parsedUrls;
+    private final Histogram fetch;
+    private final Histogram parse;
+    private final Histogram write;
+    private final Counter[] rejected;
+
+    CrawlerMetrics() {
+
+        registry.gauge(IN_FLIGHT,"Requests waiting for the response headers",inFlight::sum);
+
+        errors = registry.counter(REQUEST_ERRORS,"Requests failed without a response");
+        imageBytes = registry.counter(DOWNLOADED_BYTES,"Bytes of response bodies read","kind","image");
+        pageBytes = registry.counter(DOWNLOADED_BYTES,"Bytes of response bodies read","kind","page");
+        images = registry.counter(IMAGES_WRITTEN,"Images written to disk");
+        parsedUrls = registry.counter(PARSED_URLS,"Urls extracted from pages");
+
+        String help = "Latency of each stage: fetch (until response headers, whole exchange for async), parse, write";
+        fetch = registry.histogram(STAGE_DURATION,help,NANOS_TO_SECONDS,"stage","fetch");
+        parse = registry.histogram(STAGE_DURATION,help,NANOS_TO_SECONDS,"stage","parse");
+        write = registry.histogram(STAGE_DURATION,help,NANOS_TO_SECONDS,"stage","write");
+
+        RejectReason[] reasons = RejectReason.values();
+        rejected = new Counter[reasons.length];
+        for (int i = 0; i < reasons.length; i++) {
+            rejected[i] = registry.counter(IMAGES_REJECTED,"Image responses aborted before or while writing",
+                    "reason",reasons[i].name().toLowerCase());
+        }
+    }
+
+    public static CrawlerMetrics get() {
+        return Holder.METRICS;
+    }
+
+    /**
+     * @return 注册表，可以注册其他的指标
+     */
+    public MetricsRegistry getRegistry() {
+
+        return registry;
+    }
+
+    public MetricsSnapshot snapshot() {
+
+        return registry.snapshot();
+    }
+
+    /**
+     * 发起请求时调用
+     * @return 开始的时间，请求结束时传给requestCompleted()或者requestFailed()
+     */
+    public long requestStarted() {
+
+        inFlight.increment();
+        return System.nanoTime();
+    }
+
+    /**
+     * 收到响应时调用
+     * @param status     状态码
+     * @param startNanos requestStarted()的返回值
+     */
+    public void requestCompleted(int status,long startNanos) {
+
+        fetch.recordSince(startNanos);
+        inFlight.decrement();
+        statusCounter(status).inc();
+    }
+
+    /**
+     * 没有收到响应时调用，例如连接失败、超时
+     * @param startNanos requestStarted()的返回值
+     */
+    public void requestFailed(long startNanos) {
+
+        fetch.recordSince(startNanos);
+        inFlight.decrement();
+        errors.inc();
+    }
+
+    /**
+     * @param urls       解析出的url数量
+     * @param startNanos 开始解析的时间
+     */
+    public void recordParse(int urls,long startNanos) {
+
+        parse.recordSince(startNanos);
+        parsedUrls.add(urls);
+    }
+
+    /**
+     * 图片写入文件之后调用
+     * @param bytes      写入的字节数
+     * @param startNanos 开始写入的时间
+     */
+    public void recordWrite(long bytes,long startNanos) {
+
+        write.recordSince(startNanos);
+        recordImage(bytes);
+    }
+
+    /**
+     * 异步下载时图片的读取和写入是交替进行的，只记录字节数
+     * @param bytes
+     */
+    public void recordImage(long bytes) {
+
+        imageBytes.add(bytes);
+        images.inc();
+    }
+
+    /**
+     * @param reason 图片被拒绝的原因
+     */
+    public void recordRejected(RejectReason reason) {
+
+        rejected[reason.ordinal()].inc();
+    }
+
+    /**
+     * @param bytes 网页的字节数
+     */
+    public void recordPage(long bytes) {
+
+        pageBytes.add(bytes);
+    }
+
+    /**
+     * @param proxy
+     * @param outcome 通过代理的请求的结果，或者代理被丢弃
+     */
+    public void recordProxy(Proxy proxy,ProxyOutcome outcome) {
+
+        String hostPort = proxy.toHttpHost().toHostString();
+
+        Counter[] counters = proxyCounters.get(hostPort);
+        if (counters == null) {
+            counters = proxyCounters.computeIfAbsent(hostPort,this::newProxyCounters);
+        }
+        counters[outcome.ordinal()].inc();
+    }
+
+    private Counter[] newProxyCounters(String hostPort) {
+
+        ProxyOutcome[] outcomes = ProxyOutcome.values();
+        Counter[] counters = new Counter[outcomes.length];
+        for (int i = 0; i < outcomes.length; i++) {
+            counters[i] = registry.counter(PROXY_REQUESTS,"Requests through each proxy by outcome",
+                    "proxy",hostPort,"outcome",outcomes[i].name().toLowerCase());
+        }
+        return counters;
+    }
+
+    private Counter statusCounter(int status) {
+
+        int index = status > 0 && status < MAX_STATUS ? status : 0;
+
+        Counter counter = statusCounters.get(index);
+        if (counter == null) { // 并发创建时注册表返回同一个Counter
+            counter = registry.counter(REQUESTS,"Responses received by status code",
+                    "status",index > 0 ? String.valueOf(status) : "other");
+            statusCounters.set(index,counter);
+        }
+        return counter;
+    }
+
+    private static class Holder {
+        private static final CrawlerMetrics METRICS = new CrawlerMetrics();
+    }
+}
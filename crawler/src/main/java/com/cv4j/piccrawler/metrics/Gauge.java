@@ -0,0 +1,34 @@
+package com.cv4j.piccrawler.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * 读取时才计算的值，例如正在进行的请求数、连接池中空闲的连接数
+ */
+public class Gauge extends Metric {
+
+    private final LongSupplier supplier;
+
+    Gauge(String name,String help,LongSupplier supplier,String... labels) {
+
+        super(name,help,labels);
+        this.supplier = supplier;
+    }
+
+    public long get() {
+
+        return supplier.getAsLong();
+    }
+
+    @Override
+    public Type getType() {
+
+        return Type.GAUGE;
+    }
+
+    @Override
+    MetricsSnapshot.Sample sample() {
+
+        return new MetricsSnapshot.Sample(this,get(),null);
+    }
+}
@@ -0,0 +1,99 @@
+package com.cv4j.piccrawler.metrics;
+
+import lombok.Getter;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 与HdrHistogram相同的对数-线性分桶：每个2的幂次的区间再平均分成16个桶，相对误差不超过1/16
+ * 桶的数量是固定的，可以记录0到Long.MAX_VALUE的任意值，record()只做几次原子加法，不分配内存
+ */
+public class Histogram extends Metric {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    @Getter
+    private final double scale;        // 导出时乘以的系数，例如记录纳秒、导出秒时是1e-9
+
+    Histogram(String name,String help,double scale,String... labels) {
+
+        super(name,help,labels);
+        this.scale = scale;
+    }
+
+    /**
+     * @param value 负数按0记录
+     */
+    public void record(long value) {
+
+        if (value < 0) value = 0;
+
+        counts.incrementAndGet(index(value));
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * @param startNanos System.nanoTime()
+     */
+    public void recordSince(long startNanos) {
+
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return 当前的分布，拷贝期间仍然可以记录，因此各项之间可能有很小的偏差
+     */
+    public HistogramSnapshot snapshot() {
+
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        return new HistogramSnapshot(copy,count,sum.sum(),max.get());
+    }
+
+    @Override
+    public Type getType() {
+
+        return Type.SUMMARY;
+    }
+
+    @Override
+    MetricsSnapshot.Sample sample() {
+
+        HistogramSnapshot snapshot = snapshot();
+        return new MetricsSnapshot.Sample(this,snapshot.getCount(),snapshot);
+    }
+
+    static int index(long value) {
+
+        if (value < SUB_BUCKETS) return (int) value;
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * @param index
+     * @return 桶中最大的值
+     */
+    static long highestEquivalentValue(int index) {
+
+        if (index < SUB_BUCKETS) return index;
+
+        int shift = (index >> SUB_BUCKET_BITS) - 1;
+        long subBucket = (index & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,58 @@
+package com.cv4j.piccrawler.metrics;
+
+import lombok.Getter;
+
+/**
+ * Histogram在某一时刻的分布
+ */
+public class HistogramSnapshot {
+
+    private final long[] counts;
+
+    @Getter
+    private final long count;
+    @Getter
+    private final long sum;
+    @Getter
+    private final long max;
+
+    HistogramSnapshot(long[] counts,long count,long sum,long max) {
+
+        this.counts = counts;
+        this.count = count;
+        this.sum = sum;
+        this.max = max;
+    }
+
+    public double getMean() {
+
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @param percentile 0到100，例如99.9
+     * @return 至少percentile%的值不超过返回值，误差不超过1/16
+     */
+    public long getValueAtPercentile(double percentile) {
+
+        if (count == 0) return 0;
+
+        long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+
+            seen += counts[i];
+            if (seen >= target) {
+                return Math.min(Histogram.highestEquivalentValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+
+        return "count="+count+",mean="+String.format("%.1f",getMean())+",p50="+getValueAtPercentile(50)
+                +",p99="+getValueAtPercentile(99)+",max="+max;
+    }
+}
@@ -0,0 +1,91 @@
+package com.cv4j.piccrawler.metrics;
+
+import lombok.Getter;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 指标的基类，一个Metric对应一个名称和一组label，例如 piccrawler_requests_total{status="200"}
+ */
+@Getter
+public abstract class Metric {
+
+    public enum Type {
+        COUNTER, GAUGE, SUMMARY
+    }
+
+    private final String name;
+    private final String help;
+    private final Map<String,String> labels;
+    private final String key;          // name加上label，在MetricsRegistry中唯一
+
+    protected Metric(String name,String help,String... labels) {
+
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("labels must be name/value pairs: " + name);
+        }
+
+        Map<String,String> map = new LinkedHashMap<>();
+        for (int i = 0; i < labels.length; i += 2) {
+            map.put(labels[i], labels[i + 1]);
+        }
+
+        this.name = name;
+        this.help = help;
+        this.labels = Collections.unmodifiableMap(map);
+        this.key = key(name,labels);
+    }
+
+    public abstract Type getType();
+
+    /**
+     * @return 当前的值，读取时不会阻塞记录
+     */
+    abstract MetricsSnapshot.Sample sample();
+
+    /**
+     * @param name
+     * @param labels label的名称和值，成对出现
+     * @return Prometheus格式的名称，例如 name{k="v"}
+     */
+    static String key(String name,String... labels) {
+
+        if (labels.length == 0) return name;
+
+        StringBuilder sb = new StringBuilder(name).append('{');
+        for (int i = 0; i < labels.length; i += 2) {
+
+            if (i > 0) sb.append(',');
+            sb.append(labels[i]).append("=\"");
+
+            String value = labels[i + 1];
+            for (int j = 0; j < value.length(); j++) {
+
+                char c = value.charAt(j);
+                switch (c) {
+                    case '\\':
+                        sb.append("\\\\");
+                        break;
+                    case '"':
+                        sb.append("\\\"");
+                        break;
+                    case '\n':
+                        sb.append("\\n");
+                        break;
+                    default:
+                        sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    @Override
+    public String toString() {
+
+        return key;
+    }
+}
@@ -0,0 +1,81 @@
+package com.cv4j.piccrawler.metrics;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * 指标的注册表，同一个name和label只会创建一次，重复注册返回已有的指标
+ * 记录的路径上应该持有指标的引用，不要每次都从注册表中查找
+ */
+public class MetricsRegistry {
+
+    private final ConcurrentHashMap<String,Metric> metrics = new ConcurrentHashMap<>();
+
+    /**
+     * @param name
+     * @param help
+     * @param labels label的名称和值，成对出现
+     * @return
+     */
+    public Counter counter(String name,String help,String... labels) {
+
+        return register(Counter.class,new Counter(name,help,labels));
+    }
+
+    /**
+     * @param name
+     * @param help
+     * @param supplier 读取时调用，需要是线程安全的
+     * @param labels   label的名称和值，成对出现
+     * @return
+     */
+    public Gauge gauge(String name,String help,LongSupplier supplier,String... labels) {
+
+        return register(Gauge.class,new Gauge(name,help,supplier,labels));
+    }
+
+    /**
+     * @param name
+     * @param help
+     * @param scale  导出时乘以的系数，例如记录纳秒、导出秒时是1e-9
+     * @param labels label的名称和值，成对出现
+     * @return
+     */
+    public Histogram histogram(String name,String help,double scale,String... labels) {
+
+        return register(Histogram.class,new Histogram(name,help,scale,labels));
+    }
+
+    private <T extends Metric> T register(Class<T> type,T metric) {
+
+        Metric existing = metrics.putIfAbsent(metric.getKey(),metric);
+
+        if (existing == null) return metric;
+
+        if (!type.isInstance(existing)) {
+            throw new IllegalArgumentException(metric.getKey()+" is already registered as "+existing.getType());
+        }
+        return type.cast(existing);
+    }
+
+    /**
+     * @return 全部指标当前的值
+     */
+    public MetricsSnapshot snapshot() {
+
+        List<Metric> list = new ArrayList<>(metrics.values());
+        list.sort(Comparator.comparing(Metric::getName).thenComparing(Metric::getKey));
+
+        List<MetricsSnapshot.Sample> samples = new ArrayList<>(list.size());
+        Map<String,MetricsSnapshot.Sample> byKey = new HashMap<>();
+        for (Metric metric : list) {
+
+            MetricsSnapshot.Sample sample = metric.sample();
+            samples.add(sample);
+            byKey.put(sample.getKey(),sample);
+        }
+
+        return new MetricsSnapshot(System.currentTimeMillis(),samples,byKey);
+    }
+}
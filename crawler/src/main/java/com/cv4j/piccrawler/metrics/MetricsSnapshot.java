@@ -0,0 +1,105 @@
+package com.cv4j.piccrawler.metrics;
+
+import lombok.Getter;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 某一时刻全部指标的值，按名称排序，同名的指标相邻
+ */
+public class MetricsSnapshot {
+
+    @Getter
+    private final long timestamp;
+    @Getter
+    private final List<Sample> samples;
+
+    private final Map<String,Sample> byKey;
+
+    MetricsSnapshot(long timestamp,List<Sample> samples,Map<String,Sample> byKey) {
+
+        this.timestamp = timestamp;
+        this.samples = Collections.unmodifiableList(samples);
+        this.byKey = byKey;
+    }
+
+    /**
+     * @param name
+     * @param labels label的名称和值，成对出现
+     * @return 计数或者gauge的值，不存在时返回0
+     */
+    public long get(String name,String... labels) {
+
+        Sample sample = byKey.get(Metric.key(name,labels));
+        return sample!=null ? sample.getValue() : 0;
+    }
+
+    /**
+     * @param name
+     * @param labels label的名称和值，成对出现
+     * @return 不存在时返回null
+     */
+    public HistogramSnapshot getHistogram(String name,String... labels) {
+
+        Sample sample = byKey.get(Metric.key(name,labels));
+        return sample!=null ? sample.getHistogram() : null;
+    }
+
+    /**
+     * @param name
+     * @return 同名的全部指标的值之和，例如所有状态码的请求数
+     */
+    public long sum(String name) {
+
+        long total = 0;
+        for (Sample sample : samples) {
+            if (sample.getName().equals(name)) {
+                total += sample.getValue();
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+
+        StringBuilder sb = new StringBuilder();
+        for (Sample sample : samples) {
+            sb.append(sample).append('\n');
+        }
+        return sb.toString();
+    }
+
+    @Getter
+    public static class Sample {
+
+        private final String name;
+        private final String help;
+        private final Metric.Type type;
+        private final Map<String,String> labels;
+        private final String key;
+        private final long value;                // SUMMARY是记录的次数
+        private final HistogramSnapshot histogram; // 只有SUMMARY不为null
+        private final double scale;
+
+        Sample(Metric metric,long value,HistogramSnapshot histogram) {
+
+            this.name = metric.getName();
+            this.help = metric.getHelp();
+            this.type = metric.getType();
+            this.labels = metric.getLabels();
+            this.key = metric.getKey();
+            this.value = value;
+            this.histogram = histogram;
+            this.scale = metric instanceof Histogram ? ((Histogram) metric).getScale() : 1;
+        }
+
+        @Override
+        public String toString() {
+
+            return histogram!=null ? key+" "+histogram : key+" "+value;
+        }
+    }
+}
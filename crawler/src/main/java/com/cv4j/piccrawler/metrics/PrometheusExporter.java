@@ -0,0 +1,199 @@
+package com.cv4j.piccrawler.metrics;
+
+import com.sun.net.httpserver.HttpServer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 把MetricsRegistry中的指标导出成Prometheus的文本格式
+ *
+ * 1. toFile()定期写入本地文件，可以交给node_exporter的textfile collector
+ * 2. serve()在本地端口上提供 /metrics
+ *
+ * Histogram导出成summary，包括0.5、0.9、0.99、0.999的分位数以及_sum、_count
+ */
+@Slf4j
+public class PrometheusExporter implements Closeable {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final MetricsRegistry registry;
+    private ScheduledExecutorService scheduler;
+    private HttpServer server;
+
+    public PrometheusExporter(MetricsRegistry registry) {
+
+        this.registry = registry;
+    }
+
+    /**
+     * 定期把指标写入文件，先写入临时文件再重命名，读取方不会读到写了一半的文件
+     * @param file
+     * @param intervalMillis 写入的间隔
+     * @return
+     */
+    public synchronized PrometheusExporter toFile(File file,long intervalMillis) {
+
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "piccrawler-metrics-exporter");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                writeFile(file);
+            } catch (IOException | RuntimeException e) {
+                log.warn("can not write metrics to "+file,e);
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+
+        return this;
+    }
+
+    /**
+     * 在端口上提供 /metrics，HttpServer的线程不是daemon线程，不再需要时调用close()
+     * @param port
+     * @return
+     * @throws IOException 端口被占用等
+     */
+    public synchronized PrometheusExporter serve(int port) throws IOException {
+
+        if (server != null) {
+            throw new IllegalStateException("already serving on "+server.getAddress());
+        }
+
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress(port), 0);
+        httpServer.createContext("/metrics", exchange -> {
+            try {
+                byte[] body = format(registry.snapshot()).getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+        httpServer.setExecutor(null); // 在HttpServer自己的线程中处理
+        httpServer.start();
+
+        server = httpServer;
+        return this;
+    }
+
+    /**
+     * 立即写入一次
+     * @param file
+     * @throws IOException
+     */
+    public void writeFile(File file) throws IOException {
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) {
+            parent.mkdirs();
+        }
+
+        File tmp = new File(parent, "." + file.getName() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+            writer.write(format(registry.snapshot()));
+        }
+
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * @param snapshot
+     * @return Prometheus的文本格式(0.0.4)
+     */
+    public static String format(MetricsSnapshot snapshot) {
+
+        StringBuilder sb = new StringBuilder(4096);
+        String lastName = null;
+
+        for (MetricsSnapshot.Sample sample : snapshot.getSamples()) {
+
+            String name = sample.getName();
+            if (!name.equals(lastName)) {
+
+                sb.append("# HELP ").append(name).append(' ').append(escapeHelp(sample.getHelp())).append('\n');
+                sb.append("# TYPE ").append(name).append(' ').append(sample.getType().name().toLowerCase(Locale.ROOT)).append('\n');
+                lastName = name;
+            }
+
+            HistogramSnapshot histogram = sample.getHistogram();
+            if (histogram == null) {
+                sb.append(sample.getKey()).append(' ').append(sample.getValue()).append('\n');
+                continue;
+            }
+
+            double scale = sample.getScale();
+            for (double quantile : QUANTILES) {
+                appendSeries(sb, name, "", sample, "quantile", String.valueOf(quantile));
+                sb.append(' ').append(number(histogram.getValueAtPercentile(quantile * 100) * scale)).append('\n');
+            }
+            appendSeries(sb, name, "_sum", sample, null, null);
+            sb.append(' ').append(number(histogram.getSum() * scale)).append('\n');
+            appendSeries(sb, name, "_count", sample, null, null);
+            sb.append(' ').append(histogram.getCount()).append('\n');
+        }
+
+        return sb.toString();
+    }
+
+    private static void appendSeries(StringBuilder sb,String name,String suffix,MetricsSnapshot.Sample sample,String extraName,String extraValue) {
+
+        String[] labels = new String[sample.getLabels().size() * 2 + (extraName != null ? 2 : 0)];
+        int i = 0;
+        for (Map.Entry<String,String> entry : sample.getLabels().entrySet()) {
+            labels[i++] = entry.getKey();
+            labels[i++] = entry.getValue();
+        }
+        if (extraName != null) {
+            labels[i++] = extraName;
+            labels[i] = extraValue;
+        }
+        sb.append(Metric.key(name + suffix, labels));
+    }
+
+    private static String number(double value) {
+
+        return value == Math.rint(value) && Math.abs(value) < 1e15 ? String.valueOf((long) value) : String.valueOf(value);
+    }
+
+    private static String escapeHelp(String help) {
+
+        return help.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+
+    @Override
+    public synchronized void close() {
+
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.cv4j.piccrawler.parser;
 
+import com.cv4j.piccrawler.metrics.CrawlerMetrics;
+import com.cv4j.piccrawler.utils.UrlNormalizer;
 import com.cv4j.piccrawler.utils.Utils;
 import com.safframework.tony.common.utils.Preconditions;
 import lombok.extern.slf4j.Slf4j;
@@ -19,6 +21,7 @@ public class PicParser implements PageParser<List<String>>{
     @Override
     public List<String> parse(Document doc) {
 
+        long start = System.nanoTime();
         List<String> urls = new ArrayList<>();
 
         Elements media = doc.select("[src]");
@@ -37,10 +40,10 @@ public class PicParser implements PageParser<List<String>>{
                         }
                     } else if (Preconditions.isNotBlank(src.attr("src"))){ // 图片的相对路径不为空
 
-                        String picUrl = src.attr("src").replace("//","");
-                        picUrl = "http://"+ Utils.tryToEscapeUrl(picUrl);
+                        // 去掉"//"、转义并且加上"http://"，不合法时返回null
+                        String picUrl = UrlNormalizer.get().imageUrl(src.attr("src"));
                         log.info(picUrl);
-                        if (Utils.isValidUrl(picUrl)) {
+                        if (picUrl!=null) {
                             urls.add(picUrl);
                         }
                     }
@@ -48,6 +51,7 @@ public class PicParser implements PageParser<List<String>>{
             }
         }
 
+        CrawlerMetrics.get().recordParse(urls.size(),start);
         return urls;
     }
 }
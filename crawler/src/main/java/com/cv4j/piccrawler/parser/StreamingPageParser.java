@@ -0,0 +1,23 @@
+package com.cv4j.piccrawler.parser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.function.Consumer;
+
+/**
+ * 边读取边解析网页，不构建完整的Document，每解析出一个结果立即交给consumer
+ * 占用的内存与网页的大小无关
+ */
+public interface StreamingPageParser<T> {
+
+    /**
+     * parse html
+     *
+     * @param reader   网页的内容，由调用方负责关闭
+     * @param baseUri  网页中没有<base href>时解析相对地址使用的地址，可以为""
+     * @param consumer 在调用parse()的线程中依次接收解析出的结果
+     * @return 解析出的结果的数量
+     * @throws IOException 读取网页失败，之前解析出的结果已经交给了consumer
+     */
+    int parse(Reader reader, String baseUri, Consumer<T> consumer) throws IOException;
+}
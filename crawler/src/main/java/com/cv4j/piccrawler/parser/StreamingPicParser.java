@@ -0,0 +1,841 @@
+package com.cv4j.piccrawler.parser;
+
+import com.cv4j.piccrawler.metrics.CrawlerMetrics;
+import com.cv4j.piccrawler.utils.UrlNormalizer;
+import com.cv4j.piccrawler.utils.Utils;
+import com.safframework.tony.common.utils.Preconditions;
+import lombok.extern.slf4j.Slf4j;
+import org.jsoup.helper.StringUtil;
+import org.jsoup.parser.Parser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * 流式的PicParser，按照HTML5的词法规则逐个字符地扫描网页，只关心<img src>和<base href>，不构建Document
+ * 每解析出一个图片地址立即交给consumer，这样网页还没有下载完就可以开始下载图片，占用的内存与网页的大小无关
+ *
+ * 结果与Jsoup.parse()之后再使用PicParser相同，包括：
+ * 1. 注释、DOCTYPE、CDATA以及script、style、textarea、title等元素中的<img>会被忽略
+ * 2. 属性值中的字符实体会被解码，属性名区分大小写，与Jsoup的attr("src")一样优先使用名称完全相同的属性
+ * 3. 使用第一个有效的<base href>解析相对地址，<image>在<svg>之外当作<img>处理，<select>、frameset以及head的noscript中的<img>会被忽略
+ * 4. title、textarea之后的网页中没有对应的结束标签时，Jsoup会在其中第一个标签处结束title、textarea。
+ *    这种情况需要读到网页的末尾才能确定，因此同时按两种情况解析，确定之前解析出的地址先缓存起来
+ *
+ * 没有模拟的情况：
+ * 1. <base>出现在<img>之后时，Jsoup也会用它解析前面的图片，这里只对后面的图片有效(HTML规范要求<base>在head中)
+ * 2. script中"<!--<script>"形式的嵌套，svg、select被表格等其他标签隐式关闭
+ * 3. 超过MAX_URL_LENGTH的src会被忽略
+ *
+ * Created by tony on 2017/11/14.
+ */
+@Slf4j
+public class StreamingPicParser extends PicParser implements StreamingPageParser<String> {
+
+    public static final int MAX_URL_LENGTH = 16 * 1024;   // src的最大长度
+
+    private static final int BUFFER_SIZE = 8192;
+
+    @Override
+    public int parse(Reader reader, String baseUri, Consumer<String> consumer) throws IOException {
+
+        long start = System.nanoTime();
+        int[] count = new int[1];
+
+        Tokenizer tokenizer = new Tokenizer(url -> {
+            count[0]++;
+            consumer.accept(url);
+        });
+        tokenizer.setBaseUri(baseUri!=null ? baseUri : "");
+
+        try {
+            char[] buffer = new char[BUFFER_SIZE];
+            int n;
+            while ((n = reader.read(buffer)) >= 0) {
+
+                for (int i = 0; i < n; i++) {
+                    tokenizer.feed(buffer[i]);
+                }
+            }
+
+            tokenizer.end();
+        } finally {
+            CrawlerMetrics.get().recordParse(count[0],start);
+        }
+
+        return count[0];
+    }
+
+    /**
+     * 一次解析的状态，状态的名称与HTML5的tokenizer对应
+     */
+    private static final class Tokenizer {
+
+        private static final int DATA = 0;
+        private static final int TAG_OPEN = 1;
+        private static final int END_TAG_OPEN = 2;
+        private static final int TAG_NAME = 3;
+        private static final int BEFORE_ATTR_NAME = 4;
+        private static final int ATTR_NAME = 5;
+        private static final int AFTER_ATTR_NAME = 6;
+        private static final int BEFORE_ATTR_VALUE = 7;
+        private static final int ATTR_VALUE_DOUBLE_QUOTED = 8;
+        private static final int ATTR_VALUE_SINGLE_QUOTED = 9;
+        private static final int ATTR_VALUE_UNQUOTED = 10;
+        private static final int AFTER_ATTR_VALUE_QUOTED = 11;
+        private static final int SELF_CLOSING_START_TAG = 12;
+        private static final int MARKUP_DECLARATION_OPEN = 13;
+        private static final int MARKUP_DECLARATION_DASH = 14;
+        private static final int MARKUP_DECLARATION_CDATA = 15;
+        private static final int BOGUS_COMMENT = 16;
+        private static final int COMMENT_START = 17;
+        private static final int COMMENT_START_DASH = 18;
+        private static final int COMMENT = 19;
+        private static final int COMMENT_END_DASH = 20;
+        private static final int COMMENT_END = 21;
+        private static final int COMMENT_END_BANG = 22;
+        private static final int CDATA_SECTION = 23;
+        private static final int RAW_TEXT = 24;             // script、style、textarea、title等元素的内容，只识别对应的结束标签
+        private static final int RAW_TEXT_LESS_THAN = 25;
+        private static final int RAW_TEXT_END_TAG_OPEN = 26;
+        private static final int RAW_TEXT_END_TAG_NAME = 27;
+        private static final int PLAINTEXT = 28;
+
+        // 与Jsoup的insertion mode对应，只区分影响<img>的几种
+        private static final int IN_HEAD = 0;
+        private static final int AFTER_HEAD = 1;
+        private static final int IN_HEAD_NOSCRIPT = 2;  // Jsoup把head中noscript里的大部分标签当作文本
+        private static final int IN_BODY = 3;
+        private static final int IN_FRAMESET = 4;       // 忽略全部的<img>
+
+        private static final String CDATA = "[CDATA[";
+        private static final int MAX_NAME_LENGTH = 32;     // 更长的标签名和属性名都不是需要关心的
+
+        private final Consumer<String> sink;
+
+        // 文档的状态
+        private URL baseUrl;               // baseUri不是合法的URL时为null
+        private boolean baseUriSet;        // 与Jsoup相同，只使用第一个有效的<base href>
+        private int mode = IN_HEAD;
+        private boolean inSelect;
+        private boolean selectInTable;     // table中的select，遇到表格的标签时结束
+        private int tableDepth;
+        private int svgDepth;
+        private String rawTextTag;         // 当前处于RAW_TEXT时，结束标签的名称
+        private boolean rcdata;            // title、textarea
+
+        // 词法的状态
+        private int state = DATA;
+        private int markupIndex;
+        private int cdataBrackets;
+
+        // 当前的标签
+        private final StringBuilder tagName = new StringBuilder(MAX_NAME_LENGTH);
+        private boolean endTag;
+        private boolean selfClosing;
+        private String wanted;             // 当前标签需要的属性，例如img的"src"，不需要时为null
+        private boolean hasExact;          // 是否有名称完全相同的属性
+        private String exactValue;         // 为null表示超过了MAX_URL_LENGTH
+        private String firstName;          // 第一个只是忽略大小写时相同的属性名
+        private String firstValue;
+
+        // 当前的属性
+        private final StringBuilder attrName = new StringBuilder(MAX_NAME_LENGTH);
+        private boolean hasPendingAttr;
+        private boolean capturing;         // 当前属性的值是否需要保存
+        private final StringBuilder attrValue = new StringBuilder(256);
+        private boolean valueOverflow;
+
+        // title、textarea中的第一个标签处，假设后面没有结束标签时的解析
+        private Tokenizer fork;
+        private List<String> forkResults;
+        private List<String> ownResults;   // 存在fork时，自己解析出的地址
+        private String endTagLower;
+        private String endTagUpper;
+        private int lowerMatched;
+        private int upperMatched;
+
+        Tokenizer(Consumer<String> sink) {
+
+            this.sink = sink;
+        }
+
+        void feed(char c) {
+
+            if (fork != null) {
+
+                fork.feed(c);
+
+                lowerMatched = match(endTagLower, lowerMatched, c);
+                upperMatched = match(endTagUpper, upperMatched, c);
+                if (lowerMatched == endTagLower.length() || upperMatched == endTagUpper.length()) {
+                    resolveFork(false);  // 后面有结束标签
+                }
+            }
+
+            while (step(c)) {
+                // 重新处理当前的字符
+            }
+        }
+
+        /**
+         * 网页结束，没有结束的标签被丢弃，与Jsoup相同
+         */
+        void end() {
+
+            if (fork != null) {
+                fork.end();
+                resolveFork(true);
+            }
+        }
+
+        /**
+         * @return 是否需要在新的状态中重新处理当前的字符
+         */
+        private boolean step(char c) {
+
+            switch (state) {
+
+                case DATA:
+                    if (c == '<') {
+                        state = TAG_OPEN;
+                    } else if (mode < IN_BODY) {
+                        onText(c);
+                    }
+                    return false;
+
+                case TAG_OPEN:
+                    if (c == '!') {
+                        state = MARKUP_DECLARATION_OPEN;
+                    } else if (c == '/') {
+                        state = END_TAG_OPEN;
+                    } else if (c == '?') {
+                        state = BOGUS_COMMENT;
+                    } else if (Character.isLetter(c)) {
+                        startTag(false);
+                        appendTagName(c);
+                        state = TAG_NAME;
+                    } else {
+                        onText('<');
+                        state = DATA;
+                        return true;
+                    }
+                    return false;
+
+                case END_TAG_OPEN:
+                    if (Character.isLetter(c)) {
+                        startTag(true);
+                        appendTagName(c);
+                        state = TAG_NAME;
+                    } else if (c == '>') {
+                        state = DATA;
+                    } else {
+                        state = BOGUS_COMMENT;
+                    }
+                    return false;
+
+                case TAG_NAME:
+                    if (isWhitespace(c)) {
+                        tagNameComplete();
+                        state = BEFORE_ATTR_NAME;
+                    } else if (c == '/') {
+                        tagNameComplete();
+                        state = SELF_CLOSING_START_TAG;
+                    } else if (c == '>') {
+                        tagNameComplete();
+                        emitTag();
+                    } else {
+                        appendTagName(c);
+                    }
+                    return false;
+
+                case BEFORE_ATTR_NAME:
+                    if (c == '/') {
+                        state = SELF_CLOSING_START_TAG;
+                    } else if (c == '>') {
+                        emitTag();
+                    } else if (!isWhitespace(c)) {
+                        newAttribute(c);
+                        state = ATTR_NAME;
+                    }
+                    return false;
+
+                case ATTR_NAME:
+                    if (isWhitespace(c)) {
+                        state = AFTER_ATTR_NAME;
+                    } else if (c == '/') {
+                        state = SELF_CLOSING_START_TAG;
+                    } else if (c == '=') {
+                        attrNameComplete();
+                        state = BEFORE_ATTR_VALUE;
+                    } else if (c == '>') {
+                        emitTag();
+                    } else {
+                        appendAttrName(c);
+                    }
+                    return false;
+
+                case AFTER_ATTR_NAME:
+                    if (c == '/') {
+                        state = SELF_CLOSING_START_TAG;
+                    } else if (c == '=') {
+                        attrNameComplete();
+                        state = BEFORE_ATTR_VALUE;
+                    } else if (c == '>') {
+                        emitTag();
+                    } else if (!isWhitespace(c)) {
+                        newAttribute(c);
+                        state = ATTR_NAME;
+                    }
+                    return false;
+
+                case BEFORE_ATTR_VALUE:
+                    if (c == '"') {
+                        state = ATTR_VALUE_DOUBLE_QUOTED;
+                    } else if (c == '\'') {
+                        state = ATTR_VALUE_SINGLE_QUOTED;
+                    } else if (c == '>') {
+                        emitTag();
+                    } else if (!isWhitespace(c)) {
+                        appendAttrValue(c);
+                        state = ATTR_VALUE_UNQUOTED;
+                    }
+                    return false;
+
+                case ATTR_VALUE_DOUBLE_QUOTED:
+                    if (c == '"') {
+                        state = AFTER_ATTR_VALUE_QUOTED;
+                    } else {
+                        appendAttrValue(c);
+                    }
+                    return false;
+
+                case ATTR_VALUE_SINGLE_QUOTED:
+                    if (c == '\'') {
+                        state = AFTER_ATTR_VALUE_QUOTED;
+                    } else {
+                        appendAttrValue(c);
+                    }
+                    return false;
+
+                case ATTR_VALUE_UNQUOTED:
+                    if (isWhitespace(c)) {
+                        state = BEFORE_ATTR_NAME;
+                    } else if (c == '>') {
+                        emitTag();
+                    } else {
+                        appendAttrValue(c);
+                    }
+                    return false;
+
+                case AFTER_ATTR_VALUE_QUOTED:
+                    if (isWhitespace(c)) {
+                        state = BEFORE_ATTR_NAME;
+                    } else if (c == '/') {
+                        state = SELF_CLOSING_START_TAG;
+                    } else if (c == '>') {
+                        emitTag();
+                    } else {
+                        state = BEFORE_ATTR_NAME;
+                        return true;
+                    }
+                    return false;
+
+                case SELF_CLOSING_START_TAG:
+                    if (c == '>') {
+                        selfClosing = true;
+                        emitTag();
+                        return false;
+                    }
+                    state = BEFORE_ATTR_NAME;
+                    return true;
+
+                case MARKUP_DECLARATION_OPEN:
+                    if (c == '-') {
+                        state = MARKUP_DECLARATION_DASH;
+                        return false;
+                    } else if (c == CDATA.charAt(0)) {
+                        markupIndex = 1;
+                        state = MARKUP_DECLARATION_CDATA;
+                        return false;
+                    }
+                    state = BOGUS_COMMENT; // 包括DOCTYPE，同样在第一个'>'处结束
+                    return true;
+
+                case MARKUP_DECLARATION_DASH:
+                    if (c == '-') {
+                        state = COMMENT_START;
+                        return false;
+                    }
+                    state = BOGUS_COMMENT;
+                    return true;
+
+                case MARKUP_DECLARATION_CDATA:
+                    if (c == CDATA.charAt(markupIndex)) {
+                        if (++markupIndex == CDATA.length()) {
+                            cdataBrackets = 0;
+                            state = CDATA_SECTION;
+                        }
+                        return false;
+                    }
+                    state = BOGUS_COMMENT;
+                    return true;
+
+                case BOGUS_COMMENT:
+                    if (c == '>') state = DATA;
+                    return false;
+
+                case COMMENT_START:
+                    state = c == '-' ? COMMENT_START_DASH : c == '>' ? DATA : COMMENT;
+                    return false;
+
+                case COMMENT_START_DASH:
+                    state = c == '-' ? COMMENT_END : c == '>' ? DATA : COMMENT;
+                    return false;
+
+                case COMMENT:
+                    if (c == '-') state = COMMENT_END_DASH;
+                    return false;
+
+                case COMMENT_END_DASH:
+                    state = c == '-' ? COMMENT_END : COMMENT;
+                    return false;
+
+                case COMMENT_END:
+                    if (c == '>') {
+                        state = DATA;
+                    } else if (c == '!') {
+                        state = COMMENT_END_BANG;
+                    } else if (c != '-') {
+                        state = COMMENT;
+                    }
+                    return false;
+
+                case COMMENT_END_BANG:
+                    state = c == '-' ? COMMENT_END_DASH : c == '>' ? DATA : COMMENT;
+                    return false;
+
+                case CDATA_SECTION:
+                    if (c == ']') {
+                        cdataBrackets++;
+                    } else {
+                        if (c == '>' && cdataBrackets >= 2) {
+                            state = DATA;
+                        } else if (mode < IN_BODY) {
+                            onText(c);
+                        }
+                        cdataBrackets = 0;
+                    }
+                    return false;
+
+                case RAW_TEXT:
+                    if (c == '<') state = RAW_TEXT_LESS_THAN;
+                    return false;
+
+                case RAW_TEXT_LESS_THAN:
+                    if (c == '/') {
+                        state = RAW_TEXT_END_TAG_OPEN;
+                        return false;
+                    }
+                    if (rcdata && fork == null && Character.isLetter(c)) {
+                        startFork(c);
+                    }
+                    state = RAW_TEXT;
+                    return true;
+
+                case RAW_TEXT_END_TAG_OPEN:
+                    if (Character.isLetter(c)) {
+                        startTag(true);
+                        appendTagName(c);
+                        state = RAW_TEXT_END_TAG_NAME;
+                        return false;
+                    }
+                    state = RAW_TEXT;
+                    return true;
+
+                case RAW_TEXT_END_TAG_NAME:
+                    if (Character.isLetter(c)) {
+                        appendTagName(c);
+                        return false;
+                    }
+                    if (isTag(rawTextTag) && (isWhitespace(c) || c == '/' || c == '>')) {
+                        rawTextTag = null;
+                        if (c == '>') {
+                            emitTag();
+                        } else {
+                            state = isWhitespace(c) ? BEFORE_ATTR_NAME : SELF_CLOSING_START_TAG;
+                        }
+                        return false;
+                    }
+                    state = RAW_TEXT; // 不是对应的结束标签，仍然是文本
+                    return true;
+
+                case PLAINTEXT:
+                    return false;
+
+                default:
+                    throw new IllegalStateException("unknown state " + state);
+            }
+        }
+
+        private void startTag(boolean isEndTag) {
+
+            endTag = isEndTag;
+            selfClosing = false;
+            tagName.setLength(0);
+            wanted = null;
+            hasExact = false;
+            exactValue = null;
+            firstName = null;
+            firstValue = null;
+            hasPendingAttr = false;
+        }
+
+        private void appendTagName(char c) {
+
+            if (tagName.length() <= MAX_NAME_LENGTH) {
+                tagName.append(c == 0 ? '\uFFFD' : Character.toLowerCase(c));
+            }
+        }
+
+        private boolean isTag(String name) {
+
+            if (tagName.length() != name.length()) return false;
+
+            for (int i = 0; i < name.length(); i++) {
+                if (tagName.charAt(i) != name.charAt(i)) return false;
+            }
+            return true;
+        }
+
+        private void tagNameComplete() {
+
+            if (endTag || inSelect) return;
+
+            if (isTag("img") || (isTag("image") && svgDepth == 0)) {
+                wanted = "src";
+            } else if (isTag("base") && !baseUriSet) {
+                wanted = "href";
+            }
+        }
+
+        private void newAttribute(char c) {
+
+            attributeComplete();
+
+            hasPendingAttr = true;
+            capturing = false;
+            valueOverflow = false;
+            attrName.setLength(0);
+            attrValue.setLength(0);
+            appendAttrName(c);
+        }
+
+        private void appendAttrName(char c) {
+
+            if (attrName.length() <= MAX_NAME_LENGTH) {
+                attrName.append(c == 0 ? '\uFFFD' : c);
+            }
+        }
+
+        private void attrNameComplete() {
+
+            capturing = wanted != null && trimmedAttrName().equalsIgnoreCase(wanted);
+        }
+
+        private String trimmedAttrName() {
+
+            return attrName.toString().trim();
+        }
+
+        private void appendAttrValue(char c) {
+
+            if (!capturing) return;
+
+            if (attrValue.length() < MAX_URL_LENGTH) {
+                attrValue.append(c == 0 ? '\uFFFD' : c);
+            } else {
+                valueOverflow = true;
+            }
+        }
+
+        /**
+         * 属性结束，Jsoup中名称完全相同的属性以最后一个为准
+         */
+        private void attributeComplete() {
+
+            if (!hasPendingAttr || wanted == null) return;
+            hasPendingAttr = false;
+
+            String name = trimmedAttrName();
+            if (!name.equalsIgnoreCase(wanted)) return;
+
+            String value = null;
+            if (!valueOverflow) {
+                value = attrValue.toString();  // 没有值的属性为""
+                if (value.indexOf('&') >= 0) {
+                    value = Parser.unescapeEntities(value, true);
+                }
+            }
+
+            if (name.equals(wanted)) {
+                hasExact = true;
+                exactValue = value;
+            } else if (firstName == null || firstName.equals(name)) {
+                firstName = name;
+                firstValue = value;
+            }
+        }
+
+        private void emitTag() {
+
+            attributeComplete();
+            state = DATA;
+
+            if (endTag) {
+                onEndTag();
+            } else {
+                onStartTag();
+            }
+        }
+
+        private void onEndTag() {
+
+            if (mode == IN_HEAD_NOSCRIPT) {
+                if (isTag("noscript")) mode = IN_HEAD;
+                return;
+            }
+
+            if (mode == IN_HEAD && isTag("head")) {
+                mode = AFTER_HEAD;
+            } else if (mode < IN_BODY && (isTag("body") || isTag("html") || isTag("br"))) {
+                mode = IN_BODY;
+            } else if (isTag("select") || (selectInTable && isTableTag())) {
+                inSelect = false;
+            }
+
+            if (isTag("svg") && svgDepth > 0) {
+                svgDepth--;
+            } else if (isTag("table") && tableDepth > 0) {
+                tableDepth--;
+            }
+        }
+
+        private void onStartTag() {
+
+            if (mode != IN_BODY && !headStartTag()) return;
+
+            if (inSelect) { // <select>中只处理script以及结束<select>的标签
+                if (isTag("select") || isTag("input") || isTag("keygen") || isTag("textarea") || (selectInTable && isTableTag())) {
+                    inSelect = false;
+                    if (isTag("select")) return;
+                } else {
+                    if (isTag("script") && !selfClosing) rawText("script");
+                    return;
+                }
+            }
+
+            String value = hasExact ? exactValue : firstValue;
+            if ((hasExact || firstName != null) && value != null) {
+                if (wanted.equals("src")) {
+                    onImage(value);
+                } else {
+                    onBase(value);
+                }
+            }
+
+            if (isTag("select")) {
+                if (!selfClosing) {
+                    inSelect = true;
+                    selectInTable = tableDepth > 0;
+                }
+            } else if (isTag("table")) {
+                if (!selfClosing) tableDepth++;
+            } else if (isTag("svg")) {
+                if (!selfClosing) svgDepth++;
+            } else if (isTag("script")) {
+                if (!selfClosing) rawText("script");
+            } else if (isTag("style") || isTag("xmp") || isTag("iframe") || isTag("noembed") || isTag("noframes")) {
+                rawText(tagName.toString());
+            } else if (isTag("textarea") || isTag("title")) {
+                rawText(tagName.toString());
+                rcdata = true;
+            } else if (isTag("plaintext")) {
+                state = PLAINTEXT;
+            }
+        }
+
+        private boolean isTableTag() {
+
+            return isTag("caption") || isTag("table") || isTag("tbody") || isTag("tfoot") || isTag("thead")
+                    || isTag("tr") || isTag("td") || isTag("th");
+        }
+
+        /**
+         * 处理head中以及frameset中的标签
+         * @return 是否还需要按照body中的标签处理
+         */
+        private boolean headStartTag() {
+
+            if (mode == IN_FRAMESET || mode == IN_HEAD_NOSCRIPT) {
+                if (isTag("noframes") || (mode == IN_HEAD_NOSCRIPT && isTag("style"))) {
+                    rawText(tagName.toString());
+                }
+                return false;
+            }
+
+            if (isTag("head") || isTag("html")) {
+                return false;
+            } else if (isTag("body")) {
+                mode = IN_BODY;
+                return false;
+            } else if (isTag("frameset")) {
+                mode = IN_FRAMESET;
+                return false;
+            } else if (isTag("noscript") && mode == IN_HEAD) {
+                if (!selfClosing) mode = IN_HEAD_NOSCRIPT;
+                return false;
+            } else if (!(isTag("base") || isTag("basefont") || isTag("bgsound") || isTag("command") || isTag("link") || isTag("meta")
+                    || isTag("noframes") || isTag("script") || isTag("style") || isTag("title"))) {
+                mode = IN_BODY;
+            }
+            return true;
+        }
+
+        /**
+         * head中出现了文本时，后面的内容都在body中
+         */
+        private void onText(char c) {
+
+            if (mode < IN_HEAD_NOSCRIPT && !isWhitespace(c)) {
+                mode = IN_BODY;
+            }
+        }
+
+        private void rawText(String tag) {
+
+            rawTextTag = tag;
+            rcdata = false;
+            state = RAW_TEXT;
+        }
+
+        private void setBaseUri(String baseUri) {
+
+            try {
+                baseUrl = new URL(baseUri);
+            } catch (MalformedURLException e) {
+                baseUrl = null;
+            }
+        }
+
+        private void onBase(String href) {
+
+            String abs = resolve(href);
+            if (abs.length() != 0) {
+                setBaseUri(abs);
+                baseUriSet = true;
+            }
+        }
+
+        /**
+         * 与Jsoup的absUrl()相同，只是baseUri只解析一次
+         * @return 无法解析时返回""
+         */
+        private String resolve(String relUrl) {
+
+            try {
+                return baseUrl!=null ? StringUtil.resolve(baseUrl, relUrl).toExternalForm() : new URL(relUrl).toExternalForm();
+            } catch (MalformedURLException e) {
+                return "";
+            }
+        }
+
+        /**
+         * 与PicParser相同：优先使用绝对路径，否则将相对路径转换成"http://"开头的地址
+         */
+        private void onImage(String src) {
+
+            String abs = resolve(src);
+
+            if (Preconditions.isNotBlank(abs)) { // 图片的绝对路径不为空
+
+                log.info(abs);
+                if (Utils.isValidUrl(abs)) {
+                    emit(abs);
+                }
+            } else if (Preconditions.isNotBlank(src)) { // 图片的相对路径不为空
+
+                String picUrl = UrlNormalizer.get().imageUrl(src);
+                log.info(picUrl);
+                if (picUrl!=null) {
+                    emit(picUrl);
+                }
+            }
+        }
+
+        private void emit(String url) {
+
+            if (ownResults != null) {
+                ownResults.add(url);
+            } else {
+                sink.accept(url);
+            }
+        }
+
+        /**
+         * title、textarea中出现"<"加字母时，Jsoup会检查网页的剩余部分是否有"</title"或者"</TITLE"，
+         * 没有时在这里结束title并且从"<"开始重新解析。fork按照没有结束标签的情况解析，自己继续按照文本处理
+         */
+        private void startFork(char c) {
+
+            forkResults = new ArrayList<>();
+            ownResults = new ArrayList<>();
+
+            fork = new Tokenizer(forkResults::add);
+            fork.baseUrl = baseUrl;
+            fork.baseUriSet = baseUriSet;
+            fork.mode = mode;
+            fork.inSelect = inSelect;
+            fork.selectInTable = selectInTable;
+            fork.tableDepth = tableDepth;
+            fork.svgDepth = svgDepth;
+            fork.state = TAG_OPEN;
+            fork.feed(c);
+
+            endTagLower = "</" + rawTextTag;
+            endTagUpper = endTagLower.toUpperCase();
+            lowerMatched = 0;
+            upperMatched = 0;
+        }
+
+        /**
+         * @param useFork true表示网页中没有结束标签，使用fork的结果
+         */
+        private void resolveFork(boolean useFork) {
+
+            List<String> results = useFork ? forkResults : ownResults;
+
+            fork = null;
+            forkResults = null;
+            ownResults = null;
+
+            results.forEach(this::emit);
+        }
+
+        private static int match(String pattern,int matched,char c) {
+
+            if (c == pattern.charAt(matched)) return matched + 1;
+            return c == pattern.charAt(0) ? 1 : 0;
+        }
+
+        private static boolean isWhitespace(char c) {
+
+            return c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == ' ';
+        }
+    }
+}
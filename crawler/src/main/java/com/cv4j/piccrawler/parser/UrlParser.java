@@ -1,5 +1,6 @@
 package com.cv4j.piccrawler.parser;
 
+import com.cv4j.piccrawler.metrics.CrawlerMetrics;
 import com.safframework.tony.common.utils.Preconditions;
 import lombok.extern.slf4j.Slf4j;
 import org.jsoup.nodes.Document;
@@ -18,6 +19,7 @@ public class UrlParser implements PageParser<List<String>> {
     @Override
     public List<String> parse(Document doc) {
 
+        long start = System.nanoTime();
         List<String> urls = new ArrayList<>();
 
         Elements links = doc.select("a[href]");
@@ -34,6 +36,7 @@ public class UrlParser implements PageParser<List<String>> {
             }
         }
 
+        CrawlerMetrics.get().recordParse(urls.size(),start);
         return urls;
     }
 }
@@ -0,0 +1,120 @@
+package com.cv4j.piccrawler.store;
+
+import com.cv4j.piccrawler.utils.Utils;
+import com.safframework.tony.common.utils.IOUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 基于内存映射文件的布隆过滤器，位数组在堆外，写入的数据由操作系统同步到文件中，下次启动时直接映射即可
+ *
+ * 文件格式: magic(int) version(int) 哈希函数个数(int) 保留(int) 位数(long) 保留(long) 位数组
+ */
+class BloomFilter implements Closeable {
+
+    private static final int MAGIC = 0x5043424c; // "PCBL"
+    private static final int VERSION = 1;
+    private static final int HEADER = 32;
+    private static final long MAX_BITS = (Integer.MAX_VALUE - HEADER) * 8L;
+
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer buffer;
+    private final long numBits;
+    private final int numHashes;
+
+    /**
+     * @param file               布隆过滤器的文件，已经存在时沿用文件中的参数
+     * @param expectedInsertions 预计插入的数量
+     * @param fpp                期望的误判率
+     * @throws IOException
+     */
+    BloomFilter(File file,long expectedInsertions,double fpp) throws IOException {
+
+        boolean exists = file.exists() && file.length() > HEADER;
+
+        raf = new RandomAccessFile(file, "rw");
+
+        if (exists) {
+
+            MappedByteBuffer header = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                raf.close();
+                throw new IOException("not a bloom filter file: " + file);
+            }
+            numHashes = header.getInt(8);
+            numBits = header.getLong(16);
+        } else {
+
+            long n = Math.max(1, expectedInsertions);
+            long bits = (long) (-n * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+            bits = Math.min(MAX_BITS, Math.max(64, (bits + 63) / 64 * 64));
+            numBits = bits;
+            numHashes = Math.max(1, (int) Math.round((double) bits / n * Math.log(2)));
+        }
+
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER + numBits / 8);
+
+        if (!exists) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, numHashes);
+            buffer.putLong(16, numBits);
+        }
+    }
+
+    /**
+     * @param fingerprint 元素的64位指纹
+     * @return false表示一定不存在，true表示可能存在
+     */
+    boolean mightContain(long fingerprint) {
+
+        long h1 = fingerprint;
+        long h2 = Utils.fmix64(fingerprint ^ 0x9e3779b97f4a7c15L);
+
+        for (int i = 0; i < numHashes; i++) {
+
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+            if ((buffer.get(HEADER + (int) (bit >>> 3)) & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 调用方负责同步，避免并发修改同一个字节时丢失数据
+     * @param fingerprint 元素的64位指纹
+     */
+    void put(long fingerprint) {
+
+        long h1 = fingerprint;
+        long h2 = Utils.fmix64(fingerprint ^ 0x9e3779b97f4a7c15L);
+
+        for (int i = 0; i < numHashes; i++) {
+
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+            int index = HEADER + (int) (bit >>> 3);
+            buffer.put(index, (byte) (buffer.get(index) | (1 << (bit & 7))));
+        }
+    }
+
+    /**
+     * 将数据同步到磁盘
+     */
+    void force() {
+
+        buffer.force();
+    }
+
+    @Override
+    public void close() {
+
+        force();
+        IOUtils.closeQuietly(raf);
+    }
+}
@@ -0,0 +1,446 @@
+package com.cv4j.piccrawler.store;
+
+import com.cv4j.piccrawler.metrics.CountingInputStream;
+import com.cv4j.piccrawler.utils.Utils;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一批下载任务的进度日志，进程中途退出之后用同样的url列表再次下载，可以从中断的地方继续
+ *
+ * crawl.journal 只追加，每条记录以类型开头:
+ *               PAGE    网页url的指纹(long) 图片数量(int) 图片url(UTF)...  网页已经解析，再次运行时不再抓取
+ *               STARTED 图片url的指纹(long)                                开始下载，再次运行时重新下载
+ *               DONE    图片url的指纹(long)                                下载成功，再次运行时跳过
+ *
+ * 下载失败的图片不记录结束，再次运行时重新下载
+ * 记录先写入内存中的缓冲区，后台线程每隔flushIntervalMillis写入文件，进程退出时最多丢失这段时间的记录，对应的图片会重新下载
+ * 过期的记录(已经结束的STARTED、重复的记录等)超过总数的1/COMPACT_RATIO时由后台线程压缩，close()时如果需要也压缩：
+ * 只保留网页中还没有结束的图片、正在下载的和结束的指纹，写入临时文件之后重命名，日志的大小与存活的状态成正比
+ * 整批下载结束时调用finish()清空，之后同样的列表会重新下载
+ */
+@Slf4j
+public class CrawlJournal implements Closeable {
+
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+
+    private static final String JOURNAL_FILE = "crawl.journal";
+    private static final byte PAGE = 1;
+    private static final byte STARTED = 2;
+    private static final byte DONE = 3;
+
+    private static final long COMPACT_MIN_RECORDS = 100_000; // 记录数少于这个数量时不压缩
+    private static final int COMPACT_RATIO = 3;              // 过期的记录超过总数的1/COMPACT_RATIO时压缩
+
+    private final File file;
+    private final boolean flushEachRecord;
+    private final ScheduledExecutorService flusher; // 定期写入缓冲的记录以及压缩，flushIntervalMillis为0时每条记录都立即写入文件
+    private final Map<Long,List<String>> pages = new ConcurrentHashMap<>();
+    private final Set<Long> started = ConcurrentHashMap.newKeySet();
+    private final Set<Long> done = ConcurrentHashMap.newKeySet();
+
+    private DataOutputStream out;
+    private long records;          // 日志中的记录数，包括过期的记录
+    private int interrupted;       // 上次运行中断时正在下载的图片数
+    private boolean compactScheduled;
+    private boolean closed;
+
+    /**
+     * @param directory           存放日志的目录，不存在时会创建
+     * @param flushIntervalMillis 缓冲的记录写入文件的间隔，0表示每条记录都立即写入文件
+     * @throws IOException
+     */
+    public CrawlJournal(File directory,long flushIntervalMillis) throws IOException {
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("can not create directory: " + directory);
+        }
+
+        this.file = new File(directory, JOURNAL_FILE);
+
+        load();
+        interrupted = started.size();
+        started.clear(); // 上次正在下载的图片重新下载
+
+        out = open(true);
+
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "piccrawler-journal-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.flushEachRecord = flushIntervalMillis <= 0;
+
+        if (!flushEachRecord) {
+            flusher.scheduleWithFixedDelay(this::flushBuffer, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public CrawlJournal(File directory) throws IOException {
+
+        this(directory,DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param url 图片的url
+     * @return 图片在这一批中是否已经下载结束
+     */
+    public boolean isDone(String url) {
+
+        return done.contains(Utils.fingerprint(url));
+    }
+
+    /**
+     * @param pageUrl
+     * @return 网页中还没有下载结束的图片，网页还没有解析过时返回null
+     */
+    public List<String> pageImages(String pageUrl) {
+
+        List<String> images = pages.get(Utils.fingerprint(pageUrl));
+        if (images == null) return null;
+
+        List<String> result = new ArrayList<>(images.size());
+        for (String url : images) {
+            if (!isDone(url)) {
+                result.add(url);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 记录网页解析出的图片
+     * @param pageUrl
+     * @param imageUrls
+     * @throws IOException url太长无法记录时网页下次重新抓取
+     */
+    public void pageParsed(String pageUrl,List<String> imageUrls) throws IOException {
+
+        byte[] record = pageRecord(pageUrl, imageUrls); // 先完整地序列化，不会写入半条记录
+
+        synchronized (this) {
+
+            if (closed) return;
+
+            pages.put(Utils.fingerprint(pageUrl), Collections.unmodifiableList(new ArrayList<>(imageUrls)));
+            out.write(record);
+            appended();
+        }
+    }
+
+    /**
+     * 记录图片开始下载
+     * @param url
+     * @throws IOException
+     */
+    public void started(String url) throws IOException {
+
+        long fingerprint = Utils.fingerprint(url);
+        started.add(fingerprint);
+        append(STARTED, fingerprint);
+    }
+
+    /**
+     * 记录图片下载成功，再次运行时不再下载
+     * @param url
+     * @throws IOException
+     */
+    public void done(String url) throws IOException {
+
+        long fingerprint = Utils.fingerprint(url);
+        done.add(fingerprint);
+        started.remove(fingerprint);
+        append(DONE, fingerprint);
+    }
+
+    /**
+     * 图片下载失败，不再是正在下载的图片。不写入记录，再次运行时重新下载
+     * @param url
+     */
+    public void failed(String url) {
+
+        started.remove(Utils.fingerprint(url));
+    }
+
+    /**
+     * @return 正在下载的图片数
+     */
+    public int getInFlight() {
+
+        return started.size();
+    }
+
+    /**
+     * @return 已经下载结束的图片数
+     */
+    public int getDone() {
+
+        return done.size();
+    }
+
+    /**
+     * @return 打开日志时，上次运行中断时正在下载的图片数
+     */
+    public int getInterrupted() {
+
+        return interrupted;
+    }
+
+    /**
+     * 整批下载结束，清空日志
+     * @throws IOException
+     */
+    public synchronized void finish() throws IOException {
+
+        if (closed) return;
+
+        pages.clear();
+        started.clear();
+        done.clear();
+
+        out.close();
+        out = open(false);
+        records = 0;
+    }
+
+    /**
+     * 将缓冲的记录写入文件并fsync，调用后机器掉电也不会丢失
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+
+        if (closed) return;
+
+        out.flush();
+        sync(file);
+    }
+
+    /**
+     * 写入缓冲的记录并fsync，停止后台的写入
+     */
+    @Override
+    public synchronized void close() {
+
+        if (closed) return;
+
+        flusher.shutdown();
+
+        try {
+            if (shouldCompact()) {
+                compact();
+            }
+            flush();
+            out.close();
+        } catch (IOException ignored) {
+        } finally {
+            closed = true;
+        }
+    }
+
+    /**
+     * 后台线程定期将缓冲的记录写入文件，不fsync
+     */
+    private synchronized void flushBuffer() {
+
+        if (closed) return;
+
+        try {
+            out.flush();
+        } catch (IOException e) {
+            log.warn("can not flush crawl journal", e);
+        }
+    }
+
+    private synchronized void append(byte type,long fingerprint) throws IOException {
+
+        if (closed) return;
+
+        out.writeByte(type);
+        out.writeLong(fingerprint);
+        appended();
+    }
+
+    private void appended() throws IOException {
+
+        records++;
+
+        if (!compactScheduled && shouldCompact()) { // 压缩交给后台线程，不在下载完成的线程中进行
+            compactScheduled = true;
+            flusher.execute(this::compactInBackground);
+        }
+
+        if (flushEachRecord) {
+            out.flush();
+        }
+    }
+
+    private boolean shouldCompact() {
+
+        return records > COMPACT_MIN_RECORDS && COMPACT_RATIO * superseded() > records;
+    }
+
+    private synchronized void compactInBackground() {
+
+        compactScheduled = false;
+        if (closed || !shouldCompact()) return;
+
+        try {
+            compact();
+        } catch (IOException e) {
+            log.warn("can not compact crawl journal", e);
+        }
+    }
+
+    /**
+     * @return 日志中过期的记录数：已经结束或者失败的STARTED、重复的记录、上次运行留下的STARTED
+     */
+    private long superseded() {
+
+        return records - (pages.size() + started.size() + done.size());
+    }
+
+    /**
+     * 只保留存活的状态写入临时文件，fsync之后替换日志
+     */
+    private void compact() throws IOException {
+
+        File tmp = new File(file.getParentFile(), JOURNAL_FILE + ".tmp");
+        long count = 0;
+
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream compacted = new DataOutputStream(new BufferedOutputStream(fos))) {
+
+            for (Map.Entry<Long,List<String>> page : pages.entrySet()) {
+
+                List<String> remaining = new ArrayList<>();
+                for (String url : page.getValue()) {
+                    if (!isDone(url)) {
+                        remaining.add(url);
+                    }
+                }
+                page.setValue(Collections.unmodifiableList(remaining));
+
+                compacted.writeByte(PAGE);
+                compacted.writeLong(page.getKey());
+                writeUrls(compacted, remaining);
+                count++;
+            }
+
+            for (long fingerprint : started) {
+                compacted.writeByte(STARTED);
+                compacted.writeLong(fingerprint);
+                count++;
+            }
+
+            for (long fingerprint : done) {
+                compacted.writeByte(DONE);
+                compacted.writeLong(fingerprint);
+                count++;
+            }
+
+            compacted.flush();
+            fos.getFD().sync();
+        }
+
+        out.close();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        out = open(true);
+        records = count;
+    }
+
+    /**
+     * 读取日志恢复状态，截掉最后不完整的记录
+     */
+    private void load() throws IOException {
+
+        if (!file.exists()) return;
+
+        long valid = 0;
+        CountingInputStream counting = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+        try (DataInputStream in = new DataInputStream(counting)) {
+
+            while (true) {
+
+                try {
+                    byte type = in.readByte();
+
+                    if (type == PAGE) {
+                        long fingerprint = in.readLong();
+                        int count = in.readInt();
+                        if (count < 0) break;
+
+                        List<String> images = new ArrayList<>(Math.min(count, 1024));
+                        for (int i = 0; i < count; i++) {
+                            images.add(in.readUTF());
+                        }
+                        pages.put(fingerprint, Collections.unmodifiableList(images));
+                    } else if (type == STARTED) {
+                        started.add(in.readLong());
+                    } else if (type == DONE) {
+                        long fingerprint = in.readLong();
+                        done.add(fingerprint);
+                        started.remove(fingerprint);
+                    } else {
+                        break; // 损坏的记录
+                    }
+
+                    records++;
+                    valid = counting.getCount();
+                } catch (EOFException | UTFDataFormatException e) {
+                    break;
+                }
+            }
+        }
+
+        if (valid < file.length()) { // 上次写入时中断留下的不完整记录
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+    }
+
+    private DataOutputStream open(boolean append) throws FileNotFoundException {
+
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, append), 64 * 1024));
+    }
+
+    private static byte[] pageRecord(String pageUrl,List<String> imageUrls) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + imageUrls.size() * 64);
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeByte(PAGE);
+        record.writeLong(Utils.fingerprint(pageUrl));
+        writeUrls(record, imageUrls);
+        return bytes.toByteArray();
+    }
+
+    private static void writeUrls(DataOutputStream out,List<String> urls) throws IOException {
+
+        out.writeInt(urls.size());
+        for (String url : urls) {
+            out.writeUTF(url);
+        }
+    }
+
+    private static void sync(File file) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.force(false);
+        }
+    }
+}
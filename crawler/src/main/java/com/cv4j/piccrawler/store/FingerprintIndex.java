@@ -0,0 +1,185 @@
+package com.cv4j.piccrawler.store;
+
+import com.cv4j.piccrawler.utils.Utils;
+import com.safframework.tony.common.utils.IOUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * 基于内存映射文件的64位指纹集合，使用开放寻址(线性探测)的哈希表，0表示空槽
+ * 数据在堆外，只有访问到的页面才会占用内存。从INITIAL_SLOTS开始，装载因子超过0.5时扩容为两倍，扩容时先写临时文件再原子替换
+ * 达到MAX_SLOTS之后不再扩容，isFull()返回true，add()不再加入新的指纹
+ *
+ * 文件格式: magic(int) version(int) 元素个数(long) 槽位数组(long)
+ * 调用方负责同步
+ */
+class FingerprintIndex implements Closeable {
+
+    private static final int MAGIC = 0x50434649; // "PCFI"
+    private static final int VERSION = 1;
+    private static final int HEADER = 16;
+    private static final long INITIAL_SLOTS = 1L << 14; // 128KB，之后按需扩容
+    private static final long MAX_SLOTS = 1L << 27;     // 单个MappedByteBuffer最大2G
+
+    private final File file;
+    private RandomAccessFile raf;
+    private MappedByteBuffer buffer;
+    private long slots;
+    private long size;
+
+    /**
+     * @param file 索引文件，已经存在时直接映射
+     * @throws IOException
+     */
+    FingerprintIndex(File file) throws IOException {
+
+        this.file = file;
+
+        if (file.exists() && file.length() > HEADER) {
+
+            map(file, (file.length() - HEADER) / 8);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                IOUtils.closeQuietly(raf);
+                throw new IOException("not a fingerprint index file: " + file);
+            }
+            size = buffer.getLong(8);
+        } else {
+
+            map(file, INITIAL_SLOTS);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putLong(8, 0);
+        }
+    }
+
+    long size() {
+
+        return size;
+    }
+
+    /**
+     * @return 达到最大容量，不能再加入新的指纹
+     */
+    boolean isFull() {
+
+        return slots >= MAX_SLOTS && size * 2 >= slots;
+    }
+
+    boolean contains(long fingerprint) {
+
+        long fp = normalize(fingerprint);
+        long mask = slots - 1;
+
+        for (long i = Utils.fmix64(fp) & mask; ; i = (i + 1) & mask) {
+
+            long value = buffer.getLong(offset(i));
+            if (value == 0) return false;
+            if (value == fp) return true;
+        }
+    }
+
+    /**
+     * @param fingerprint
+     * @return 新加入时返回true，已经存在或者isFull()时返回false
+     * @throws IOException
+     */
+    boolean add(long fingerprint) throws IOException {
+
+        if (isFull()) return false;
+
+        long fp = normalize(fingerprint);
+
+        if (!insert(buffer, slots, fp)) return false;
+
+        size++;
+        buffer.putLong(8, size);
+
+        if (size * 2 > slots && slots < MAX_SLOTS) {
+            resize();
+        }
+        return true;
+    }
+
+    void force() {
+
+        buffer.force();
+    }
+
+    @Override
+    public void close() {
+
+        force();
+        IOUtils.closeQuietly(raf);
+    }
+
+    private void resize() throws IOException {
+
+        long newSlots = slots * 2;
+
+        File tmp = new File(file.getPath() + ".tmp");
+        Files.deleteIfExists(tmp.toPath());
+
+        try (RandomAccessFile tmpRaf = new RandomAccessFile(tmp, "rw")) {
+
+            MappedByteBuffer tmpBuffer = tmpRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER + newSlots * 8);
+            tmpBuffer.putInt(0, MAGIC);
+            tmpBuffer.putInt(4, VERSION);
+            tmpBuffer.putLong(8, size);
+
+            for (long i = 0; i < slots; i++) {
+                long value = buffer.getLong(offset(i));
+                if (value != 0) {
+                    insert(tmpBuffer, newSlots, value);
+                }
+            }
+            tmpBuffer.force();
+        }
+
+        IOUtils.closeQuietly(raf);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        map(file, newSlots);
+    }
+
+    private void map(File f,long slotCount) throws IOException {
+
+        raf = new RandomAccessFile(f, "rw");
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER + slotCount * 8);
+        slots = slotCount;
+    }
+
+    private static boolean insert(MappedByteBuffer target,long slotCount,long fp) {
+
+        long mask = slotCount - 1;
+
+        for (long i = Utils.fmix64(fp) & mask; ; i = (i + 1) & mask) {
+
+            int offset = offset(i);
+            long value = target.getLong(offset);
+            if (value == fp) return false;
+            if (value == 0) {
+                target.putLong(offset, fp);
+                return true;
+            }
+        }
+    }
+
+    private static int offset(long slot) {
+
+        return (int) (HEADER + slot * 8);
+    }
+
+    /**
+     * 0用来表示空槽，指纹为0时换成1
+     */
+    private static long normalize(long fingerprint) {
+
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+}
@@ -0,0 +1,231 @@
+package com.cv4j.piccrawler.store;
+
+import com.cv4j.piccrawler.utils.Utils;
+import com.safframework.tony.common.utils.IOUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * 基于内存映射文件的64位指纹到位置(例如日志中记录的位置)的映射，使用开放寻址(线性探测)的哈希表，指纹为0表示空槽
+ * 与FingerprintIndex相同，数据在堆外，从INITIAL_SLOTS开始，装载因子超过0.5时扩容为两倍，扩容时先写临时文件再原子替换
+ * 达到MAX_SLOTS之后不再扩容，put()不再加入新的指纹
+ *
+ * 文件格式: magic(int) version(int) 元素个数(long) 调用方的两个值(long) 槽位数组(指纹long 位置long)
+ * 调用方负责同步
+ */
+class OffsetIndex implements Closeable {
+
+    private static final int MAGIC = 0x50434f49; // "PCOI"
+    private static final int VERSION = 1;
+    private static final int HEADER = 32;
+    private static final int SLOT = 16;
+    private static final long INITIAL_SLOTS = 1L << 10; // 16KB，之后按需扩容
+    private static final long MAX_SLOTS = 1L << 26;     // 单个MappedByteBuffer最大2G
+
+    private final File file;
+    private RandomAccessFile raf;
+    private MappedByteBuffer buffer;
+    private long slots;
+    private long size;
+
+    /**
+     * @param file 索引文件，已经存在时直接映射
+     * @throws IOException
+     */
+    OffsetIndex(File file) throws IOException {
+
+        this.file = file;
+
+        if (file.exists() && file.length() > HEADER) {
+
+            map(file, (file.length() - HEADER) / SLOT);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                IOUtils.closeQuietly(raf);
+                throw new IOException("not an offset index file: " + file);
+            }
+            size = buffer.getLong(8);
+        } else {
+
+            map(file, INITIAL_SLOTS);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putLong(8, 0);
+        }
+    }
+
+    long size() {
+
+        return size;
+    }
+
+    /**
+     * @param fingerprint
+     * @return 指纹对应的位置，没有时返回-1
+     */
+    long get(long fingerprint) {
+
+        long fp = normalize(fingerprint);
+        long mask = slots - 1;
+
+        for (long i = slot(fp) & mask; ; i = (i + 1) & mask) {
+
+            long value = buffer.getLong(offset(i));
+            if (value == 0) return -1;
+            if (value == fp) return buffer.getLong(offset(i) + 8);
+        }
+    }
+
+    /**
+     * 加入或者更新指纹对应的位置
+     * @param fingerprint
+     * @param position
+     * @return 达到最大容量，不能再加入新的指纹时返回false
+     * @throws IOException
+     */
+    boolean put(long fingerprint,long position) throws IOException {
+
+        long fp = normalize(fingerprint);
+
+        if (slots >= MAX_SLOTS && size * 2 >= slots && get(fp) < 0) return false;
+
+        if (!insert(buffer, slots, fp, position)) return true;
+
+        size++;
+        buffer.putLong(8, size);
+
+        if (size * 2 > slots && slots < MAX_SLOTS) {
+            resize();
+        }
+        return true;
+    }
+
+    /**
+     * 调用方保存在文件头中的值，例如已经写入索引的日志长度
+     * @param i 0或者1
+     */
+    long header(int i) {
+
+        return buffer.getLong(16 + i * 8);
+    }
+
+    void header(int i,long value) {
+
+        buffer.putLong(16 + i * 8, value);
+    }
+
+    /**
+     * 按槽位的顺序遍历全部的指纹和位置
+     */
+    void forEach(Visitor visitor) throws IOException {
+
+        for (long i = 0; i < slots; i++) {
+            long fp = buffer.getLong(offset(i));
+            if (fp != 0) {
+                visitor.visit(fp, buffer.getLong(offset(i) + 8));
+            }
+        }
+    }
+
+    void force() {
+
+        buffer.force();
+    }
+
+    @Override
+    public void close() {
+
+        force();
+        IOUtils.closeQuietly(raf);
+    }
+
+    private void resize() throws IOException {
+
+        long newSlots = slots * 2;
+
+        File tmp = new File(file.getPath() + ".tmp");
+        Files.deleteIfExists(tmp.toPath());
+
+        try (RandomAccessFile tmpRaf = new RandomAccessFile(tmp, "rw")) {
+
+            MappedByteBuffer tmpBuffer = tmpRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER + newSlots * SLOT);
+            for (int i = 0; i < HEADER; i += 8) {
+                tmpBuffer.putLong(i, buffer.getLong(i));
+            }
+
+            for (long i = 0; i < slots; i++) {
+                long value = buffer.getLong(offset(i));
+                if (value != 0) {
+                    insert(tmpBuffer, newSlots, value, buffer.getLong(offset(i) + 8));
+                }
+            }
+            tmpBuffer.force();
+        }
+
+        IOUtils.closeQuietly(raf);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        map(file, newSlots);
+    }
+
+    private void map(File f,long slotCount) throws IOException {
+
+        raf = new RandomAccessFile(f, "rw");
+        buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER + slotCount * SLOT);
+        slots = slotCount;
+    }
+
+    /**
+     * @return 新加入时返回true，已经存在时更新位置并返回false
+     */
+    private static boolean insert(MappedByteBuffer target,long slotCount,long fp,long position) {
+
+        long mask = slotCount - 1;
+
+        for (long i = slot(fp) & mask; ; i = (i + 1) & mask) {
+
+            int offset = offset(i);
+            long value = target.getLong(offset);
+            if (value == fp) {
+                target.putLong(offset + 8, position);
+                return false;
+            }
+            if (value == 0) {
+                target.putLong(offset + 8, position);
+                target.putLong(offset, fp);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * ValidatorIndex按指纹的低位分片，槽位使用高位，同一个分片中的指纹不会挤在一部分槽位中
+     */
+    private static long slot(long fp) {
+
+        return Utils.fmix64(fp) >>> 32;
+    }
+
+    private static int offset(long slot) {
+
+        return (int) (HEADER + slot * SLOT);
+    }
+
+    /**
+     * 0用来表示空槽，指纹为0时换成1
+     */
+    private static long normalize(long fingerprint) {
+
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+
+    interface Visitor {
+
+        void visit(long fingerprint,long position) throws IOException;
+    }
+}
@@ -0,0 +1,141 @@
+package com.cv4j.piccrawler.store;
+
+import com.cv4j.piccrawler.utils.Utils;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 已经下载过的图片url的集合，保存在磁盘上，多次运行之间共享
+ *
+ * 先查询堆外的布隆过滤器，绝大多数没见过的url在这一步就返回了；布隆过滤器命中时再查询磁盘上的指纹索引确认。
+ * url以64位指纹保存，每个url在索引中约占16字节，在布隆过滤器中约占1.2字节(误判率1%)。
+ * 索引从很小开始按需扩容；达到最大容量之后不再记录新的url，这些url下次仍然会下载，不会因为布隆过滤器的误判被跳过。
+ * 布隆过滤器按expectedUrls创建，url数量超过expectedUrls时误判率升高，只会多查询几次索引，结果仍然准确。
+ */
+@Slf4j
+public class SeenUrlStore implements Closeable {
+
+    public static final long DEFAULT_EXPECTED_URLS = 10_000_000L;
+
+    private static final double FPP = 0.01;
+
+    private final BloomFilter bloomFilter;
+    private final FingerprintIndex index;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private boolean indexFullLogged;
+    private boolean closed;
+
+    /**
+     * @param directory    存放数据文件的目录，不存在时会创建
+     * @param expectedUrls 预计的url数量，决定布隆过滤器的大小，只在第一次创建时有效
+     * @throws IOException
+     */
+    public SeenUrlStore(File directory,long expectedUrls) throws IOException {
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("can not create directory: " + directory);
+        }
+
+        bloomFilter = new BloomFilter(new File(directory, "seen.bloom"), expectedUrls, FPP);
+        index = new FingerprintIndex(new File(directory, "seen.index"));
+    }
+
+    public SeenUrlStore(File directory) throws IOException {
+
+        this(directory,DEFAULT_EXPECTED_URLS);
+    }
+
+    /**
+     * @param url
+     * @return url是否已经下载过
+     */
+    public boolean contains(String url) {
+
+        long fingerprint = Utils.fingerprint(url);
+
+        if (!bloomFilter.mightContain(fingerprint)) return false;
+
+        lock.readLock().lock();
+        try {
+            return !closed && index.contains(fingerprint);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 记录已经下载过的url，索引已满或者已经close()时不记录
+     * @param url
+     * @throws IOException
+     */
+    public void add(String url) throws IOException {
+
+        long fingerprint = Utils.fingerprint(url);
+
+        lock.writeLock().lock();
+        try {
+            if (closed) return;
+
+            if (index.isFull()) {
+
+                if (!indexFullLogged) {
+                    indexFullLogged = true;
+                    log.error("seen url index is full ("+index.size()+" urls), new urls are not recorded and will be downloaded again");
+                }
+            } else if (index.add(fingerprint)) {
+                bloomFilter.put(fingerprint);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return 已经记录的url数量
+     */
+    public long size() {
+
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 将数据同步到磁盘，内存映射的数据即使不调用也会由操作系统写回，调用后可以保证机器掉电也不丢失
+     */
+    public void flush() {
+
+        lock.writeLock().lock();
+        try {
+            if (closed) return;
+
+            bloomFilter.force();
+            index.force();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+
+        lock.writeLock().lock();
+        try {
+            if (closed) return;
+
+            closed = true;
+            bloomFilter.close();
+            index.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
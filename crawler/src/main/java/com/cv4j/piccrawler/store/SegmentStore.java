@@ -0,0 +1,596 @@
+package com.cv4j.piccrawler.store;
+
+import com.cv4j.piccrawler.metrics.CountingInputStream;
+import com.cv4j.piccrawler.utils.Utils;
+import com.safframework.tony.common.utils.IOUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 把图片追加写入滚动的segment文件，代替每张图片一个文件，类似WARC
+ * 大量图片时不会耗尽inode，写入是顺序的追加，备份和rsync只需要处理少量的大文件
+ *
+ * segment-000000.seg 数据文件，只追加，记录的格式: magic(int) url(UTF) Content-Type(UTF) 长度(long) 图片的数据
+ *                    记录中包含url，只有segment文件时也可以重建索引
+ * segments.idx       索引，只追加，记录的格式: url(UTF) Content-Type(UTF) SHA-256(32字节) segment编号(int) 记录的位置(long) 长度(long)
+ *
+ * 内存中的索引按url的64位指纹保存记录的位置，读取时用segment中的url确认
+ * 打开时检查索引之后的segment数据：完整的记录补写索引，不完整的记录(写入时进程退出)截掉
+ *
+ * 从InputStream写入时只在锁内预留位置并写入header，数据在锁外用FileChannel按位置写入，不在内存中缓存整张图片。
+ * 预留时header的magic是PENDING_MAGIC，数据写完之后才改为MAGIC，打开时跳过PENDING_MAGIC的记录(写入失败或者进程退出)
+ * 读取可以与写入同时进行
+ */
+public class SegmentStore implements Closeable {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 1L << 30; // 1GB
+
+    private static final int MAGIC = 0x50435352;         // "PCSR"
+    private static final int PENDING_MAGIC = 0x50435350; // "PCSP" 预留了位置，数据还没有写完
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String INDEX_FILE = "segments.idx";
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final int HASH_LENGTH = 32;
+
+    private final File directory;
+    private final long segmentSize;
+    private final Map<Long,Entry> entries = new ConcurrentHashMap<>();
+    private final Map<Integer,FileChannel> readers = new ConcurrentHashMap<>();
+    private final Map<Integer,Integer> writing = new HashMap<>();       // 每个segment正在锁外写入的记录数
+    private final Map<Integer,FileChannel> retired = new HashMap<>();   // 已经写满但是还有记录在写入的segment
+
+    private int segment;                    // 正在写入的segment
+    private FileChannel writer;
+    private long position;                  // 正在写入的segment中下一条记录的位置，包括预留的位置
+    private DataOutputStream index;
+    private boolean closed;
+
+    /**
+     * @param directory   存放segment和索引的目录，不存在时会创建
+     * @param segmentSize segment超过这个大小之后写入下一个segment
+     * @throws IOException
+     */
+    public SegmentStore(File directory,long segmentSize) throws IOException {
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("can not create directory: " + directory);
+        }
+
+        this.directory = directory;
+        this.segmentSize = segmentSize > 0 ? segmentSize : DEFAULT_SEGMENT_SIZE;
+
+        File indexFile = new File(directory, INDEX_FILE);
+        long[] end = loadIndex(indexFile);
+
+        index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)));
+        recover((int) end[0], end[1]);
+
+        openWriter();
+    }
+
+    public SegmentStore(File directory) throws IOException {
+
+        this(directory,DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * 追加一张图片，同一个url再次写入时索引指向新的记录
+     * @param url
+     * @param contentType 例如image/png
+     * @param data        图片的数据，从position到limit
+     * @return 记录在索引中的信息
+     * @throws IOException
+     */
+    public Entry put(String url,String contentType,ByteBuffer data) throws IOException {
+
+        MessageDigest digest = newDigest();
+        digest.update(data.duplicate());
+        byte[] hash = digest.digest();
+
+        ByteBuffer header = header(url, contentType != null ? contentType : "", data.remaining());
+        long length = data.remaining();
+
+        synchronized (this) {
+
+            if (closed) throw new IOException("segment store is closed");
+
+            if (position > 0 && position + header.remaining() + length > segmentSize) {
+                roll();
+            }
+
+            long offset = position;
+            writeFully(writer, header, offset);
+            writeFully(writer, data.duplicate(), offset + header.capacity());
+            position = offset + header.capacity() + length;
+
+            Entry entry = new Entry(segment, offset, length, contentType, hash);
+            writeIndex(url, entry);
+            entries.put(Utils.fingerprint(url), entry);
+            return entry;
+        }
+    }
+
+    /**
+     * 从InputStream追加一张图片，数据边读边写入segment，同一个url再次写入时索引指向新的记录
+     * 多个线程可以同时写入，只有预留位置和写索引在锁内
+     * @param url
+     * @param contentType 例如image/png
+     * @param in          图片的数据，不会关闭
+     * @param length      图片的字节数，in中的数据与length不一致时写入失败
+     * @return 记录在索引中的信息
+     * @throws IOException 读取或者写入失败，预留的位置在打开时跳过
+     */
+    public Entry put(String url,String contentType,InputStream in,long length) throws IOException {
+
+        if (length < 0) throw new IllegalArgumentException("length must be >= 0");
+
+        ByteBuffer header = header(url, contentType != null ? contentType : "", length);
+        int headerLength = header.remaining();
+
+        int target;
+        long offset;
+        FileChannel channel;
+
+        synchronized (this) {
+
+            if (closed) throw new IOException("segment store is closed");
+
+            if (position > 0 && position + headerLength + length > segmentSize) {
+                roll();
+            }
+
+            target = segment;
+            offset = position;
+            channel = writer;
+
+            ByteBuffer pending = header.duplicate();
+            pending.putInt(0, PENDING_MAGIC);
+            writeFully(channel, pending, offset);
+            header.putInt(0, MAGIC);
+
+            position = offset + headerLength + length;
+            writing.merge(target, 1, Integer::sum);
+        }
+
+        byte[] hash;
+        try {
+            hash = transfer(in, channel, offset + headerLength, length);
+            writeFully(channel, (ByteBuffer) header.limit(4), offset); // 数据写完之后记录才有效
+        } finally {
+            finishWriting(target);
+        }
+
+        synchronized (this) {
+
+            if (closed) throw new IOException("segment store is closed");
+
+            Entry entry = new Entry(target, offset, length, contentType, hash);
+            writeIndex(url, entry);
+            entries.put(Utils.fingerprint(url), entry);
+            return entry;
+        }
+    }
+
+    /**
+     * @param url
+     * @return url最近一次写入的记录，没有时返回null
+     */
+    public Entry get(String url) {
+
+        return entries.get(Utils.fingerprint(url));
+    }
+
+    /**
+     * @param url
+     * @return 是否保存过url的图片
+     */
+    public boolean contains(String url) {
+
+        return get(url) != null;
+    }
+
+    /**
+     * 随机读取一张图片
+     * @param url
+     * @return 图片的数据，没有时返回null
+     * @throws IOException
+     */
+    public byte[] read(String url) throws IOException {
+
+        Entry entry = get(url);
+        if (entry == null) return null;
+
+        // 记录的开头应该与按url写入时的header相同，不同时是指纹冲突
+        ByteBuffer expected = header(url, entry.contentType != null ? entry.contentType : "", entry.length);
+        FileChannel channel = reader(entry.segment);
+
+        if (!readFully(channel, entry.offset, expected.remaining()).equals(expected)) return null;
+
+        if (entry.length > Integer.MAX_VALUE) throw new IOException("record too large: " + entry);
+
+        return readFully(channel, entry.offset + expected.remaining(), (int) entry.length).array();
+    }
+
+    /**
+     * @return 索引中url的数量
+     */
+    public int size() {
+
+        return entries.size();
+    }
+
+    /**
+     * @param segment segment的编号
+     * @return segment的文件
+     */
+    public File segmentFile(int segment) {
+
+        return new File(directory, String.format("segment-%06d.seg", segment));
+    }
+
+    /**
+     * 将索引写入文件，并且把segment和索引写入磁盘
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+
+        if (closed) return;
+
+        index.flush();
+        writer.force(false);
+        for (FileChannel channel : retired.values()) {
+            channel.force(false);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+
+        if (closed) return;
+        closed = true;
+
+        IOUtils.closeQuietly(index);
+        IOUtils.closeQuietly(writer);
+        for (FileChannel channel : retired.values()) {
+            IOUtils.closeQuietly(channel);
+        }
+        retired.clear();
+        for (FileChannel channel : readers.values()) {
+            IOUtils.closeQuietly(channel);
+        }
+        readers.clear();
+    }
+
+    /**
+     * 读入索引文件，末尾不完整的记录截掉
+     * 索引按写入的顺序保存，指向segment中不存在的数据(segment在崩溃时丢失了末尾)的记录以及之后的记录也截掉，由recover()重新扫描
+     * @return 索引中最后的位置: segment编号, 记录结束的位置
+     */
+    private long[] loadIndex(File file) throws IOException {
+
+        long[] end = {0, 0};
+        if (!file.exists()) return end;
+
+        Map<Integer,Long> segmentLengths = new HashMap<>();
+        long valid = 0;
+        CountingInputStream counting = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+        try (DataInputStream in = new DataInputStream(counting)) {
+
+            while (true) {
+
+                try {
+                    String url = in.readUTF();
+                    String contentType = in.readUTF();
+                    byte[] hash = new byte[HASH_LENGTH];
+                    in.readFully(hash);
+                    int segment = in.readInt();
+                    long offset = in.readLong();
+                    long length = in.readLong();
+
+                    long recordEnd = offset + header(url, contentType, length).remaining() + length;
+                    if (recordEnd > segmentLengths.computeIfAbsent(segment, s -> segmentFile(s).length())) break;
+
+                    entries.put(Utils.fingerprint(url), new Entry(segment, offset, length, contentType.isEmpty() ? null : contentType, hash));
+
+                    if (segment > end[0] || (segment == end[0] && recordEnd > end[1])) {
+                        end[0] = segment;
+                        end[1] = recordEnd;
+                    }
+                    valid = counting.getCount();
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+        }
+
+        if (valid < file.length()) { // 上次写入时中断留下的不完整记录
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+
+        return end;
+    }
+
+    /**
+     * 从索引中最后的位置开始扫描segment，补写索引中没有的记录，截掉不完整的记录
+     */
+    private void recover(int fromSegment,long fromOffset) throws IOException {
+
+        segment = fromSegment;
+        long offset = fromOffset;
+
+        while (true) {
+
+            File file = segmentFile(segment);
+
+            if (file.exists() && file.length() > offset) {
+
+                long valid = offset;
+                FileInputStream fis = new FileInputStream(file);
+                fis.getChannel().position(offset);
+                CountingInputStream counting = new CountingInputStream(new BufferedInputStream(fis));
+
+                try (DataInputStream in = new DataInputStream(counting)) {
+
+                    while (true) {
+                        recoverRecord(in, valid);
+                        valid = offset + counting.getCount();
+                    }
+                } catch (EOFException | UTFDataFormatException | CorruptedRecordException e) {
+                    // 文件末尾，或者写入时中断留下的不完整记录
+                }
+
+                if (valid < file.length()) {
+                    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                        channel.truncate(valid);
+                    }
+                }
+            }
+
+            if (!segmentFile(segment + 1).exists()) break;
+            segment++;
+            offset = 0;
+        }
+
+        index.flush();
+    }
+
+    /**
+     * 读取一条完整的记录，补写索引，跳过没有写完的记录
+     * @param in     位于记录的开头
+     * @param offset 记录在segment中的位置
+     */
+    private void recoverRecord(DataInputStream in,long offset) throws IOException {
+
+        int magic = in.readInt();
+        if (magic != MAGIC && magic != PENDING_MAGIC) throw new CorruptedRecordException();
+
+        String url = in.readUTF();
+        String contentType = in.readUTF();
+        long length = in.readLong();
+        if (length < 0) throw new CorruptedRecordException();
+
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[8192];
+        for (long remaining = length; remaining > 0; ) {
+            int n = (int) Math.min(buffer.length, remaining);
+            in.readFully(buffer, 0, n);
+            digest.update(buffer, 0, n);
+            remaining -= n;
+        }
+
+        if (magic == PENDING_MAGIC) return; // 之后可能还有其他线程写完的记录
+
+        Entry entry = new Entry(segment, offset, length, contentType.isEmpty() ? null : contentType, digest.digest());
+        writeIndex(url, entry);
+        entries.put(Utils.fingerprint(url), entry);
+    }
+
+    private void openWriter() throws IOException {
+
+        writer = FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        position = writer.size();
+        writer.position(position);
+    }
+
+    /**
+     * 当前的segment写满，之后写入下一个segment，还有记录在写入时等写完再关闭
+     */
+    private void roll() throws IOException {
+
+        index.flush();
+        if (writing.containsKey(segment)) {
+            retired.put(segment, writer);
+        } else {
+            writer.close();
+        }
+        segment++;
+        openWriter();
+    }
+
+    private synchronized void finishWriting(int target) {
+
+        int count = writing.merge(target, -1, Integer::sum);
+        if (count > 0) return;
+
+        writing.remove(target);
+        FileChannel channel = retired.remove(target);
+        if (channel != null) IOUtils.closeQuietly(channel);
+    }
+
+    /**
+     * 把in中的数据写入channel的position处
+     * @return 数据的SHA-256
+     */
+    private static byte[] transfer(InputStream in,FileChannel channel,long position,long length) throws IOException {
+
+        MessageDigest digest = newDigest();
+        ReadableByteChannel source = Channels.newChannel(in);
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(length, 1)));
+        long written = 0;
+
+        while (source.read(buffer) != -1) {
+
+            buffer.flip();
+            if (written + buffer.remaining() > length) {
+                throw new IOException("more than " + length + " bytes");
+            }
+
+            digest.update(buffer.duplicate());
+            written += writeFully(channel, buffer, position + written);
+            buffer.clear();
+        }
+
+        if (written != length) {
+            throw new IOException("expected " + length + " bytes, got " + written);
+        }
+        return digest.digest();
+    }
+
+    /**
+     * @return 写入的字节数
+     */
+    private static int writeFully(FileChannel channel,ByteBuffer buffer,long position) throws IOException {
+
+        int length = buffer.remaining();
+        for (int written = 0; written < length; ) {
+            written += channel.write(buffer, position + written);
+        }
+        return length;
+    }
+
+    private void writeIndex(String url,Entry entry) throws IOException {
+
+        index.writeUTF(url);
+        index.writeUTF(entry.contentType != null ? entry.contentType : "");
+        index.write(entry.hash);
+        index.writeInt(entry.segment);
+        index.writeLong(entry.offset);
+        index.writeLong(entry.length);
+    }
+
+    private FileChannel reader(int segment) throws IOException {
+
+        FileChannel channel = readers.get(segment);
+        if (channel != null) return channel;
+
+        synchronized (readers) {
+
+            channel = readers.get(segment);
+            if (channel == null) {
+                channel = FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.READ);
+                readers.put(segment, channel);
+            }
+            return channel;
+        }
+    }
+
+    private static ByteBuffer header(String url,String contentType,long length) throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + url.length());
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeUTF(url);
+        out.writeUTF(contentType);
+        out.writeLong(length);
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    private static ByteBuffer readFully(FileChannel channel,long position,int length) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) throw new EOFException("unexpected end of segment at " + (position + buffer.position()));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static MessageDigest newDigest() {
+
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(HASH_ALGORITHM + " is not supported", e);
+        }
+    }
+
+    /**
+     * 索引中的一条记录
+     */
+    public static class Entry {
+
+        private final int segment;
+        private final long offset;
+        private final long length;
+        private final String contentType;
+        private final byte[] hash;
+
+        Entry(int segment,long offset,long length,String contentType,byte[] hash) {
+
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.contentType = contentType;
+            this.hash = hash;
+        }
+
+        /**
+         * @return segment的编号
+         */
+        public int getSegment() {
+            return segment;
+        }
+
+        /**
+         * @return 记录在segment中的位置
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * @return 图片的字节数
+         */
+        public long getLength() {
+            return length;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * @return 图片的SHA-256
+         */
+        public byte[] getHash() {
+            return hash.clone();
+        }
+
+        @Override
+        public String toString() {
+            return "segment=" + segment + ",offset=" + offset + ",length=" + length + ",contentType=" + contentType;
+        }
+    }
+
+    /**
+     * segment中不是记录开头的数据
+     */
+    private static class CorruptedRecordException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+    }
+}
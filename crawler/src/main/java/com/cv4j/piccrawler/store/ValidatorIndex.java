@@ -0,0 +1,407 @@
+package com.cv4j.piccrawler.store;
+
+import com.cv4j.piccrawler.metrics.CountingInputStream;
+import com.cv4j.piccrawler.utils.Utils;
+import com.safframework.tony.common.utils.IOUtils;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * url对应的ETag/Last-Modified的索引，保存在磁盘上，多次运行之间共享，用于发送If-None-Match/If-Modified-Since
+ *
+ * url按64位指纹分到多个分片，每个分片是一个只追加的日志文件和一个OffsetIndex(指纹到日志中记录的位置，内存映射，数据在堆外)
+ * 查询时从OffsetIndex找到位置，再从日志中读取这一条记录，不需要把日志读入内存，启动时间和占用的堆内存与索引的大小无关
+ *
+ * 记录先写入内存中的缓冲区，后台线程每隔flushIntervalMillis写入文件，进程退出时最多丢失这段时间的记录，对应的url下次不发送条件请求。
+ * OffsetIndex的文件头记录已经写入索引的日志长度，打开分片时只重放之后的记录，没有OffsetIndex时从头重建。
+ * 日志中过期的记录比有效的记录多时，后台线程重写该分片
+ *
+ * validators-000.log 日志记录的格式: 指纹(long) ETag(UTF) Last-Modified(UTF)，空字符串表示没有
+ * validators-000.idx OffsetIndex，文件头中保存已经写入索引的日志长度和日志中的记录数
+ */
+@Slf4j
+public class ValidatorIndex implements Closeable {
+
+    public static final int DEFAULT_SHARDS = 64;
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+
+    private static final int COMPACT_MIN_RECORDS = 1024;
+
+    private final Shard[] shards;
+    private final ScheduledExecutorService flusher; // flushIntervalMillis为0时为null，每条记录都立即写入文件
+
+    /**
+     * @param directory           存放数据文件的目录，不存在时会创建
+     * @param shards              分片数量，必须与第一次创建时相同
+     * @param flushIntervalMillis 缓冲的记录写入文件的间隔，0表示每条记录都立即写入文件，这时只在flush()时重写分片
+     * @throws IOException
+     */
+    public ValidatorIndex(File directory,int shards,long flushIntervalMillis) throws IOException {
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("can not create directory: " + directory);
+        }
+
+        this.shards = new Shard[shards];
+        for (int i = 0; i < shards; i++) {
+            String name = String.format("validators-%03d", i);
+            this.shards[i] = new Shard(new File(directory, name + ".log"), new File(directory, name + ".idx"), flushIntervalMillis == 0);
+        }
+
+        if (flushIntervalMillis > 0) {
+            flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "piccrawler-validators-flush");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flushBuffers, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            flusher = null;
+        }
+    }
+
+    public ValidatorIndex(File directory,int shards) throws IOException {
+
+        this(directory,shards,DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    public ValidatorIndex(File directory) throws IOException {
+
+        this(directory,DEFAULT_SHARDS);
+    }
+
+    /**
+     * @param url
+     * @return url上次返回的校验信息，没有记录时返回null
+     * @throws IOException
+     */
+    public Validators get(String url) throws IOException {
+
+        long fingerprint = Utils.fingerprint(url);
+        return shard(fingerprint).get(fingerprint);
+    }
+
+    /**
+     * 记录url返回的校验信息，与已经记录的相同时不写入
+     * @param url
+     * @param etag
+     * @param lastModified
+     * @throws IOException
+     */
+    public void put(String url,String etag,String lastModified) throws IOException {
+
+        if (etag == null && lastModified == null) return;
+
+        long fingerprint = Utils.fingerprint(url);
+        shard(fingerprint).put(fingerprint, etag, lastModified);
+    }
+
+    /**
+     * 将缓冲中的记录写入文件，过期的记录太多时重写分片
+     */
+    public void flush() throws IOException {
+
+        for (Shard shard : shards) {
+            shard.flush();
+        }
+    }
+
+    @Override
+    public void close() {
+
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+
+        for (Shard shard : shards) {
+            shard.close();
+        }
+    }
+
+    /**
+     * 后台线程定期将缓冲的记录写入文件
+     */
+    private void flushBuffers() {
+
+        try {
+            flush();
+        } catch (IOException e) {
+            log.warn("can not flush validator index", e);
+        }
+    }
+
+    private Shard shard(long fingerprint) {
+
+        // 指纹的高位已经充分混合，取模之前转为非负数
+        return shards[(int) ((Utils.fmix64(fingerprint) >>> 1) % shards.length)];
+    }
+
+    private static class Shard {
+
+        private static final int READ_SIZE = 256;  // 一次读取，绝大多数记录不需要再读第二次
+
+        private final File file;
+        private final File indexFile;
+        private final boolean flushEachRecord;
+        private final Map<Long,Validators> buffered = new HashMap<>(); // 还在缓冲区中没有写入文件的记录
+
+        private OffsetIndex index;      // 第一次访问时才打开
+        private FileChannel reader;
+        private OutputStream out;
+        private long length;            // 日志的长度，包括缓冲区中的记录
+        private long records;           // 日志中的记录数，包括过期的记录
+        private boolean indexFullLogged;
+        private boolean closed;
+
+        Shard(File file,File indexFile,boolean flushEachRecord) {
+
+            this.file = file;
+            this.indexFile = indexFile;
+            this.flushEachRecord = flushEachRecord;
+        }
+
+        synchronized Validators get(long fingerprint) throws IOException {
+
+            if (!open()) return null;
+
+            Validators validators = buffered.get(fingerprint);
+            if (validators != null) return validators;
+
+            long position = index.get(fingerprint);
+            return position >= 0 ? read(fingerprint, position) : null;
+        }
+
+        synchronized void put(long fingerprint,String etag,String lastModified) throws IOException {
+
+            Validators old = get(fingerprint);
+            if (closed || old != null && old.sameAs(etag, lastModified)) return;
+
+            byte[] record = record(fingerprint, etag, lastModified); // 先完整地序列化，不会写入半条记录
+
+            if (!index.put(fingerprint, length)) {
+                if (!indexFullLogged) {
+                    indexFullLogged = true;
+                    log.error("validator index " + indexFile + " is full (" + index.size() + " urls), new urls are not recorded");
+                }
+                return;
+            }
+
+            out.write(record);
+            length += record.length;
+            records++;
+
+            if (flushEachRecord) {
+                flushLog();
+            } else {
+                buffered.put(fingerprint, new Validators(etag, lastModified));
+            }
+        }
+
+        synchronized void flush() throws IOException {
+
+            if (index == null || closed) return;
+
+            flushLog();
+
+            if (records > COMPACT_MIN_RECORDS && records > index.size() * 2) {
+                compact();
+            }
+        }
+
+        synchronized void close() {
+
+            if (closed) return;
+            closed = true;
+
+            if (index == null) return;
+
+            try {
+                flushLog();
+            } catch (IOException e) {
+                log.warn("can not flush validator index " + file, e);
+            }
+            IOUtils.closeQuietly(out);
+            IOUtils.closeQuietly(reader);
+            index.close();
+        }
+
+        /**
+         * 写入缓冲的记录，之后在OffsetIndex的文件头中记录已经写入索引的日志长度
+         */
+        private void flushLog() throws IOException {
+
+            out.flush();
+            buffered.clear();
+            index.header(0, length);
+            index.header(1, records);
+        }
+
+        /**
+         * 打开OffsetIndex，重放日志中还没有写入索引的记录，截掉最后不完整的记录
+         * @return 已经close()时返回false
+         */
+        private boolean open() throws IOException {
+
+            if (closed) return false;
+            if (index != null) return true;
+
+            try {
+                index = new OffsetIndex(indexFile);
+            } catch (IOException e) { // 损坏的索引，从日志重建
+                log.warn("rebuild validator index " + indexFile, e);
+                Files.deleteIfExists(indexFile.toPath());
+                index = new OffsetIndex(indexFile);
+            }
+
+            try {
+                long logLength = file.length();
+                length = Math.min(index.header(0), logLength); // 机器掉电时日志可能比索引中记录的短
+                records = index.header(1);
+
+                if (length < logLength) {
+                    replay();
+                }
+
+                index.header(0, length);
+                index.header(1, records);
+
+                out = new BufferedOutputStream(new FileOutputStream(file, true));
+                reader = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                return true;
+            } catch (IOException e) {
+                IOUtils.closeQuietly(out);
+                index.close();
+                index = null;
+                throw e;
+            }
+        }
+
+        private void replay() throws IOException {
+
+            FileInputStream fis = new FileInputStream(file);
+            fis.getChannel().position(length);
+            CountingInputStream counting = new CountingInputStream(new BufferedInputStream(fis));
+            long valid = length;
+
+            try (DataInputStream in = new DataInputStream(counting)) {
+
+                while (true) {
+
+                    try {
+                        long fingerprint = in.readLong();
+                        in.readUTF();
+                        in.readUTF();
+
+                        index.put(fingerprint, valid); // 索引满了之后不再加入新的url，日志仍然保留
+                        records++;
+                        valid = length + counting.getCount();
+                    } catch (EOFException | UTFDataFormatException e) { // 上次写入时中断留下的不完整记录
+                        break;
+                    }
+                }
+            }
+
+            if (valid < file.length()) {
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                    channel.truncate(valid);
+                }
+            }
+            length = valid;
+        }
+
+        /**
+         * @return position处的记录，不是fingerprint的记录时返回null(写入索引之后日志还没有写入文件时进程退出)
+         */
+        private Validators read(long fingerprint,long position) throws IOException {
+
+            int size = READ_SIZE;
+
+            while (true) {
+
+                ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, Math.max(length - position, 0)));
+                while (buffer.hasRemaining() && reader.read(buffer, position + buffer.position()) > 0) {
+                }
+
+                try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer.array(), 0, buffer.position()))) {
+
+                    if (in.readLong() != fingerprint) return null;
+                    String etag = in.readUTF();
+                    String lastModified = in.readUTF();
+                    return new Validators(etag.isEmpty() ? null : etag, lastModified.isEmpty() ? null : lastModified);
+                } catch (EOFException e) {
+                    if (buffer.position() < size) return null; // 日志中没有完整的记录
+                    size = 8 + 2 * (2 + 65535);                 // 记录的最大长度
+                } catch (UTFDataFormatException e) {
+                    return null;
+                }
+            }
+        }
+
+        /**
+         * 只保留每个url最新的记录，先写临时文件再原子替换，替换期间进程退出时从日志重建索引
+         */
+        private void compact() throws IOException {
+
+            File tmp = new File(file.getPath() + ".tmp");
+            File tmpIndexFile = new File(indexFile.getPath() + ".tmp");
+            Files.deleteIfExists(tmpIndexFile.toPath());
+
+            long[] written = {0, 0};
+            OffsetIndex compacted = new OffsetIndex(tmpIndexFile);
+
+            try (FileOutputStream fos = new FileOutputStream(tmp);
+                 BufferedOutputStream compactedLog = new BufferedOutputStream(fos)) {
+
+                index.forEach((fingerprint, position) -> {
+                    Validators validators = read(fingerprint, position);
+                    if (validators != null) {
+                        byte[] record = record(fingerprint, validators.getEtag(), validators.getLastModified());
+                        compacted.put(fingerprint, written[0]);
+                        compactedLog.write(record);
+                        written[0] += record.length;
+                        written[1]++;
+                    }
+                });
+
+                compactedLog.flush();
+                fos.getFD().sync();
+                compacted.header(0, written[0]);
+                compacted.header(1, written[1]);
+            } finally {
+                compacted.close();
+            }
+
+            IOUtils.closeQuietly(out);
+            IOUtils.closeQuietly(reader);
+            index.close();
+            index = null;
+
+            Files.delete(indexFile.toPath());
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(tmpIndexFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            open();
+        }
+
+        private static byte[] record(long fingerprint,String etag,String lastModified) throws IOException {
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(fingerprint);
+            out.writeUTF(etag != null ? etag : "");
+            out.writeUTF(lastModified != null ? lastModified : "");
+            return bytes.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.cv4j.piccrawler.store;
+
+import lombok.Getter;
+
+/**
+ * 服务端返回的校验信息，用于条件请求
+ */
+@Getter
+public class Validators {
+
+    private final String etag;
+    private final String lastModified;
+
+    public Validators(String etag,String lastModified) {
+
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    boolean sameAs(String etag,String lastModified) {
+
+        return equals(this.etag, etag) && equals(this.lastModified, lastModified);
+    }
+
+    private static boolean equals(String a,String b) {
+
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,342 @@
+package com.cv4j.piccrawler.utils;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * 图片地址的转义、格式识别和校验，每个方法只遍历一次地址，不使用正则表达式
+ * 结果与原来Utils中基于正则和replace的实现相同：
+ *
+ * 1. ESCAPE_REGEX中的(|)是一个可以匹配空串的分组，实际的含义只是"包含'.'并且没有换行符"，满足时转义全部14个字符
+ * 2. 转义后的%XX不包含需要转义的字符，因此14次replace的顺序不影响结果，可以在一次遍历中完成
+ * 3. PIC_REGEX同样只要求没有换行符，多种格式同时出现时按jpg、jpeg、gif、bmp、png、webp、svg的优先级返回
+ *
+ * 转义使用可以复用的StringBuilder，不需要转义时直接返回原来的字符串。实例不是线程安全的，通过get()获取当前线程的实例
+ */
+public final class UrlNormalizer {
+
+    private static final String[] FORMATS = {"jpg", "jpeg", "gif", "bmp", "png", "webp", "svg"};
+
+    private static final String[] ESCAPES = new String[128];
+
+    static {
+        ESCAPES[' '] = "%20";
+        ESCAPES['"'] = "%22";
+        ESCAPES['#'] = "%23";
+        ESCAPES['('] = "%28";
+        ESCAPES[')'] = "%29";
+        ESCAPES['+'] = "%2B";
+        ESCAPES[','] = "%2C";
+        ESCAPES[':'] = "%3A";
+        ESCAPES[';'] = "%3B";
+        ESCAPES['<'] = "%3C";
+        ESCAPES['>'] = "%3E";
+        ESCAPES['@'] = "%40";
+        ESCAPES['\\'] = "%5C";
+        ESCAPES['|'] = "%7C";
+    }
+
+    // 快速校验时路径、查询参数中允许的字符，其余的字符交给java.net.URI判断
+    private static final boolean[] URI_CHARS = new boolean[128];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) URI_CHARS[c] = true;
+        for (char c = 'A'; c <= 'Z'; c++) URI_CHARS[c] = true;
+        for (char c = '0'; c <= '9'; c++) URI_CHARS[c] = true;
+        for (char c : "-._~!$&'()*+,;=:@/?".toCharArray()) URI_CHARS[c] = true;
+    }
+
+    private static final ThreadLocal<UrlNormalizer> INSTANCE = ThreadLocal.withInitial(UrlNormalizer::new);
+
+    private final StringBuilder builder = new StringBuilder(256);
+
+    /**
+     * @return 当前线程的实例
+     */
+    public static UrlNormalizer get() {
+
+        return INSTANCE.get();
+    }
+
+    /**
+     * 与Utils.tryToEscapeUrl()相同
+     * @param url
+     * @return 不需要转义时返回原来的字符串
+     */
+    public String escape(String url) {
+
+        if (url == null) return null;
+
+        int n = url.length();
+        int first = -1;
+        boolean dot = false;
+
+        for (int i = 0; i < n; i++) {
+
+            char c = url.charAt(i);
+            if (c == '.') {
+                dot = true;
+            } else if (isLineTerminator(c)) {
+                return url;
+            } else if (first < 0 && c < 128 && ESCAPES[c] != null) {
+                first = i;
+            }
+        }
+
+        if (!dot || first < 0) return url;
+
+        StringBuilder sb = reset();
+        sb.append(url, 0, first);
+        appendEscaped(sb, url, first, n);
+        return sb.toString();
+    }
+
+    /**
+     * 与Utils.tryToGetPicFormat()相同
+     * @param url
+     * @return 图片的格式，例如"jpg"，无法判断时返回null
+     */
+    public String picFormat(String url) {
+
+        if (url == null) return null;
+
+        int found = FORMATS.length;  // 已经找到的格式中优先级最高的
+        for (int i = 0, n = url.length(); i < n; i++) {
+
+            char c = url.charAt(i);
+            if (c == '.') {
+                for (int f = 0; f < found; f++) {
+                    if (url.startsWith(FORMATS[f], i + 1)) {
+                        found = f;
+                        break;
+                    }
+                }
+            } else if (isLineTerminator(c)) {
+                return null;
+            }
+        }
+
+        return found < FORMATS.length ? FORMATS[found] : null;
+    }
+
+    /**
+     * 与Utils.isValidUrl()相同：能被java.net.URI解析、有host并且是http/https
+     * 常见的地址直接校验，不创建URI对象，其余的地址交给java.net.URI
+     * @param url
+     * @return
+     */
+    public boolean isValid(CharSequence url) {
+
+        if (url == null) return false;
+
+        if (isCommonValidUrl(url)) return true;
+
+        // 不是http/https或者包含java.net.URI不接受的字符时，不需要再解析
+        if (!hasHttpScheme(url) || hasIllegalChar(url)) return false;
+
+        try {
+            URI uri = new URI(url.toString());
+            return uri.getHost() != null && uri.getScheme() != null
+                    && (uri.getScheme().equalsIgnoreCase("http") || uri.getScheme().equalsIgnoreCase("https"));
+        } catch (URISyntaxException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 网页中图片的相对地址，与PicParser原来的处理相同：去掉"//"，转义之后加上"http://"
+     * @param src img标签的src
+     * @return 不是合法的地址时返回null
+     */
+    public String imageUrl(String src) {
+
+        if (src == null) return null;
+
+        int n = src.length();
+        boolean dot = false;
+        boolean escape = true;
+
+        for (int i = 0; i < n; i++) {
+
+            char c = src.charAt(i);
+            if (c == '.') {
+                dot = true;
+            } else if (isLineTerminator(c)) {
+                escape = false;
+                break;
+            }
+        }
+        escape &= dot;
+
+        StringBuilder sb = reset();
+        sb.append("http://");
+
+        for (int i = 0; i < n; i++) {
+
+            char c = src.charAt(i);
+            if (c == '/' && i + 1 < n && src.charAt(i + 1) == '/') { // 与replace("//","")相同，从左往右不重叠
+                i++;
+                continue;
+            }
+
+            String escaped = escape && c < 128 ? ESCAPES[c] : null;
+            if (escaped != null) {
+                sb.append(escaped);
+            } else {
+                sb.append(c);
+            }
+        }
+
+        return isValid(sb) ? sb.toString() : null;
+    }
+
+    private StringBuilder reset() {
+
+        builder.setLength(0);
+        return builder;
+    }
+
+    private static void appendEscaped(StringBuilder sb,String url,int from,int to) {
+
+        for (int i = from; i < to; i++) {
+
+            char c = url.charAt(i);
+            String escaped = c < 128 ? ESCAPES[c] : null;
+            if (escaped != null) {
+                sb.append(escaped);
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    /**
+     * 正则中的'.'不匹配的字符
+     */
+    private static boolean isLineTerminator(char c) {
+
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    /**
+     * 只处理常见的 http(s)://host[:port][/path][?query] 形式，host只包含字母、数字、'-'和'.'，其余的字符都是ASCII的合法字符
+     * @param url
+     * @return 是否合法，返回false时需要交给java.net.URI判断
+     */
+    private static boolean isCommonValidUrl(CharSequence url) {
+
+        int n = url.length();
+        int p;
+        if (startsWithIgnoreCase(url, "http://")) {
+            p = 7;
+        } else if (startsWithIgnoreCase(url, "https://")) {
+            p = 8;
+        } else {
+            return false;
+        }
+
+        // host，规则与java.net.URI相同：每一段以字母或数字开头，不能以'-'结尾，最后一段以字母开头
+        int lastLabel = -1;
+        while (p < n) {
+
+            char c = url.charAt(p);
+            if (!isAlphaNum(c)) break;
+
+            lastLabel = p;
+            p++;
+            while (p < n && (isAlphaNum(url.charAt(p)) || url.charAt(p) == '-')) p++;
+            if (url.charAt(p - 1) == '-') return false;
+
+            if (p < n && url.charAt(p) == '.') {
+                p++;
+            } else {
+                break;
+            }
+        }
+
+        if (lastLabel < 0 || !isAlpha(url.charAt(lastLabel))) return false; // 包括IP地址，交给java.net.URI
+
+        // 端口
+        if (p < n && url.charAt(p) == ':') {
+
+            int portStart = ++p;
+            while (p < n && url.charAt(p) >= '0' && url.charAt(p) <= '9') p++;
+            if (p == portStart || p - portStart > 5) return false;
+        }
+
+        if (p < n && url.charAt(p) != '/' && url.charAt(p) != '?') return false;
+
+        // 路径和查询参数
+        for (; p < n; p++) {
+
+            char c = url.charAt(p);
+            if (c >= 128) return false;
+
+            if (c == '%') {
+                if (p + 2 >= n || !isHex(url.charAt(p + 1)) || !isHex(url.charAt(p + 2))) return false;
+                p += 2;
+            } else if (!URI_CHARS[c]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * java.net.URI只把第一个':'之前、并且在'/'、'?'、'#'之前的部分作为scheme，没有scheme时getScheme()为null
+     */
+    private static boolean hasHttpScheme(CharSequence url) {
+
+        int n = url.length();
+        int p = 0;
+        while (p < n) {
+            char c = url.charAt(p);
+            if (c == ':' || c == '/' || c == '?' || c == '#') break;
+            p++;
+        }
+
+        if (p >= n || url.charAt(p) != ':') return false;
+
+        return (p == 4 && startsWithIgnoreCase(url, "http")) || (p == 5 && startsWithIgnoreCase(url, "https"));
+    }
+
+    /**
+     * @return 是否包含java.net.URI在任何位置都不接受的ASCII字符，例如空格、控制字符、'<'、'|'
+     */
+    private static boolean hasIllegalChar(CharSequence url) {
+
+        for (int i = 0, n = url.length(); i < n; i++) {
+
+            char c = url.charAt(i);
+            if (c < 128 && !URI_CHARS[c] && c != '%' && c != '#' && c != '[' && c != ']') return true;
+        }
+        return false;
+    }
+
+    private static boolean startsWithIgnoreCase(CharSequence s,String prefix) {
+
+        int n = prefix.length();
+        if (s.length() < n) return false;
+
+        for (int i = 0; i < n; i++) {
+            if (Character.toLowerCase(s.charAt(i)) != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static boolean isAlpha(char c) {
+
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isAlphaNum(char c) {
+
+        return isAlpha(c) || (c >= '0' && c <= '9');
+    }
+
+    private static boolean isHex(char c) {
+
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+}
@@ -55,6 +55,37 @@ public class Utils {
         return UUID.randomUUID().toString().replace("-", "");
     }
 
+    /**
+     * 计算字符串的64位指纹，直接遍历字符，不需要先转换成byte数组
+     * 基于FNV-1a，最后使用MurmurHash3的fmix64打散
+     * @param s
+     * @return
+     */
+    public static long fingerprint(String s) {
+
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0, n = s.length(); i < n; i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return fmix64(h);
+    }
+
+    /**
+     * MurmurHash3的fmix64
+     * @param h
+     * @return
+     */
+    public static long fmix64(long h) {
+
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
     /**
      * 创建默认的文件夹用于存放图片
      * @param directory
@@ -76,113 +107,17 @@ public class Utils {
      */
     public static String tryToGetPicFormat(String url) {
 
-        if (url == null) return null;
-
-        if (!url.matches(PIC_REGEX)) return null;
-
-        if (url.indexOf(".jpg")>-1) {
-
-            return "jpg";
-        } else if (url.indexOf(".jpeg")>-1) {
-
-            return "jpeg";
-        } else if (url.indexOf(".gif")>-1) {
-
-            return "gif";
-        } else if (url.indexOf(".bmp")>-1) {
-
-            return "bmp";
-        } else if (url.indexOf(".png")>-1) {
-
-            return "png";
-        } else if (url.indexOf(".webp")>-1) {
-
-            return "webp";
-        } else if (url.indexOf(".svg")>-1) {
-
-            return "svg";
-        }
-
-        return null;
+        return UrlNormalizer.get().picFormat(url);
     }
 
+    /**
+     * 转义地址中的特殊字符，与按ESCAPE_REGEX和map逐个替换的结果相同
+     * @param url
+     * @return
+     */
     public static String tryToEscapeUrl(String url) {
 
-        if (url == null) return null;
-
-        if (!url.matches(ESCAPE_REGEX)) return url;
-
-        if (url.indexOf(" ")>-1) {
-
-            url =  url.replace(" ",map.get(" "));
-        }
-
-        if (url.indexOf("\"")>-1) {
-
-            url =  url.replace("\"",map.get("\""));
-        }
-
-        if (url.indexOf("#")>-1) {
-
-            url =  url.replace("#",map.get("#"));
-        }
-
-        if (url.indexOf("(")>-1) {
-
-            url =  url.replace("(",map.get("("));
-        }
-
-        if (url.indexOf(")")>-1) {
-
-            url =  url.replace(")",map.get(")"));
-        }
-
-        if (url.indexOf("+")>-1) {
-
-            url =  url.replace("+",map.get("+"));
-        }
-
-        if (url.indexOf(",")>-1) {
-
-            url =  url.replace(",",map.get(","));
-        }
-
-        if (url.indexOf(":")>-1) {
-
-            url =  url.replace(":",map.get(":"));
-        }
-
-        if (url.indexOf(";")>-1) {
-
-            url =  url.replace(";",map.get(";"));
-        }
-
-        if (url.indexOf("<")>-1) {
-
-            url =  url.replace("<",map.get("<"));
-        }
-
-        if (url.indexOf(">")>-1) {
-
-            url =  url.replace(">",map.get(">"));
-        }
-
-        if (url.indexOf("@")>-1) {
-
-            url =  url.replace("@",map.get("@"));
-        }
-
-        if (url.indexOf("\\")>-1) {
-
-            url =  url.replace("\\",map.get("\\"));
-        }
-
-        if (url.indexOf("|")>-1) {
-
-            url =  url.replace("|",map.get("|"));
-        }
-
-        return url;
+        return UrlNormalizer.get().escape(url);
     }
 
     /**
@@ -196,7 +131,7 @@ public class Utils {
             URL url = new URL(urlString);
             return url.getProtocol() + "://" + url.getHost();
         } catch (MalformedURLException e) {
-            e.printStackTrace();
+            log.debug("invalid url: "+urlString,e);
         }
 
         return null;
@@ -208,21 +143,8 @@ public class Utils {
      * @return
      */
     public static boolean isValidUrl(String urlString) {
-        URI uri = null;
-        try {
-            uri = new URI(urlString);
-        } catch (URISyntaxException e) {
-            e.printStackTrace();
-            return false;
-        }
 
-        if (uri.getHost() == null) {
-            return false;
-        }
-        if (uri.getScheme().equalsIgnoreCase("http") || uri.getScheme().equalsIgnoreCase("https")) {
-            return true;
-        }
-        return false;
+        return UrlNormalizer.get().isValid(urlString);
     }
 
     /**
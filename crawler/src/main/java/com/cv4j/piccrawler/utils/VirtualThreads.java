@@ -0,0 +1,51 @@
+package com.cv4j.piccrawler.utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 虚拟线程的工具类
+ * 项目仍然以Java 8编译，因此通过反射调用JDK 21的Executors.newVirtualThreadPerTaskExecutor()
+ */
+@Slf4j
+public class VirtualThreads {
+
+    private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = findFactoryMethod();
+
+    private static Method findFactoryMethod() {
+
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 当前的JVM是否支持虚拟线程
+     * @return
+     */
+    public static boolean isSupported() {
+
+        return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+    }
+
+    /**
+     * 创建为每个任务启动一个虚拟线程的线程池
+     * @return 当前的JVM不支持虚拟线程时返回null
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+
+        if (!isSupported()) return null;
+
+        try {
+            return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.warn("can not create virtual thread executor", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.cv4j.piccrawler;
+
+import com.cv4j.piccrawler.download.strategy.FileGenType;
+import com.cv4j.piccrawler.download.strategy.FileStrategy;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * downloadPicsAsync()提交的图片不超过max(maxInFlight,queueSize)，下载线程池的队列不会满，也不会在调用方的线程中下载
+ */
+public class PicCrawlerClientTest {
+
+    private static final int IMAGES = 200;
+    private static final byte[] IMAGE = new byte[2048];
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newFixedThreadPool(8));
+        server.createContext("/img/", exchange -> {
+            requests.incrementAndGet();
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException ignored) {
+            }
+            exchange.getResponseHeaders().set("Content-Type", "image/png");
+            exchange.sendResponseHeaders(200, IMAGE.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(IMAGE);
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+
+        server.stop(0);
+    }
+
+    @Test(timeout = 60_000)
+    public void downloadPicsAsyncDoesNotOverflowTheExecutor() throws IOException {
+
+        File output = folder.newFolder();
+        Thread caller = Thread.currentThread();
+        AtomicInteger onCaller = new AtomicInteger();
+
+        // 与DownloadExecutor相同，容量正好是maxInFlight+queueSize，多提交一个任务就会抛出RejectedExecutionException
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(3), new ThreadPoolExecutor.AbortPolicy());
+        Executor executor = command -> pool.execute(() -> {
+            if (Thread.currentThread() == caller) onCaller.incrementAndGet();
+            command.run();
+        });
+
+        PicCrawlerClient client = PicCrawlerClient.get()
+                .timeOut(10_000)
+                .maxInFlight(2)
+                .queueSize(3)
+                .downloadExecutor(executor)
+                .fileStrategy(randomFileStrategy(output))
+                .build();
+
+        List<String> urls = new ArrayList<>();
+        for (int i = 0; i < IMAGES; i++) {
+            urls.add("http://127.0.0.1:" + server.getAddress().getPort() + "/img/" + i + ".png");
+        }
+
+        try {
+            client.downloadPicsAsync(urls).join();
+        } finally {
+            client.shutdown();
+            pool.shutdown();
+        }
+
+        assertEquals(IMAGES, requests.get());
+        assertEquals(IMAGES, output.listFiles().length);
+        assertEquals(0, onCaller.get());
+    }
+
+    private static FileStrategy randomFileStrategy(File directory) {
+
+        return new FileStrategy() {
+
+            @Override
+            public String filePath() {
+                return directory.getPath();
+            }
+
+            @Override
+            public String picFormat() {
+                return "png";
+            }
+
+            @Override
+            public FileGenType genType() {
+                return FileGenType.RANDOM;
+            }
+        };
+    }
+}
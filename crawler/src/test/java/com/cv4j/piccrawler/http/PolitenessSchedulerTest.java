@@ -0,0 +1,118 @@
+package com.cv4j.piccrawler.http;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 同一个host积压请求、同步完成的请求以及shutdown()时等待的请求
+ */
+public class PolitenessSchedulerTest {
+
+    private static final String URL = "http://img.example.com/a.png";
+
+    /**
+     * 一个host积压了大量请求，每个请求都同步完成(例如下载线程池的CallerRunsPolicy)，不会递归到栈溢出
+     */
+    @Test(timeout = 60_000)
+    public void backlogOfSynchronouslyCompletingTasks() {
+
+        PolitenessScheduler scheduler = new PolitenessScheduler(0, 1);
+
+        try {
+            CompletableFuture<Integer> first = new CompletableFuture<>();
+            List<CompletableFuture<Integer>> results = new ArrayList<>();
+            results.add(scheduler.submit(URL, () -> first));
+
+            AtomicInteger started = new AtomicInteger();
+            for (int i = 0; i < 50_000; i++) {
+                int n = i;
+                results.add(scheduler.submit(URL, () -> {
+                    started.incrementAndGet();
+                    return CompletableFuture.completedFuture(n);
+                }));
+            }
+
+            assertEquals(0, started.get()); // 第一个请求还没有完成，maxPerHost为1
+
+            first.complete(-1);
+            CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).join();
+
+            assertEquals(50_000, started.get());
+            for (int i = 1; i < results.size(); i++) {
+                assertEquals(i - 1, (int) results.get(i).join());
+            }
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    /**
+     * shutdown()之后等待的请求以CancellationException结束，已经发起的请求不受影响
+     */
+    @Test(timeout = 10_000)
+    public void shutdownCancelsQueuedRequests() throws Exception {
+
+        PolitenessScheduler scheduler = new PolitenessScheduler(0, 1);
+
+        CompletableFuture<Integer> running = new CompletableFuture<>();
+        CompletableFuture<Integer> first = scheduler.submit(URL, () -> running);
+
+        List<CompletableFuture<Integer>> queued = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            queued.add(scheduler.submit(URL, () -> CompletableFuture.completedFuture(1)));
+        }
+
+        scheduler.shutdown();
+
+        for (CompletableFuture<Integer> result : queued) {
+            assertCancelled(result);
+        }
+
+        running.complete(7); // 完成之后不再dispatch，也不会抛出异常
+        assertEquals(7, (int) first.get(1, TimeUnit.SECONDS));
+
+        assertCancelled(scheduler.submit(URL, () -> CompletableFuture.completedFuture(1)));
+        assertEquals(0, scheduler.getPendingCount());
+    }
+
+    /**
+     * 等待限速间隔的请求在shutdown()之后同样结束
+     */
+    @Test(timeout = 10_000)
+    public void shutdownCancelsRequestsWaitingForInterval() {
+
+        PolitenessScheduler scheduler = new PolitenessScheduler(60_000, 0);
+
+        CompletableFuture<Integer> first = scheduler.submit(URL, () -> CompletableFuture.completedFuture(1));
+        CompletableFuture<Integer> second = scheduler.submit(URL, () -> CompletableFuture.completedFuture(2));
+
+        assertEquals(1, (int) first.join());
+        assertTrue(!second.isDone());
+
+        scheduler.shutdown();
+        assertCancelled(second);
+    }
+
+    private static void assertCancelled(CompletableFuture<?> result) {
+
+        assertTrue(result.isDone());
+        try {
+            result.join();
+            fail("expected CancellationException");
+        } catch (CompletionException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof CancellationException);
+        } catch (CancellationException ignored) {
+        }
+    }
+}
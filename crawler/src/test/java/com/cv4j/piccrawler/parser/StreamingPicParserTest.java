@@ -0,0 +1,197 @@
+package com.cv4j.piccrawler.parser;
+
+import org.jsoup.Jsoup;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * StreamingPicParser与Jsoup.parse()之后再使用PicParser的结果逐个对比
+ * 每个网页都按整块读取以及1-7个字符的小块读取，覆盖标签、属性、实体被拆在两次read()之间的情况
+ * 类注释中列出的没有模拟的情况(img之后的base、svg/select被表格隐式关闭等)不在对比的范围内
+ */
+public class StreamingPicParserTest {
+
+    private static final String BASE = "http://example.com/dir/page.html";
+
+    private static final String[] PAGES = {
+            // 普通的图片、绝对和相对地址
+            "<html><body><img src=\"http://img.example.com/a.png\"><img src='b.jpg'><img src=/c.gif></body></html>",
+            "<img src=\"//cdn.example.com/a.png\"><img src=\"../up/b.png\"><img src=\"./c.png\"><img src=\"?x=1\">",
+            "<IMG SRC=\"http://img.example.com/upper.png\"><Img Src=\"mixed.png\">",
+            "<img src=\"\"><img src=\"   \"><img><img src>",
+            // 注释
+            "<!-- <img src=\"comment.png\"> --><img src=\"after-comment.png\">",
+            "<!--><img src=\"a.png\">--><img src=\"b.png\">",
+            "<!---><img src=\"a.png\"><!-- -- --!><img src=\"b.png\">",
+            "<!-- unterminated <img src=\"x.png\">",
+            "<!DOCTYPE html><img src=\"doctype.png\">",
+            "<?xml version=\"1.0\"?><img src=\"bogus.png\">",
+            "</ img src=\"bogus-end.png\"><img src=\"ok.png\">",
+            // CDATA
+            "<![CDATA[<img src=\"cdata.png\">]]><img src=\"after-cdata.png\">",
+            "<svg><![CDATA[<img src=\"svg-cdata.png\">]]></svg><img src=\"after-svg.png\">",
+            // script、style、textarea、title等
+            "<script>document.write('<img src=\"script.png\">');</script><img src=\"after-script.png\">",
+            "<script type=\"text/template\"><img src=\"tpl.png\"></script ><img src=\"a.png\">",
+            "<style>img[src=\"style.png\"]{}</style><img src=\"after-style.png\">",
+            "<textarea><img src=\"textarea.png\"></textarea><img src=\"after-textarea.png\">",
+            "<title><img src=\"title.png\"></title><img src=\"after-title.png\">",
+            "<noscript><img src=\"noscript-body.png\"></noscript>",
+            "<head><noscript><img src=\"noscript-head.png\"></noscript></head><body><img src=\"b.png\"></body>",
+            "<xmp><img src=\"xmp.png\"></xmp><iframe><img src=\"iframe.png\"></iframe><noembed><img src=\"e.png\"></noembed><img src=\"ok.png\">",
+            "<plaintext><img src=\"plaintext.png\">",
+            "<title>unterminated <img src=\"a.png\"><p><img src=\"b.png\">",
+            "<textarea>unterminated <img src=\"a.png\">",
+            // 未加引号的属性、重复和奇怪的属性
+            "<img src=a.png alt=x><img alt=y src=b.png/><img src=c.png>",
+            "<img src = \"spaced.png\" ><img\nsrc\n=\n'newlines.png'>",
+            "<img src=\"first.png\" src=\"second.png\">",
+            "<img SRC=\"upper.png\" src=\"lower.png\">",
+            "<img data-src=\"lazy.png\" src=\"real.png\">",
+            "<img/src=\"slash.png\"><img src=\"x.png\"/ ><img src=\"y.png\"//>",
+            "<img src=\"a.png\"alt=\"no-space\"><img src='b.png'alt='c'>",
+            "<img src=a\"b.png><img src=a'b.png><img src=a=b.png><img src=a`b.png>",
+            // 字符实体
+            "<img src=\"a.png?x=1&amp;y=2\"><img src=\"b&#46;png\"><img src=\"c&#x2E;png\">",
+            "<img src=\"d.png?a=1&copy=2\"><img src=\"e.png?a=1&copy;\"><img src=\"f&lt;g.png\">",
+            "<img src=d.png?a&amp;b><img src=\"&unknown;.png\"><img src=\"&#0;.png\"><img src=\"&#x110000;.png\">",
+            "<img src=\"&nbsp.png\"><img src=\"&amp\"><img src=\"&#\">",
+            // srcset以及相对地址
+            "<img srcset=\"a-1x.png 1x, a-2x.png 2x\"><img src=\"b.png\" srcset=\"b-2x.png 2x\">",
+            "<picture><source srcset=\"s.webp\"><img src=\"p.jpg\"></picture>",
+            "<base href=\"http://other.example.org/base/\"><img src=\"rel.png\"><img src=\"/root.png\">",
+            "<base href=\"\"><base href=\"/sub/\"><img src=\"rel.png\">",
+            "<base target=\"_blank\"><base href=\"https://second.example.net/\"><img src=\"x.png\">",
+            // 特殊字符和非ASCII
+            "<img src=\"图片 1.png\"><img src=\"a b(1).png\"><img src=\"a|b.png\">",
+            "<img src=\"http://例子.测试/图.png\"><img src=\"http://img.example.com/😀.png\">",
+            "<img src=\"  http://img.example.com/padded.png  \">",
+            "<img src=\"javascript:alert(1)\"><img src=\"data:image/png;base64,AAAA\"><img src=\"mailto:a@b.c\">",
+            // frameset、image
+            "<image src=\"image-tag.png\"><img src=\"img-tag.png\">",
+            "<frameset><img src=\"frameset.png\"></frameset>",
+            // 没有结束的标签
+            "<img src=\"a.png",
+            "<img src=\"a.png\"",
+            "<img src=a.png",
+            "<img",
+            "<",
+            "<img src=\"ok.png\"><",
+    };
+
+    @Test
+    public void matchesJsoupOnEdgeCases() throws IOException {
+
+        for (String html : PAGES) {
+            assertSameUrls(html, BASE, null);
+            assertSameUrls(html, "", null);
+        }
+    }
+
+    @Test
+    public void matchesJsoupAcrossChunkBoundaries() throws IOException {
+
+        Random random = new Random(42);
+
+        for (String html : PAGES) {
+            for (int chunk = 1; chunk <= 7; chunk++) {
+                assertSameUrls(html, BASE, new int[]{chunk});
+            }
+            assertSameUrls(html, BASE, randomChunks(random));
+        }
+    }
+
+    @Test
+    public void matchesJsoupOnFuzzedMarkup() throws IOException {
+
+        String[] parts = {
+                "<img src=\"a.png\">", "<img src='b.jpg'>", "<img src=c.gif>", "<IMG SRC=\"d.png\">", "<img src=\"../e.png\">",
+                "<img src=\"//f.example.com/f.png\">", "<img src=\"g.png?x=1&amp;y=2\">", "<img src=\"h&#46;png\">", "<img src=\"\">",
+                "<img alt=x src=i.png/>", "<img src=\"j.png\" src=\"k.png\">", "<image src=\"l.png\">", "<img srcset=\"m.png 2x\">",
+                "<img src=\"n o.png\">", "<img", " src=\"p.png\"", ">", "<", "</", "/", "\"", "'", "=", "&", "&amp;", "&#",
+                "<!--", "-->", "--", "!", "<!DOCTYPE html>", "<![CDATA[", "]]>", "<?x?>",
+                "<script>", "</script>", "<style>", "</style>", "<textarea>", "</textarea>", "<title>", "</title>",
+                "<noscript>", "</noscript>", "<xmp>", "</xmp>", "<head>", "</head>", "<body>", "</body>", "<html>", "</html>",
+                "<p>", "</p>", "<div class=x>", "</div>", "<a href=\"x.png\">", "</a>", "<br/>",
+                "text", " ", "\n", "图", "😀",
+        };
+
+        Random random = new Random(20171114L);
+
+        for (int i = 0; i < 5_000; i++) {
+
+            StringBuilder sb = new StringBuilder();
+            int count = random.nextInt(30);
+            for (int j = 0; j < count; j++) {
+                sb.append(parts[random.nextInt(parts.length)]);
+            }
+
+            String html = sb.toString();
+            assertSameUrls(html, BASE, null);
+            assertSameUrls(html, BASE, randomChunks(random));
+        }
+    }
+
+    private static void assertSameUrls(String html,String baseUri,int[] chunks) throws IOException {
+
+        List<String> expected = new PicParser().parse(Jsoup.parse(html, baseUri));
+
+        List<String> actual = new ArrayList<>();
+        Reader reader = chunks != null ? new ChunkedReader(html, chunks) : new StringReader(html);
+        int count = new StreamingPicParser().parse(reader, baseUri, actual::add);
+
+        String message = "html: " + html + ", base: " + baseUri + ", chunks: " + Arrays.toString(chunks);
+        assertEquals(message, expected, actual);
+        assertEquals(message, expected.size(), count);
+    }
+
+    private static int[] randomChunks(Random random) {
+
+        int[] chunks = new int[1 + random.nextInt(8)];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = 1 + random.nextInt(7);
+        }
+        return chunks;
+    }
+
+    /**
+     * 每次read()最多返回chunks中依次给出的字符数
+     */
+    private static class ChunkedReader extends Reader {
+
+        private final String text;
+        private final int[] chunks;
+        private int position;
+        private int reads;
+
+        ChunkedReader(String text,int[] chunks) {
+
+            this.text = text;
+            this.chunks = chunks;
+        }
+
+        @Override
+        public int read(char[] buffer,int offset,int length) {
+
+            if (position >= text.length()) return -1;
+
+            int n = Math.min(Math.min(length, chunks[reads++ % chunks.length]), text.length() - position);
+            text.getChars(position, position + n, buffer, offset);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.cv4j.piccrawler.store;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 在任意位置截断日志之后重新打开，恢复的状态与截断位置之前完整的记录相同
+ */
+public class CrawlJournalTest {
+
+    private static final int PAGES = 20;
+    private static final int IMAGES_PER_PAGE = 8;
+    private static final int OFFSETS = 300;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void truncatedJournalRecoversCompleteRecords() throws IOException {
+
+        File pristine = folder.newFolder("pristine");
+        File journalFile = new File(pristine, "crawl.journal");
+
+        List<String> pageUrls = new ArrayList<>();
+        Map<String,List<String>> pageImages = new LinkedHashMap<>();
+        for (int i = 0; i < PAGES; i++) {
+            String pageUrl = "http://www.example.com/list/" + i + ".html";
+            List<String> images = new ArrayList<>();
+            for (int j = 0; j < IMAGES_PER_PAGE; j++) {
+                images.add("http://img.example.com/" + i + "/" + j + ".png");
+            }
+            pageUrls.add(pageUrl);
+            pageImages.put(pageUrl, images);
+        }
+
+        // 每写一条记录之后文件的长度和这时的状态，flushIntervalMillis为0，每条记录都立即写入文件
+        TreeMap<Long,State> states = new TreeMap<>();
+        State state = new State();
+        states.put(0L, state.copy());
+
+        Random random = new Random(20171114L);
+
+        try (CrawlJournal journal = new CrawlJournal(pristine, 0)) {
+
+            for (String pageUrl : pageUrls) {
+
+                List<String> images = pageImages.get(pageUrl);
+                journal.pageParsed(pageUrl, images);
+                state.pages.put(pageUrl, images);
+                states.put(journalFile.length(), state.copy());
+
+                for (String url : images) {
+
+                    journal.started(url);
+                    state.started.add(url);
+                    states.put(journalFile.length(), state.copy());
+
+                    int outcome = random.nextInt(4);
+                    if (outcome < 2) {        // 成功
+                        journal.done(url);
+                        state.started.remove(url);
+                        state.done.add(url);
+                        states.put(journalFile.length(), state.copy());
+                    } else if (outcome == 2) { // 失败，不写入记录
+                        journal.failed(url);
+                    }                          // 否则还在下载
+                }
+            }
+        }
+
+        long length = journalFile.length();
+        assertEquals(length, (long) states.lastKey());
+
+        List<Long> offsets = new ArrayList<>(states.keySet()); // 每条记录的边界
+        for (int i = 0; i < OFFSETS; i++) {
+            offsets.add((long) (random.nextDouble() * length));
+        }
+
+        for (long offset : offsets) {
+
+            File directory = folder.newFolder();
+            File file = new File(directory, "crawl.journal");
+            Files.copy(journalFile.toPath(), file.toPath());
+            truncate(file, offset);
+
+            Map.Entry<Long,State> expected = states.floorEntry(offset);
+
+            try (CrawlJournal journal = new CrawlJournal(directory, 0)) {
+
+                assertEquals("offset " + offset, (long) expected.getKey(), file.length()); // 不完整的记录被截掉
+                assertState("offset " + offset, expected.getValue(), journal, pageImages);
+
+                // 恢复之后可以继续写入
+                journal.done(pageImages.get(pageUrls.get(0)).get(0));
+            }
+
+            try (CrawlJournal journal = new CrawlJournal(directory, 0)) {
+                assertTrue(journal.isDone(pageImages.get(pageUrls.get(0)).get(0)));
+            }
+        }
+    }
+
+    @Test
+    public void compactionKeepsLiveState() throws IOException {
+
+        File directory = folder.newFolder();
+        File file = new File(directory, "crawl.journal");
+        int images = 300_000;
+
+        try (CrawlJournal journal = new CrawlJournal(directory)) {
+
+            for (int i = 0; i < images; i++) {
+                String url = "http://img.example.com/" + i + ".png";
+                journal.started(url);
+                if (i % 10 != 0) {
+                    journal.done(url);
+                } else if (i % 20 == 0) {
+                    journal.failed(url);
+                } // 其余的在下载时中断
+            }
+        }
+
+        // 每条记录9字节，存活的是成功的图片和中断的图片，过期的记录不超过总数的1/3
+        long live = (images - images / 10) + images / 20;
+        assertTrue("journal size " + file.length(), file.length() <= 9 * live * 3 / 2);
+
+        try (CrawlJournal journal = new CrawlJournal(directory)) {
+
+            assertEquals(images - images / 10, journal.getDone());
+            // 最后一次压缩之后失败的图片仍然留有STARTED
+            assertTrue(journal.getInterrupted() >= images / 20 && journal.getInterrupted() <= images / 10);
+
+            for (int i = 0; i < images; i++) {
+                assertEquals("image " + i, i % 10 != 0, journal.isDone("http://img.example.com/" + i + ".png"));
+            }
+        }
+    }
+
+    @Test
+    public void closeFlushesBufferedRecords() throws IOException {
+
+        File directory = folder.newFolder();
+
+        try (CrawlJournal journal = new CrawlJournal(directory, 60_000)) {
+            journal.started("http://img.example.com/a.png");
+            journal.done("http://img.example.com/a.png");
+        }
+
+        try (CrawlJournal journal = new CrawlJournal(directory)) {
+            assertTrue(journal.isDone("http://img.example.com/a.png"));
+        }
+    }
+
+    @Test
+    public void bufferedRecordsAreFlushedInBackground() throws IOException, InterruptedException {
+
+        File directory = folder.newFolder();
+        File file = new File(directory, "crawl.journal");
+
+        try (CrawlJournal journal = new CrawlJournal(directory, 50)) {
+
+            journal.started("http://img.example.com/a.png");
+            journal.done("http://img.example.com/a.png");
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (file.length() < 18 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(18, file.length()); // 没有新的记录也会写入文件
+        }
+    }
+
+    private static void assertState(String message,State expected,CrawlJournal journal,Map<String,List<String>> pageImages) {
+
+        for (Map.Entry<String,List<String>> page : pageImages.entrySet()) {
+
+            if (expected.pages.containsKey(page.getKey())) {
+
+                List<String> remaining = new ArrayList<>();
+                for (String url : page.getValue()) {
+                    if (!expected.done.contains(url)) remaining.add(url);
+                }
+                assertEquals(message, remaining, journal.pageImages(page.getKey()));
+            } else {
+                assertNull(message, journal.pageImages(page.getKey()));
+            }
+
+            for (String url : page.getValue()) {
+                assertEquals(message + " " + url, expected.done.contains(url), journal.isDone(url));
+            }
+        }
+
+        assertEquals(message, expected.done.size(), journal.getDone());
+        assertEquals(message, expected.started.size(), journal.getInterrupted());
+        assertEquals(message, 0, journal.getInFlight());
+    }
+
+    private static void truncate(File file,long length) throws IOException {
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+    }
+
+    /**
+     * 日志中的状态：解析过的网页、开始下载还没有结束的图片、下载成功的图片
+     */
+    private static class State {
+
+        private final Map<String,List<String>> pages = new HashMap<>();
+        private final Set<String> started = new HashSet<>();
+        private final Set<String> done = new HashSet<>();
+
+        State copy() {
+
+            State state = new State();
+            state.pages.putAll(pages);
+            state.started.addAll(started);
+            state.done.addAll(done);
+            return state;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.cv4j.piccrawler.store;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * url数量远超expectedUrls时布隆过滤器几乎全部命中，结果仍然以索引为准，没有下载过的url不会被跳过
+ */
+public class SeenUrlStoreTest {
+
+    private static final int URLS = 50_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void overfilledBloomFilterHasNoFalsePositives() throws IOException {
+
+        File directory = folder.newFolder();
+
+        try (SeenUrlStore store = new SeenUrlStore(directory, 100)) {
+
+            for (int i = 0; i < URLS; i++) {
+                store.add("http://img.example.com/seen/" + i + ".png");
+            }
+            assertEquals(URLS, store.size());
+        }
+
+        try (SeenUrlStore store = new SeenUrlStore(directory, 100)) {
+
+            for (int i = 0; i < URLS; i++) {
+                assertTrue(store.contains("http://img.example.com/seen/" + i + ".png"));
+                assertFalse(store.contains("http://img.example.com/unseen/" + i + ".png"));
+            }
+        }
+    }
+
+    @Test
+    public void addAfterCloseIsIgnored() throws IOException {
+
+        File directory = folder.newFolder();
+
+        SeenUrlStore store = new SeenUrlStore(directory, 100);
+        store.add("http://img.example.com/a.png");
+        store.close();
+        store.add("http://img.example.com/b.png"); // 下载在close()之后才完成
+        store.close();
+
+        try (SeenUrlStore reopened = new SeenUrlStore(directory, 100)) {
+            assertTrue(reopened.contains("http://img.example.com/a.png"));
+            assertFalse(reopened.contains("http://img.example.com/b.png"));
+            assertEquals(1, reopened.size());
+        }
+    }
+}
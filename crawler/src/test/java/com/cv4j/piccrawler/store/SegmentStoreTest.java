@@ -0,0 +1,379 @@
+package com.cv4j.piccrawler.store;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 在任意位置截断索引或者segment之后重新打开，模拟写入时进程退出或者机器掉电
+ * 截断位置之前完整的记录都可以读取，之后的记录不存在，重新打开之后可以继续写入
+ */
+public class SegmentStoreTest {
+
+    private static final long SEGMENT_SIZE = 8 * 1024; // 很小的segment，覆盖多个segment的情况
+    private static final int IMAGES = 60;
+    private static final int OFFSETS = 150;            // 每个测试截断的位置数
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File pristine;
+    private final Map<String,byte[]> images = new LinkedHashMap<>();
+    private final Map<String,SegmentStore.Entry> entries = new LinkedHashMap<>();
+
+    @Before
+    public void setUp() throws IOException {
+
+        pristine = folder.newFolder("pristine");
+        Random random = new Random(20171114L);
+
+        try (SegmentStore store = new SegmentStore(pristine, SEGMENT_SIZE)) {
+
+            for (int i = 0; i < IMAGES; i++) {
+                String url = "http://img.example.com/upload/" + i + ".png";
+                byte[] data = new byte[random.nextInt(3000)]; // 包括长度为0的图片
+                random.nextBytes(data);
+
+                images.put(url, data);
+                entries.put(url, store.put(url, "image/png", ByteBuffer.wrap(data)));
+            }
+        }
+
+        assertTrue(segmentFile(pristine, 2).exists());
+    }
+
+    @Test
+    public void reopenWithoutDamage() throws IOException {
+
+        try (SegmentStore store = new SegmentStore(copy(), SEGMENT_SIZE)) {
+            assertRecovered(store, Integer.MAX_VALUE, Long.MAX_VALUE);
+        }
+    }
+
+    @Test
+    public void truncatedIndexIsRebuiltFromSegments() throws IOException {
+
+        long length = new File(pristine, "segments.idx").length();
+
+        for (long offset : offsets(length, new Random(1))) {
+
+            File directory = copy();
+            truncate(new File(directory, "segments.idx"), offset);
+
+            try (SegmentStore store = new SegmentStore(directory, SEGMENT_SIZE)) {
+                assertRecovered(store, Integer.MAX_VALUE, Long.MAX_VALUE); // segment完整，全部的记录都可以恢复
+            }
+            assertWritableAfterRecovery(directory, Integer.MAX_VALUE, Long.MAX_VALUE);
+        }
+    }
+
+    @Test
+    public void truncatedLastSegmentKeepsCompleteRecords() throws IOException {
+
+        int last = lastSegment();
+        long length = segmentFile(pristine, last).length();
+
+        for (long offset : offsets(length, new Random(2))) {
+
+            File directory = copy();
+            truncate(segmentFile(directory, last), offset);
+
+            try (SegmentStore store = new SegmentStore(directory, SEGMENT_SIZE)) {
+                assertRecovered(store, last, offset);
+            }
+            assertWritableAfterRecovery(directory, last, offset);
+        }
+    }
+
+    @Test
+    public void truncatedIndexAndSegment() throws IOException {
+
+        int last = lastSegment();
+        long indexLength = new File(pristine, "segments.idx").length();
+        long segmentLength = segmentFile(pristine, last).length();
+        Random random = new Random(3);
+
+        for (int i = 0; i < OFFSETS; i++) {
+
+            File directory = copy();
+            long offset = (long) (random.nextDouble() * (segmentLength + 1));
+            truncate(new File(directory, "segments.idx"), (long) (random.nextDouble() * (indexLength + 1)));
+            truncate(segmentFile(directory, last), offset);
+
+            try (SegmentStore store = new SegmentStore(directory, SEGMENT_SIZE)) {
+                assertRecovered(store, last, offset);
+            }
+            assertWritableAfterRecovery(directory, last, offset);
+        }
+    }
+
+    /**
+     * 多个线程同时从InputStream写入，其中一部分在中途失败，失败的记录在重新打开时跳过，之后的记录都可以读取
+     */
+    @Test
+    public void concurrentStreamedPutsSkipFailedRecords() throws Exception {
+
+        File directory = folder.newFolder();
+        Map<String,byte[]> written = new ConcurrentHashMap<>();
+        Set<String> failed = ConcurrentHashMap.newKeySet();
+
+        try (SegmentStore store = new SegmentStore(directory, SEGMENT_SIZE)) {
+
+            ExecutorService executor = Executors.newFixedThreadPool(8);
+            List<Future<?>> futures = new ArrayList<>();
+
+            for (int t = 0; t < 8; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    Random random = new Random(thread);
+                    for (int i = 0; i < 40; i++) {
+                        String url = "http://img.example.com/stream/" + thread + "/" + i + ".png";
+                        byte[] data = new byte[random.nextInt(3000)];
+                        random.nextBytes(data);
+
+                        if (data.length > 0 && random.nextInt(5) == 0) { // 读到一半连接中断
+                            try {
+                                store.put(url, "image/png", new FailingInputStream(data, data.length / 2), data.length);
+                                fail(url);
+                            } catch (IOException expected) {
+                                failed.add(url);
+                            }
+                        } else {
+                            store.put(url, "image/png", new ByteArrayInputStream(data), data.length);
+                            written.put(url, data);
+                        }
+                    }
+                    return null;
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            executor.shutdown();
+
+            assertEquals(written.size(), store.size());
+        }
+
+        assertTrue(segmentFile(directory, 2).exists());
+        assertTrue(failed.size() > 0);
+
+        truncate(new File(directory, "segments.idx"), 0); // 从segment重建索引，经过所有失败的记录
+
+        for (int i = 0; i < 2; i++) {
+            try (SegmentStore store = new SegmentStore(directory, SEGMENT_SIZE)) {
+
+                for (Map.Entry<String,byte[]> image : written.entrySet()) {
+                    assertArrayEquals(image.getKey(), image.getValue(), store.read(image.getKey()));
+                }
+                for (String url : failed) {
+                    assertNull(url, store.get(url));
+                }
+                assertEquals(written.size(), store.size());
+            }
+        }
+    }
+
+    @Test
+    public void streamedPutRejectsWrongLength() throws IOException {
+
+        File directory = folder.newFolder();
+
+        try (SegmentStore store = new SegmentStore(directory, SEGMENT_SIZE)) {
+
+            try {
+                store.put("http://img.example.com/short.png", "image/png", new ByteArrayInputStream(new byte[10]), 11);
+                fail();
+            } catch (IOException expected) {
+            }
+
+            try {
+                store.put("http://img.example.com/long.png", "image/png", new ByteArrayInputStream(new byte[12]), 11);
+                fail();
+            } catch (IOException expected) {
+            }
+
+            store.put("http://img.example.com/ok.png", "image/png", new ByteArrayInputStream(new byte[11]), 11);
+        }
+
+        try (SegmentStore store = new SegmentStore(directory, SEGMENT_SIZE)) {
+            assertNull(store.get("http://img.example.com/short.png"));
+            assertNull(store.get("http://img.example.com/long.png"));
+            assertArrayEquals(new byte[11], store.read("http://img.example.com/ok.png"));
+            assertEquals(1, store.size());
+        }
+    }
+
+    /**
+     * @param segment 被截断的segment，之后的segment不存在
+     * @param end     segment被截断的位置
+     */
+    private void assertRecovered(SegmentStore store,int segment,long end) throws IOException {
+
+        int expected = 0;
+
+        for (Map.Entry<String,byte[]> image : images.entrySet()) {
+
+            String url = image.getKey();
+            SegmentStore.Entry entry = entries.get(url);
+
+            if (entry.getSegment() < segment || (entry.getSegment() == segment && recordEnd(url, entry) <= end)) {
+                assertNotNull(url, store.get(url));
+                assertArrayEquals(url, image.getValue(), store.read(url));
+                assertArrayEquals(url, entry.getHash(), store.get(url).getHash());
+                expected++;
+            } else {
+                assertNull(url, store.get(url));
+                assertNull(url, store.read(url));
+            }
+        }
+
+        assertEquals(expected, store.size());
+    }
+
+    /**
+     * 恢复之后写入新的图片，再次打开时新旧图片都完整
+     */
+    private void assertWritableAfterRecovery(File directory,int segment,long end) throws IOException {
+
+        String url = "http://img.example.com/upload/after-recovery.png";
+        byte[] data = "after recovery".getBytes(StandardCharsets.UTF_8);
+
+        try (SegmentStore store = new SegmentStore(directory, SEGMENT_SIZE)) {
+            store.put(url, "image/png", ByteBuffer.wrap(data));
+        }
+
+        try (SegmentStore store = new SegmentStore(directory, SEGMENT_SIZE)) {
+            assertArrayEquals(data, store.read(url));
+            for (Map.Entry<String,byte[]> image : images.entrySet()) {
+                if (store.get(image.getKey()) != null) {
+                    assertArrayEquals(image.getKey(), image.getValue(), store.read(image.getKey()));
+                }
+            }
+            assertEquals(expectedCount(segment, end) + 1, store.size());
+        }
+    }
+
+    private int expectedCount(int segment,long end) {
+
+        int count = 0;
+        for (Map.Entry<String,SegmentStore.Entry> entry : entries.entrySet()) {
+            SegmentStore.Entry e = entry.getValue();
+            if (e.getSegment() < segment || (e.getSegment() == segment && recordEnd(entry.getKey(), e) <= end)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 记录结束的位置，header是 magic(4) url(2+长度) Content-Type(2+长度) 长度(8)，url都是ASCII
+     */
+    private static long recordEnd(String url,SegmentStore.Entry entry) {
+
+        return entry.getOffset() + 4 + 2 + url.length() + 2 + entry.getContentType().length() + 8 + entry.getLength();
+    }
+
+    private int lastSegment() {
+
+        int last = 0;
+        for (SegmentStore.Entry entry : entries.values()) {
+            last = Math.max(last, entry.getSegment());
+        }
+        return last;
+    }
+
+    /**
+     * 0、文件长度以及之间随机的位置
+     */
+    private static long[] offsets(long length,Random random) {
+
+        long[] offsets = new long[OFFSETS];
+        offsets[0] = 0;
+        offsets[1] = length;
+        offsets[2] = length - 1;
+        for (int i = 3; i < OFFSETS; i++) {
+            offsets[i] = (long) (random.nextDouble() * length);
+        }
+        return offsets;
+    }
+
+    private File copy() throws IOException {
+
+        File directory = folder.newFolder();
+        for (File file : pristine.listFiles()) {
+            Files.copy(file.toPath(), new File(directory, file.getName()).toPath());
+        }
+        return directory;
+    }
+
+    private static File segmentFile(File directory,int segment) {
+
+        return new File(directory, String.format("segment-%06d.seg", segment));
+    }
+
+    /**
+     * 读完前failAt个字节之后抛出IOException
+     */
+    private static class FailingInputStream extends InputStream {
+
+        private final ByteArrayInputStream data;
+        private int remaining;
+
+        FailingInputStream(byte[] data,int failAt) {
+
+            this.data = new ByteArrayInputStream(data);
+            this.remaining = failAt;
+        }
+
+        @Override
+        public int read() throws IOException {
+
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b,int off,int len) throws IOException {
+
+            if (remaining == 0) throw new IOException("connection reset");
+            int n = data.read(b, off, Math.min(len, remaining));
+            remaining -= n;
+            return n;
+        }
+    }
+
+    private static void truncate(File file,long length) throws IOException {
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.cv4j.piccrawler.store;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 校验信息写入、重新打开、进程退出时缓冲区中的记录丢失、日志被截断以及压缩之后都能读到每个url最新的记录
+ */
+public class ValidatorIndexTest {
+
+    private static final int URLS = 5_000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void reopenKeepsLatestValidators() throws IOException {
+
+        for (long flushIntervalMillis : new long[]{0, 60_000}) {
+
+            File directory = folder.newFolder();
+
+            try (ValidatorIndex index = new ValidatorIndex(directory, 4, flushIntervalMillis)) {
+
+                for (int i = 0; i < URLS; i++) {
+                    index.put(url(i), "\"v1-" + i + "\"", null);
+                }
+                for (int i = 0; i < URLS; i += 2) {
+                    index.put(url(i), "\"v2-" + i + "\"", "Tue, 14 Nov 2017 08:00:00 GMT");
+                }
+                assertValidators(index, URLS); // 缓冲区中的记录也可以读到
+            }
+
+            try (ValidatorIndex index = new ValidatorIndex(directory, 4, flushIntervalMillis)) {
+                assertValidators(index, URLS);
+                assertNull(index.get("http://img.example.com/unknown.png"));
+            }
+        }
+    }
+
+    /**
+     * 索引已经指向缓冲区中的记录，日志还没有写入文件时进程退出
+     */
+    @Test
+    public void unflushedRecordsAreLostCleanly() throws IOException {
+
+        File directory = folder.newFolder();
+        File copy = folder.newFolder();
+
+        try (ValidatorIndex index = new ValidatorIndex(directory, 1, 60_000)) {
+
+            index.put(url(1), "\"a\"", null);
+            index.flush();
+            index.put(url(2), "\"b\"", null);
+            index.put(url(1), "\"c\"", null);
+
+            for (File file : directory.listFiles()) { // 模拟这时进程退出
+                Files.copy(file.toPath(), new File(copy, file.getName()).toPath());
+            }
+        }
+
+        try (ValidatorIndex index = new ValidatorIndex(copy, 1, 0)) {
+
+            assertNull(index.get(url(2)));
+            assertNull(index.get(url(1))); // 索引指向丢失的记录，下次不发送条件请求
+
+            index.put(url(3), "\"d\"", null); // 写在丢失的记录原来的位置
+            index.put(url(2), "\"e\"", null);
+            assertEquals("\"d\"", index.get(url(3)).getEtag());
+            assertEquals("\"e\"", index.get(url(2)).getEtag());
+        }
+    }
+
+    /**
+     * 没有索引文件时从日志重建，日志最后不完整的记录被截掉，之后可以继续写入
+     */
+    @Test
+    public void rebuildFromTruncatedLog() throws IOException {
+
+        File pristine = folder.newFolder();
+
+        try (ValidatorIndex index = new ValidatorIndex(pristine, 1, 0)) {
+            for (int i = 0; i < 100; i++) {
+                index.put(url(i), "\"v1-" + i + "\"", null);
+            }
+        }
+
+        File log = new File(pristine, "validators-000.log");
+        long length = log.length();
+        Random random = new Random(20171114L);
+
+        for (int n = 0; n < 50; n++) {
+
+            File directory = folder.newFolder();
+            Files.copy(log.toPath(), new File(directory, log.getName()).toPath());
+            long offset = (long) (random.nextDouble() * length);
+            try (RandomAccessFile raf = new RandomAccessFile(new File(directory, log.getName()), "rw")) {
+                raf.setLength(offset);
+            }
+
+            int complete = 0;
+            try (ValidatorIndex index = new ValidatorIndex(directory, 1, 0)) {
+
+                for (int i = 0; i < 100; i++) {
+                    if (index.get(url(i)) == null) break;
+                    assertEquals("\"v1-" + i + "\"", index.get(url(i)).getEtag());
+                    complete++;
+                }
+                for (int i = complete; i < 100; i++) {
+                    assertNull(index.get(url(i)));
+                }
+                index.put(url(100), "\"after\"", null);
+            }
+
+            try (ValidatorIndex index = new ValidatorIndex(directory, 1, 0)) {
+                assertEquals("\"after\"", index.get(url(100)).getEtag());
+                if (complete > 0) {
+                    assertEquals("\"v1-" + (complete - 1) + "\"", index.get(url(complete - 1)).getEtag());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void flushCompactsSupersededRecords() throws IOException {
+
+        File directory = folder.newFolder();
+        File log = new File(directory, "validators-000.log");
+
+        try (ValidatorIndex index = new ValidatorIndex(directory, 1, 60_000)) {
+
+            for (int round = 0; round < 30; round++) {
+                for (int i = 0; i < 100; i++) {
+                    index.put(url(i), "\"" + round + "-" + i + "\"", null);
+                }
+            }
+
+            index.flush();
+            long compacted = log.length();
+            assertTrue("log size " + compacted, compacted < 100 * 64);
+
+            for (int i = 0; i < 100; i++) {
+                assertEquals("\"29-" + i + "\"", index.get(url(i)).getEtag());
+            }
+            index.put(url(100), "\"after\"", null);
+        }
+
+        try (ValidatorIndex index = new ValidatorIndex(directory, 1, 60_000)) {
+
+            for (int i = 0; i < 100; i++) {
+                assertEquals("\"29-" + i + "\"", index.get(url(i)).getEtag());
+            }
+            assertEquals("\"after\"", index.get(url(100)).getEtag());
+        }
+    }
+
+    private static void assertValidators(ValidatorIndex index,int count) throws IOException {
+
+        for (int i = 0; i < count; i++) {
+
+            Validators validators = index.get(url(i));
+            if (i % 2 == 0) {
+                assertEquals("\"v2-" + i + "\"", validators.getEtag());
+                assertEquals("Tue, 14 Nov 2017 08:00:00 GMT", validators.getLastModified());
+            } else {
+                assertEquals("\"v1-" + i + "\"", validators.getEtag());
+                assertNull(validators.getLastModified());
+            }
+        }
+    }
+
+    private static String url(int i) {
+
+        return "http://img.example.com/upload/" + i + ".png";
+    }
+}